@@ -0,0 +1,62 @@
+package de.galante.springframework.security.core;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converting the authorities of a principal to and from their stored forms.
+ *
+ * @author Victor Galante
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GrantedAuthorityConverterBenchmark {
+
+    private final GrantedAuthorityConverter converter = new GrantedAuthorityConverter();
+    private final GrantedAuthoritySetConverter setConverter = new GrantedAuthoritySetConverter();
+
+    private Collection<GrantedAuthority> authorities;
+    private String stored;
+    private Set<String> storedSet;
+
+    @Setup
+    public void setUp() {
+        this.authorities = AuthorityUtils.createAuthorityList("ROLE_USER", "ROLE_ADMIN", "ROLE_AUDITOR");
+        this.stored = this.converter.convert(this.authorities);
+        this.storedSet = new LinkedHashSet<String>(Arrays.asList("ROLE_USER", "ROLE_ADMIN", "ROLE_AUDITOR"));
+    }
+
+    @Benchmark
+    public String convert() {
+        return this.converter.convert(this.authorities);
+    }
+
+    /**
+     * Every load reads a new string from DynamoDB, so the pool is not hit by identity.
+     */
+    @Benchmark
+    public Collection<GrantedAuthority> unconvert() {
+        return this.converter.unconvert(new String(this.stored));
+    }
+
+    @Benchmark
+    public Set<String> convertSet() {
+        return this.setConverter.convert(this.authorities);
+    }
+
+    @Benchmark
+    public Collection<GrantedAuthority> unconvertSet() {
+        return this.setConverter.unconvert(new LinkedHashSet<String>(this.storedSet));
+    }
+}
@@ -0,0 +1,77 @@
+package de.galante.springframework.security.oauth2.provider;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.oauth2.common.util.SerializationUtils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding the authentication of an authorization code, compared to the Java
+ * serialization it replaces.
+ *
+ * @author Victor Galante
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OAuth2AuthenticationCodecBenchmark {
+
+    private final OAuth2AuthenticationCodec codec = new OAuth2AuthenticationCodec();
+
+    private OAuth2Authentication authentication;
+    private byte[] encoded;
+    private byte[] serialized;
+
+    @Setup
+    public void setUp() {
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("response_type", "code");
+        parameters.put("client_id", "web-client");
+        parameters.put("redirect_uri", "https://example.com/callback");
+        parameters.put("state", "af0ifjsldkj");
+        OAuth2Request request = new OAuth2Request(parameters, "web-client",
+                AuthorityUtils.createAuthorityList("ROLE_CLIENT"), true,
+                new HashSet<String>(Arrays.asList("read", "write")), Collections.singleton("api"),
+                "https://example.com/callback", Collections.singleton("code"), null);
+        User user = new User("alice", "secret", AuthorityUtils.createAuthorityList("ROLE_USER", "ROLE_ADMIN"));
+        UsernamePasswordAuthenticationToken userAuthentication =
+                new UsernamePasswordAuthenticationToken(user, null, user.getAuthorities());
+
+        this.authentication = new OAuth2Authentication(request, userAuthentication);
+        this.encoded = this.codec.encode(this.authentication);
+        this.serialized = SerializationUtils.serialize(this.authentication);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return this.codec.encode(this.authentication);
+    }
+
+    @Benchmark
+    public OAuth2Authentication decode() {
+        return this.codec.decode(this.encoded);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return SerializationUtils.serialize(this.authentication);
+    }
+
+    @Benchmark
+    public OAuth2Authentication deserialize() {
+        return SerializationUtils.deserialize(this.serialized);
+    }
+}
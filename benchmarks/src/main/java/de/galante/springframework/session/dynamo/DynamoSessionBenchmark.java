@@ -0,0 +1,106 @@
+package de.galante.springframework.session.dynamo;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.core.userdetails.User;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and writing attributes of a session in memory, and encoding attribute values
+ * with the compact and the plain serializing codec.
+ *
+ * @author Victor Galante
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DynamoSessionBenchmark {
+
+    private static final String NAME = "name";
+
+    private final SessionAttributeCodec compactCodec = new CompactSessionAttributeCodec();
+    private final SessionAttributeCodec serializingCodec = new SerializingSessionAttributeCodec();
+
+    private DynamoSessionRepository.DynamoSession session;
+    private SecurityContext securityContext;
+    private byte[] compactString;
+    private byte[] serializedString;
+    private byte[] compactContext;
+    private byte[] serializedContext;
+
+    @Setup
+    public void setUp() {
+        // the client is never called by these benchmarks
+        DynamoSessionRepository repository = new DynamoSessionRepository(new AbstractAmazonDynamoDB() {
+        });
+        this.session = repository.createSession();
+        this.session.setAttribute(NAME, "value");
+
+        User user = new User("alice", "secret", AuthorityUtils.createAuthorityList("ROLE_USER"));
+        this.securityContext = new SecurityContextImpl();
+        this.securityContext.setAuthentication(new UsernamePasswordAuthenticationToken(user, null, user.getAuthorities()));
+
+        this.compactString = this.compactCodec.encode("value");
+        this.serializedString = this.serializingCodec.encode("value");
+        this.compactContext = this.compactCodec.encode(this.securityContext);
+        this.serializedContext = this.serializingCodec.encode(this.securityContext);
+    }
+
+    @Benchmark
+    public Object getAttribute() {
+        return this.session.getAttribute(NAME);
+    }
+
+    @Benchmark
+    public void setAttribute() {
+        this.session.setAttribute(NAME, "value");
+    }
+
+    @Benchmark
+    public byte[] encodeStringCompact() {
+        return this.compactCodec.encode("value");
+    }
+
+    @Benchmark
+    public byte[] encodeStringSerializing() {
+        return this.serializingCodec.encode("value");
+    }
+
+    @Benchmark
+    public Object decodeStringCompact() {
+        return this.compactCodec.decode(this.compactString);
+    }
+
+    @Benchmark
+    public Object decodeStringSerializing() {
+        return this.serializingCodec.decode(this.serializedString);
+    }
+
+    @Benchmark
+    public byte[] encodeSecurityContextCompact() {
+        return this.compactCodec.encode(this.securityContext);
+    }
+
+    @Benchmark
+    public byte[] encodeSecurityContextSerializing() {
+        return this.serializingCodec.encode(this.securityContext);
+    }
+
+    @Benchmark
+    public Object decodeSecurityContextCompact() {
+        return this.compactCodec.decode(this.compactContext);
+    }
+
+    @Benchmark
+    public Object decodeSecurityContextSerializing() {
+        return this.serializingCodec.decode(this.serializedContext);
+    }
+}
@@ -0,0 +1,88 @@
+package de.galante.springframework.session.dynamo;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextImpl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving and loading sessions end to end against an embedded DynamoDB Local. The numbers
+ * include the local request handling and are only comparable between runs on the same
+ * machine.
+ *
+ * @author Victor Galante
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DynamoSessionRepositoryBenchmark {
+
+    @Param({"false", "true"})
+    public boolean lazyAttributeLoading;
+
+    private LocalDynamoDB local;
+    private DynamoSessionRepository repository;
+    private String sessionId;
+    private long counter;
+
+    /**
+     * Starts every iteration with empty tables, so the sessions {@link #saveNew()} adds
+     * do not grow the table and its principal name index over the run.
+     */
+    @Setup(Level.Iteration)
+    public void setUp() {
+        this.local = new LocalDynamoDB();
+        this.local.createSessionTables();
+        this.repository = new DynamoSessionRepository(this.local.client());
+        this.repository.setLazyAttributeLoading(this.lazyAttributeLoading);
+
+        DynamoSessionRepository.DynamoSession session = newSession();
+        this.repository.save(session);
+        this.sessionId = session.getId();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        this.local.shutdown();
+    }
+
+    @Benchmark
+    public DynamoSessionRepository.DynamoSession getSession() {
+        return this.repository.getSession(this.sessionId);
+    }
+
+    @Benchmark
+    public void saveNew() {
+        this.repository.save(newSession());
+    }
+
+    @Benchmark
+    public void saveChangedAttribute() {
+        DynamoSessionRepository.DynamoSession session = this.repository.getSession(this.sessionId);
+        session.setAttribute("counter", this.counter++);
+        this.repository.save(session);
+    }
+
+    @Benchmark
+    public void saveTouched() {
+        DynamoSessionRepository.DynamoSession session = this.repository.getSession(this.sessionId);
+        session.setLastAccessedTime(System.currentTimeMillis());
+        this.repository.save(session);
+    }
+
+    private DynamoSessionRepository.DynamoSession newSession() {
+        SecurityContextImpl securityContext = new SecurityContextImpl();
+        securityContext.setAuthentication(new UsernamePasswordAuthenticationToken("alice", null,
+                AuthorityUtils.createAuthorityList("ROLE_USER")));
+        DynamoSessionRepository.DynamoSession session = this.repository.createSession();
+        session.setAttribute("SPRING_SECURITY_CONTEXT", securityContext);
+        session.setAttribute("locale", "en_US");
+        session.setAttribute("counter", 0L);
+        return session;
+    }
+}
@@ -0,0 +1,56 @@
+package de.galante.springframework.session.dynamo;
+
+import com.amazonaws.services.dynamodbv2.AbstractAmazonDynamoDB;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.session.FindByIndexNameSessionRepository;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving the principal name of a session from an explicit index attribute and from
+ * the Spring Security context.
+ *
+ * @author Victor Galante
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PrincipalNameResolverBenchmark {
+
+    private final DynamoSessionRepository.PrincipalNameResolver resolver = new DynamoSessionRepository.PrincipalNameResolver();
+
+    private DynamoSessionRepository.DynamoSession indexedSession;
+    private DynamoSessionRepository.DynamoSession securityContextSession;
+
+    @Setup
+    public void setUp() {
+        // the client is never called by these benchmarks
+        DynamoSessionRepository repository = new DynamoSessionRepository(new AbstractAmazonDynamoDB() {
+        });
+
+        this.indexedSession = repository.createSession();
+        this.indexedSession.setAttribute(FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME, "alice");
+
+        SecurityContextImpl securityContext = new SecurityContextImpl();
+        securityContext.setAuthentication(new UsernamePasswordAuthenticationToken("alice", null,
+                AuthorityUtils.createAuthorityList("ROLE_USER")));
+        this.securityContextSession = repository.createSession();
+        this.securityContextSession.setAttribute("SPRING_SECURITY_CONTEXT", securityContext);
+    }
+
+    @Benchmark
+    public String resolveFromIndexAttribute() {
+        return this.resolver.resolvePrincipal(this.indexedSession);
+    }
+
+    @Benchmark
+    public String resolveFromSecurityContext() {
+        return this.resolver.resolvePrincipal(this.securityContextSession);
+    }
+}
@@ -0,0 +1,55 @@
+package de.galante.springframework.dynamo;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+
+/**
+ * Adapts the callbacks of {@link com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync}
+ * to {@link CompletableFuture}s.
+ *
+ * @author Victor Galante
+ */
+public final class DynamoFutures {
+
+    private DynamoFutures() {
+    }
+
+    /**
+     * Sends a request through an async operation taking an {@link AsyncHandler}, for
+     * example {@code DynamoFutures.execute(request, dynamoDB::getItemAsync)}.
+     *
+     * @return a future completed with the result, or with the failure of the request
+     */
+    public static <Q extends AmazonWebServiceRequest, R> CompletableFuture<R> execute(
+            Q request, BiFunction<Q, AsyncHandler<Q, R>, Future<R>> operation) {
+        CompletableFuture<R> result = new CompletableFuture<R>();
+        try {
+            operation.apply(request, new AsyncHandler<Q, R>() {
+                @Override
+                public void onError(Exception exception) {
+                    result.completeExceptionally(exception);
+                }
+
+                @Override
+                public void onSuccess(Q request, R response) {
+                    result.complete(response);
+                }
+            });
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Wraps the failure of a stage to rethrow it from a dependent stage.
+     */
+    public static CompletionException completionException(Throwable failure) {
+        return failure instanceof CompletionException ? (CompletionException) failure : new CompletionException(failure);
+    }
+}
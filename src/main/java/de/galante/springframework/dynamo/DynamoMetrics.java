@@ -0,0 +1,48 @@
+package de.galante.springframework.dynamo;
+
+/**
+ * Receives the measurements of {@link DynamoMetricsHandler}, to be forwarded to a metrics
+ * library. Every measurement is tagged with the table and the operation, the name of the
+ * DynamoDB API call such as {@code GetItem} or {@code Query}. The table is empty for calls
+ * not addressing a single table.
+ * <p>
+ * Implementations are called from the threads executing requests and must be thread-safe
+ * and fast. Timers and size distributions are expected to be recorded as histograms.
+ *
+ * @author Victor Galante
+ */
+public interface DynamoMetrics {
+
+    /**
+     * A call completed, including all of its retries.
+     *
+     * @param durationNanos the time from sending the first attempt to the final response
+     * @param failed        whether the call failed after its last attempt
+     */
+    void recordCall(String tableName, String operation, long durationNanos, boolean failed);
+
+    /**
+     * A call consumed capacity on a table, as reported by DynamoDB.
+     *
+     * @param capacityUnits the read or write capacity units consumed
+     */
+    void recordConsumedCapacity(String tableName, String operation, double capacityUnits);
+
+    /**
+     * An item was read or written.
+     *
+     * @param bytes the approximate size of the item as DynamoDB counts it
+     */
+    void recordItemSize(String tableName, String operation, int bytes);
+
+    /**
+     * An attempt was rejected because the table's throughput or the account's request
+     * rate was exceeded.
+     */
+    void recordThrottle(String tableName, String operation);
+
+    /**
+     * A failed attempt is retried by the client.
+     */
+    void recordRetry(String tableName, String operation);
+}
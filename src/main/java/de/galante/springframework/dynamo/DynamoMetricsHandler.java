@@ -0,0 +1,469 @@
+package de.galante.springframework.dynamo;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.services.dynamodbv2.model.*;
+import org.springframework.util.Assert;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Measures every call made through a DynamoDB client, including the calls the
+ * {@link com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper} makes, and
+ * reports them to a {@link DynamoMetrics}: the latency of every call, the capacity it
+ * consumed, the size of the items read and written, and throttled and retried attempts.
+ * Calls that do not ask for their consumed capacity are made to return its total.
+ * <p>
+ * The handler is registered on the client, and its retry policy is needed to see the
+ * attempts the client retries:
+ *
+ * <pre class="code">
+ * AmazonDynamoDBClientBuilder.standard()
+ *         .withRequestHandlers(handler)
+ *         .withClientConfiguration(new ClientConfiguration()
+ *                 .withRetryPolicy(handler.retryPolicy(PredefinedRetryPolicies.DYNAMODB_DEFAULT)))
+ *         .build();
+ * </pre>
+ * <p>
+ * The most accessed keys of the tables registered with
+ * {@link #trackHotKeys(String, String, boolean)} are tracked, see
+ * {@link #getHotKeys(String, int)}. Keys that are credentials, like session ids, are
+ * tracked by a truncated hash of their value.
+ *
+ * @author Victor Galante
+ */
+public class DynamoMetricsHandler extends RequestHandler2 {
+
+    public static final int DEFAULT_HOT_KEY_CAPACITY = 100;
+
+    /**
+     * The number of bytes of the SHA-256 hash kept for hashed keys.
+     */
+    private static final int HASHED_KEY_BYTES = 8;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final HandlerContextKey<Long> STARTED_AT =
+            new HandlerContextKey<Long>(DynamoMetricsHandler.class.getName() + ".STARTED_AT");
+
+    private final DynamoMetrics metrics;
+    private final ConcurrentMap<Class<?>, String> operations = new ConcurrentHashMap<Class<?>, String>();
+    private final Map<String, String> hotKeyAttributes = new ConcurrentHashMap<String, String>();
+    private final Set<String> hashedHotKeyTables = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentMap<String, HotKeyTracker> hotKeys = new ConcurrentHashMap<String, HotKeyTracker>();
+    private volatile int hotKeyCapacity = DEFAULT_HOT_KEY_CAPACITY;
+
+    public DynamoMetricsHandler(DynamoMetrics metrics) {
+        Assert.notNull(metrics, "Metrics must not be null");
+        this.metrics = metrics;
+    }
+
+    /**
+     * Track the most accessed keys of a table by the value of its hash key attribute.
+     * No table is tracked by default. Keys that are credentials, like the ids of the
+     * session table, must be hashed:
+     *
+     * <pre class="code">
+     * handler.trackHotKeys(DynamoSessionRepository.DEFAULT_TABLE_NAME, "id", true);
+     * handler.trackHotKeys(DynamoUser.TABLE_NAME, "username", false);
+     * </pre>
+     *
+     * @param tableName        the table name
+     * @param keyAttributeName the name of the table's hash key attribute
+     * @param hashKeys         whether keys are tracked by the first 8 bytes of their
+     *                         SHA-256 hash in hex instead of their value
+     */
+    public void trackHotKeys(String tableName, String keyAttributeName, boolean hashKeys) {
+        Assert.hasText(tableName, "Table name must not be empty");
+        Assert.hasText(keyAttributeName, "Key attribute name must not be empty");
+        if (hashKeys) {
+            this.hashedHotKeyTables.add(tableName);
+        } else {
+            this.hashedHotKeyTables.remove(tableName);
+        }
+        this.hotKeyAttributes.put(tableName, keyAttributeName);
+        this.hotKeys.putIfAbsent(tableName, new HotKeyTracker(this.hotKeyCapacity));
+    }
+
+    /**
+     * Set the number of keys of each table whose access counts are tracked, which bounds
+     * the memory used. Keys accessed less often than the total accesses divided by the
+     * capacity may be missed. The default is {@value #DEFAULT_HOT_KEY_CAPACITY}. Resets
+     * the tracked keys.
+     *
+     * @param hotKeyCapacity the number of tracked keys per table
+     */
+    public void setHotKeyCapacity(int hotKeyCapacity) {
+        Assert.isTrue(hotKeyCapacity > 0, "Hot key capacity must be positive");
+        this.hotKeyCapacity = hotKeyCapacity;
+        for (String tableName : this.hotKeyAttributes.keySet()) {
+            this.hotKeys.put(tableName, new HotKeyTracker(hotKeyCapacity));
+        }
+    }
+
+    /**
+     * Returns the most accessed keys of a table since the handler was created or
+     * {@link #resetHotKeys()} was last called, with their estimated number of reads and
+     * writes, most accessed first.
+     *
+     * @param tableName the table name
+     * @param limit     the maximum number of keys returned
+     * @return the keys with their access counts, empty if the table is not tracked
+     */
+    public Map<String, Long> getHotKeys(String tableName, int limit) {
+        Assert.isTrue(limit > 0, "Limit must be positive");
+        HotKeyTracker tracker = this.hotKeys.get(tableName);
+        return tracker != null ? tracker.top(limit) : Collections.<String, Long>emptyMap();
+    }
+
+    public void resetHotKeys() {
+        for (HotKeyTracker tracker : this.hotKeys.values()) {
+            tracker.clear();
+        }
+    }
+
+    /**
+     * Returns a retry policy retrying like the given one, which reports the attempts it
+     * retries and the throttled ones among them.
+     *
+     * @param retryPolicy the retry policy to decorate
+     */
+    public RetryPolicy retryPolicy(RetryPolicy retryPolicy) {
+        RetryPolicy.RetryCondition retryCondition = retryPolicy.getRetryCondition();
+        return new RetryPolicy((request, exception, retriesAttempted) -> {
+            boolean retry = retryCondition.shouldRetry(request, exception, retriesAttempted);
+            if (retry) {
+                String tableName = DynamoRequests.tableName(request);
+                String operation = operation(request);
+                // the last attempt of a call is reported by afterError
+                if (DynamoRequests.isThrottle(exception)) {
+                    this.metrics.recordThrottle(tableName, operation);
+                }
+                this.metrics.recordRetry(tableName, operation);
+            }
+            return retry;
+        }, retryPolicy.getBackoffStrategy(), retryPolicy.getMaxErrorRetry(), retryPolicy.isMaxErrorRetryInClientConfigHonored());
+    }
+
+    @Override
+    public AmazonWebServiceRequest beforeExecution(AmazonWebServiceRequest request) {
+        returnConsumedCapacity(request);
+        recordKeys(request);
+        return request;
+    }
+
+    @Override
+    public void beforeRequest(Request<?> request) {
+        request.addHandlerContext(STARTED_AT, System.nanoTime());
+    }
+
+    @Override
+    public void afterResponse(Request<?> request, Response<?> response) {
+        AmazonWebServiceRequest original = request.getOriginalRequest();
+        String tableName = DynamoRequests.tableName(original);
+        String operation = operation(original);
+        recordCall(request, tableName, operation, false);
+        recordResult(original, response.getAwsResponse(), tableName, operation);
+    }
+
+    @Override
+    public void afterError(Request<?> request, Response<?> response, Exception e) {
+        AmazonWebServiceRequest original = request.getOriginalRequest();
+        String tableName = DynamoRequests.tableName(original);
+        String operation = operation(original);
+        recordCall(request, tableName, operation, true);
+        if (DynamoRequests.isThrottle(e)) {
+            this.metrics.recordThrottle(tableName, operation);
+        }
+    }
+
+    private void recordCall(Request<?> request, String tableName, String operation, boolean failed) {
+        Long startedAt = request.getHandlerContext(STARTED_AT);
+        if (startedAt != null) {
+            this.metrics.recordCall(tableName, operation, System.nanoTime() - startedAt, failed);
+        }
+    }
+
+    private static void returnConsumedCapacity(AmazonWebServiceRequest request) {
+        if (request instanceof GetItemRequest) {
+            GetItemRequest get = (GetItemRequest) request;
+            if (get.getReturnConsumedCapacity() == null) {
+                get.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            }
+        } else if (request instanceof PutItemRequest) {
+            PutItemRequest put = (PutItemRequest) request;
+            if (put.getReturnConsumedCapacity() == null) {
+                put.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            }
+        } else if (request instanceof UpdateItemRequest) {
+            UpdateItemRequest update = (UpdateItemRequest) request;
+            if (update.getReturnConsumedCapacity() == null) {
+                update.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            }
+        } else if (request instanceof DeleteItemRequest) {
+            DeleteItemRequest delete = (DeleteItemRequest) request;
+            if (delete.getReturnConsumedCapacity() == null) {
+                delete.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            }
+        } else if (request instanceof QueryRequest) {
+            QueryRequest query = (QueryRequest) request;
+            if (query.getReturnConsumedCapacity() == null) {
+                query.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            }
+        } else if (request instanceof ScanRequest) {
+            ScanRequest scan = (ScanRequest) request;
+            if (scan.getReturnConsumedCapacity() == null) {
+                scan.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            }
+        } else if (request instanceof BatchGetItemRequest) {
+            BatchGetItemRequest batchGet = (BatchGetItemRequest) request;
+            if (batchGet.getReturnConsumedCapacity() == null) {
+                batchGet.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            }
+        } else if (request instanceof BatchWriteItemRequest) {
+            BatchWriteItemRequest batchWrite = (BatchWriteItemRequest) request;
+            if (batchWrite.getReturnConsumedCapacity() == null) {
+                batchWrite.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+            }
+        }
+    }
+
+    private void recordKeys(AmazonWebServiceRequest request) {
+        if (request instanceof GetItemRequest) {
+            recordKey(((GetItemRequest) request).getTableName(), ((GetItemRequest) request).getKey());
+        } else if (request instanceof PutItemRequest) {
+            recordKey(((PutItemRequest) request).getTableName(), ((PutItemRequest) request).getItem());
+        } else if (request instanceof UpdateItemRequest) {
+            recordKey(((UpdateItemRequest) request).getTableName(), ((UpdateItemRequest) request).getKey());
+        } else if (request instanceof DeleteItemRequest) {
+            recordKey(((DeleteItemRequest) request).getTableName(), ((DeleteItemRequest) request).getKey());
+        } else if (request instanceof BatchGetItemRequest) {
+            for (Map.Entry<String, KeysAndAttributes> table : ((BatchGetItemRequest) request).getRequestItems().entrySet()) {
+                for (Map<String, AttributeValue> key : table.getValue().getKeys()) {
+                    recordKey(table.getKey(), key);
+                }
+            }
+        } else if (request instanceof BatchWriteItemRequest) {
+            for (Map.Entry<String, List<WriteRequest>> table : ((BatchWriteItemRequest) request).getRequestItems().entrySet()) {
+                for (WriteRequest write : table.getValue()) {
+                    recordKey(table.getKey(), write.getPutRequest() != null
+                            ? write.getPutRequest().getItem()
+                            : write.getDeleteRequest().getKey());
+                }
+            }
+        }
+    }
+
+    private void recordKey(String tableName, Map<String, AttributeValue> key) {
+        String keyAttributeName = tableName != null ? this.hotKeyAttributes.get(tableName) : null;
+        if (keyAttributeName == null || key == null) {
+            return;
+        }
+        AttributeValue value = key.get(keyAttributeName);
+        HotKeyTracker tracker = this.hotKeys.get(tableName);
+        if (value != null && tracker != null) {
+            String recorded = value.getS() != null ? value.getS() : value.getN();
+            if (recorded != null) {
+                tracker.record(this.hashedHotKeyTables.contains(tableName) ? hash(recorded) : recorded);
+            }
+        }
+    }
+
+    private static String hash(String key) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        char[] hex = new char[HASHED_KEY_BYTES * 2];
+        for (int i = 0; i < HASHED_KEY_BYTES; i++) {
+            hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private void recordResult(AmazonWebServiceRequest request, Object result, String tableName, String operation) {
+        if (result instanceof GetItemResult) {
+            recordCapacity(((GetItemResult) result).getConsumedCapacity(), tableName, operation);
+            recordItemSize(((GetItemResult) result).getItem(), tableName, operation);
+        } else if (result instanceof PutItemResult) {
+            recordCapacity(((PutItemResult) result).getConsumedCapacity(), tableName, operation);
+            recordItemSize(((PutItemRequest) request).getItem(), tableName, operation);
+        } else if (result instanceof UpdateItemResult) {
+            recordCapacity(((UpdateItemResult) result).getConsumedCapacity(), tableName, operation);
+            // an update returns no attributes unless asked to, size what it writes
+            this.metrics.recordItemSize(tableName, operation, size((UpdateItemRequest) request));
+        } else if (result instanceof DeleteItemResult) {
+            recordCapacity(((DeleteItemResult) result).getConsumedCapacity(), tableName, operation);
+        } else if (result instanceof QueryResult) {
+            recordCapacity(((QueryResult) result).getConsumedCapacity(), tableName, operation);
+            recordItemSizes(((QueryResult) result).getItems(), tableName, operation);
+        } else if (result instanceof ScanResult) {
+            recordCapacity(((ScanResult) result).getConsumedCapacity(), tableName, operation);
+            recordItemSizes(((ScanResult) result).getItems(), tableName, operation);
+        } else if (result instanceof BatchGetItemResult) {
+            BatchGetItemResult batchGet = (BatchGetItemResult) result;
+            recordCapacities(batchGet.getConsumedCapacity(), operation);
+            if (batchGet.getResponses() != null) {
+                for (Map.Entry<String, List<Map<String, AttributeValue>>> table : batchGet.getResponses().entrySet()) {
+                    recordItemSizes(table.getValue(), table.getKey(), operation);
+                }
+            }
+        } else if (result instanceof BatchWriteItemResult) {
+            BatchWriteItemResult batchWrite = (BatchWriteItemResult) result;
+            recordCapacities(batchWrite.getConsumedCapacity(), operation);
+            Map<String, List<WriteRequest>> unprocessed = batchWrite.getUnprocessedItems();
+            if (unprocessed == null || unprocessed.isEmpty()) {
+                for (Map.Entry<String, List<WriteRequest>> table : ((BatchWriteItemRequest) request).getRequestItems().entrySet()) {
+                    for (WriteRequest write : table.getValue()) {
+                        if (write.getPutRequest() != null) {
+                            recordItemSize(write.getPutRequest().getItem(), table.getKey(), operation);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void recordCapacities(List<ConsumedCapacity> capacities, String operation) {
+        if (capacities != null) {
+            for (ConsumedCapacity capacity : capacities) {
+                recordCapacity(capacity, capacity.getTableName(), operation);
+            }
+        }
+    }
+
+    private void recordCapacity(ConsumedCapacity capacity, String tableName, String operation) {
+        if (capacity != null && capacity.getCapacityUnits() != null) {
+            this.metrics.recordConsumedCapacity(capacity.getTableName() != null ? capacity.getTableName() : tableName,
+                    operation, capacity.getCapacityUnits());
+        }
+    }
+
+    private void recordItemSizes(List<Map<String, AttributeValue>> items, String tableName, String operation) {
+        if (items != null) {
+            for (Map<String, AttributeValue> item : items) {
+                recordItemSize(item, tableName, operation);
+            }
+        }
+    }
+
+    private void recordItemSize(Map<String, AttributeValue> item, String tableName, String operation) {
+        if (item != null) {
+            this.metrics.recordItemSize(tableName, operation, size(item));
+        }
+    }
+
+    private String operation(AmazonWebServiceRequest request) {
+        return this.operations.computeIfAbsent(request.getClass(), type -> {
+            String name = type.getSimpleName();
+            return name.endsWith("Request") ? name.substring(0, name.length() - "Request".length()) : name;
+        });
+    }
+
+    /**
+     * Returns the size of an item as DynamoDB computes it for capacity and limits: the
+     * UTF-8 length of attribute names and strings, the length of binaries, about half the
+     * digits of numbers, and three bytes plus a byte per element for lists and maps.
+     */
+    private static int size(Map<String, AttributeValue> item) {
+        int size = 0;
+        for (Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+            size += utf8Length(attribute.getKey()) + size(attribute.getValue());
+        }
+        return size;
+    }
+
+    /**
+     * Returns the size of the key and the values an update writes, as the size of the
+     * updated item is not known.
+     */
+    private static int size(UpdateItemRequest update) {
+        int size = update.getKey() != null ? size(update.getKey()) : 0;
+        if (update.getExpressionAttributeValues() != null) {
+            for (AttributeValue value : update.getExpressionAttributeValues().values()) {
+                size += size(value);
+            }
+        }
+        if (update.getAttributeUpdates() != null) {
+            for (Map.Entry<String, AttributeValueUpdate> attribute : update.getAttributeUpdates().entrySet()) {
+                size += utf8Length(attribute.getKey());
+                if (attribute.getValue().getValue() != null) {
+                    size += size(attribute.getValue().getValue());
+                }
+            }
+        }
+        return size;
+    }
+
+    private static int size(AttributeValue value) {
+        if (value.getS() != null) {
+            return utf8Length(value.getS());
+        } else if (value.getN() != null) {
+            return numberSize(value.getN());
+        } else if (value.getB() != null) {
+            return value.getB().remaining();
+        } else if (value.getSS() != null) {
+            int size = 0;
+            for (String element : value.getSS()) {
+                size += utf8Length(element);
+            }
+            return size;
+        } else if (value.getNS() != null) {
+            int size = 0;
+            for (String element : value.getNS()) {
+                size += numberSize(element);
+            }
+            return size;
+        } else if (value.getBS() != null) {
+            int size = 0;
+            for (ByteBuffer element : value.getBS()) {
+                size += element.remaining();
+            }
+            return size;
+        } else if (value.getM() != null) {
+            return 3 + value.getM().size() + size(value.getM());
+        } else if (value.getL() != null) {
+            int size = 3 + value.getL().size();
+            for (AttributeValue element : value.getL()) {
+                size += size(element);
+            }
+            return size;
+        }
+        // BOOL or NULL
+        return 1;
+    }
+
+    private static int numberSize(String number) {
+        return number.length() / 2 + 1;
+    }
+
+    private static int utf8Length(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
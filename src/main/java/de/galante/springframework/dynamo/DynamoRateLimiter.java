@@ -0,0 +1,372 @@
+package de.galante.springframework.dynamo;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the requests a DynamoDB client sends to each table once the table is
+ * throttled, and rejects requests to a table that keeps failing, so that callers fail
+ * fast instead of piling up retries during capacity events.
+ * <p>
+ * Requests to a table are unlimited until it is throttled. The rate of requests then
+ * drops to a fraction of the rate that was sent, again on every further throttle, and
+ * grows back by a tenth every second without throttles until the limit is lifted. A
+ * request waits for its turn up to the maximum wait and is rejected with a
+ * {@link DynamoRequestRejectedException} beyond. Retries take a turn as well, and are
+ * given up rather than waited for, so the client's retries cannot multiply the load.
+ * <p>
+ * After a number of consecutive calls to a table failed with server errors or without a
+ * response, requests to it are rejected until the open time has passed, then a single
+ * request probes whether the table is back.
+ * <p>
+ * The limiter is registered on the client like the {@link DynamoMetricsHandler}, and
+ * repositories can shed their non-essential writes while a table is
+ * {@link #isDegraded(String) degraded}.
+ *
+ * @author Victor Galante
+ */
+public class DynamoRateLimiter extends RequestHandler2 {
+
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 100;
+    public static final double DEFAULT_MIN_RATE = 5;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 10;
+    public static final long DEFAULT_OPEN_MILLIS = 5000;
+
+    private static final Log logger = LogFactory.getLog(DynamoRateLimiter.class);
+
+    private static final double DECREASE_FACTOR = 0.7;
+    private static final double INCREASE_FACTOR = 1.1;
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long INCREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ConcurrentMap<String, TableLimiter> tables = new ConcurrentHashMap<String, TableLimiter>();
+    private volatile long maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_WAIT_MILLIS);
+    private volatile double minRate = DEFAULT_MIN_RATE;
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private volatile long openNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_OPEN_MILLIS);
+
+    /**
+     * Set how long a request may wait for its turn on a throttled table before it is
+     * rejected. The default is {@value #DEFAULT_MAX_WAIT_MILLIS} milliseconds.
+     *
+     * @param maxWaitMillis the maximum wait in milliseconds
+     */
+    public void setMaxWaitMillis(long maxWaitMillis) {
+        Assert.isTrue(maxWaitMillis >= 0, "Maximum wait must not be negative");
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /**
+     * Set the rate of requests per second a throttled table is never limited below. The
+     * default is {@value #DEFAULT_MIN_RATE}.
+     *
+     * @param minRate the minimum rate in requests per second
+     */
+    public void setMinRate(double minRate) {
+        Assert.isTrue(minRate > 0, "Minimum rate must be positive");
+        this.minRate = minRate;
+    }
+
+    /**
+     * Set the number of consecutive failed calls after which requests to a table are
+     * rejected. The default is {@value #DEFAULT_FAILURE_THRESHOLD}.
+     *
+     * @param failureThreshold the number of consecutive failures
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        Assert.isTrue(failureThreshold > 0, "Failure threshold must be positive");
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * Set how long requests to a failing table are rejected before one is let through
+     * to probe it. The default is {@value #DEFAULT_OPEN_MILLIS} milliseconds.
+     *
+     * @param openMillis the open time in milliseconds
+     */
+    public void setOpenMillis(long openMillis) {
+        Assert.isTrue(openMillis > 0, "Open time must be positive");
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    /**
+     * Whether requests to a table are currently limited or rejected.
+     *
+     * @param tableName the table name
+     */
+    public boolean isDegraded(String tableName) {
+        TableLimiter table = this.tables.get(tableName);
+        return table != null && table.isDegraded(System.nanoTime());
+    }
+
+    /**
+     * Returns a retry policy retrying like the given one, as long as the table of the
+     * request has a turn for the retry within the maximum wait and is not failing.
+     *
+     * @param retryPolicy the retry policy to decorate
+     */
+    public RetryPolicy retryPolicy(RetryPolicy retryPolicy) {
+        RetryPolicy.RetryCondition retryCondition = retryPolicy.getRetryCondition();
+        return new RetryPolicy((request, exception, retriesAttempted) -> {
+            TableLimiter table = table(DynamoRequests.tableName(request));
+            long now = System.nanoTime();
+            if (DynamoRequests.isThrottle(exception)) {
+                table.throttled(now);
+            }
+            return retryCondition.shouldRetry(request, exception, retriesAttempted) && table.tryRetry(now);
+        }, retryPolicy.getBackoffStrategy(), retryPolicy.getMaxErrorRetry(), retryPolicy.isMaxErrorRetryInClientConfigHonored());
+    }
+
+    @Override
+    public AmazonWebServiceRequest beforeExecution(AmazonWebServiceRequest request) {
+        long wait = table(DynamoRequests.tableName(request)).acquire(System.nanoTime());
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DynamoRequestRejectedException("Interrupted while waiting to send a request");
+            }
+        }
+        return request;
+    }
+
+    @Override
+    public void afterResponse(Request<?> request, Response<?> response) {
+        TableLimiter table = table(DynamoRequests.tableName(request.getOriginalRequest()));
+        long now = System.nanoTime();
+        table.succeeded();
+        // unprocessed batch items are throttled items
+        Object result = response.getAwsResponse();
+        if (result instanceof BatchWriteItemResult && !isEmpty(((BatchWriteItemResult) result).getUnprocessedItems())
+                || result instanceof BatchGetItemResult && !isEmpty(((BatchGetItemResult) result).getUnprocessedKeys())) {
+            table.throttled(now);
+        }
+    }
+
+    @Override
+    public void afterError(Request<?> request, Response<?> response, Exception e) {
+        TableLimiter table = table(DynamoRequests.tableName(request.getOriginalRequest()));
+        long now = System.nanoTime();
+        if (DynamoRequests.isThrottle(e)) {
+            table.throttled(now);
+        }
+        if (isFailure(e)) {
+            table.failed(now);
+        } else {
+            // the table answered, for example with a failed condition
+            table.succeeded();
+        }
+    }
+
+    private TableLimiter table(String tableName) {
+        TableLimiter table = this.tables.get(tableName);
+        if (table == null) {
+            TableLimiter created = new TableLimiter(tableName);
+            table = this.tables.putIfAbsent(tableName, created);
+            if (table == null) {
+                table = created;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Whether a call failed because DynamoDB is unhealthy: a server error, or no response
+     * at all. Throttles are left to the rate limit.
+     */
+    private static boolean isFailure(Exception e) {
+        if (e instanceof AmazonServiceException) {
+            return ((AmazonServiceException) e).getStatusCode() >= 500 && !DynamoRequests.isThrottle(e);
+        }
+        return e instanceof AmazonClientException && !(e instanceof DynamoRequestRejectedException);
+    }
+
+    private static boolean isEmpty(Map<?, ?> map) {
+        return map == null || map.isEmpty();
+    }
+
+    /**
+     * The token bucket and failure count of a table. A request takes a token, and waits
+     * for it if the bucket is empty, so tokens may go negative by the tokens promised to
+     * waiting requests.
+     */
+    private final class TableLimiter {
+
+        private final String tableName;
+
+        private boolean limited;
+        private double rate;
+        private double ceiling;
+        private double tokens;
+        private long refilledAt;
+        private long adjustedAt;
+
+        private long windowStartedAt = System.nanoTime();
+        private int windowCount;
+        private int lastWindowCount;
+
+        private int consecutiveFailures;
+        private long openUntil;
+
+        TableLimiter(String tableName) {
+            this.tableName = tableName;
+        }
+
+        /**
+         * Takes a turn to send a request.
+         *
+         * @return the nanoseconds to wait before sending
+         */
+        synchronized long acquire(long now) {
+            if (this.consecutiveFailures >= DynamoRateLimiter.this.failureThreshold) {
+                if (now - this.openUntil < 0) {
+                    throw new DynamoRequestRejectedException("Table " + this.tableName + " is unavailable");
+                }
+                // let this request probe the table, and the next one only after the open time
+                this.openUntil = now + DynamoRateLimiter.this.openNanos;
+            }
+            long wait = 0;
+            if (isLimited(now)) {
+                refill(now);
+                wait = waitFor();
+                if (wait > DynamoRateLimiter.this.maxWaitNanos) {
+                    throw new DynamoRequestRejectedException("Table " + this.tableName + " is throttled, limited to "
+                            + Math.round(this.rate) + " requests per second");
+                }
+                this.tokens--;
+            }
+            count(now);
+            return wait;
+        }
+
+        /**
+         * Takes a turn for a retry if it comes within the maximum wait. The client backs
+         * off before retrying, so the retry does not wait for its turn.
+         */
+        synchronized boolean tryRetry(long now) {
+            if (this.consecutiveFailures >= DynamoRateLimiter.this.failureThreshold && now - this.openUntil < 0) {
+                return false;
+            }
+            if (isLimited(now)) {
+                refill(now);
+                if (waitFor() > DynamoRateLimiter.this.maxWaitNanos) {
+                    return false;
+                }
+                this.tokens--;
+            }
+            count(now);
+            return true;
+        }
+
+        synchronized void throttled(long now) {
+            if (this.limited && now - this.adjustedAt < DECREASE_INTERVAL_NANOS) {
+                // throttles of requests sent at the rate that was just decreased
+                return;
+            }
+            if (!this.limited) {
+                double sent = Math.max(sentRate(now), DynamoRateLimiter.this.minRate);
+                this.limited = true;
+                this.rate = sent;
+                this.ceiling = 2 * sent;
+                this.tokens = 0;
+                this.refilledAt = now;
+                logger.info("Table " + this.tableName + " is throttled, limiting requests");
+            } else {
+                refill(now);
+            }
+            this.rate = Math.max(DynamoRateLimiter.this.minRate, this.rate * DECREASE_FACTOR);
+            this.adjustedAt = now;
+        }
+
+        synchronized void succeeded() {
+            this.consecutiveFailures = 0;
+        }
+
+        synchronized void failed(long now) {
+            this.consecutiveFailures++;
+            if (this.consecutiveFailures >= DynamoRateLimiter.this.failureThreshold) {
+                if (this.consecutiveFailures == DynamoRateLimiter.this.failureThreshold) {
+                    logger.warn("Table " + this.tableName + " failed " + this.consecutiveFailures
+                            + " consecutive calls, rejecting requests");
+                }
+                this.openUntil = now + DynamoRateLimiter.this.openNanos;
+            }
+        }
+
+        synchronized boolean isDegraded(long now) {
+            return isLimited(now) || this.consecutiveFailures >= DynamoRateLimiter.this.failureThreshold;
+        }
+
+        /**
+         * Grows the rate for every second without throttles, and lifts the limit once it
+         * is well above the rate that was throttled.
+         */
+        private boolean isLimited(long now) {
+            if (this.limited) {
+                long intervals = (now - this.adjustedAt) / INCREASE_INTERVAL_NANOS;
+                if (intervals > 0) {
+                    refill(now);
+                    this.rate *= Math.pow(INCREASE_FACTOR, intervals);
+                    this.adjustedAt += intervals * INCREASE_INTERVAL_NANOS;
+                    if (this.rate >= this.ceiling) {
+                        this.limited = false;
+                        logger.info("Table " + this.tableName + " recovered, no longer limiting requests");
+                    }
+                }
+            }
+            return this.limited;
+        }
+
+        /**
+         * Adds the tokens accrued since the last refill, at most a second's worth.
+         */
+        private void refill(long now) {
+            double burst = Math.max(1, this.rate);
+            this.tokens = Math.min(burst, this.tokens + (now - this.refilledAt) * this.rate / TimeUnit.SECONDS.toNanos(1));
+            this.refilledAt = now;
+        }
+
+        private long waitFor() {
+            return this.tokens >= 1 ? 0 : (long) ((1 - this.tokens) / this.rate * TimeUnit.SECONDS.toNanos(1));
+        }
+
+        private void count(long now) {
+            rollWindow(now);
+            this.windowCount++;
+        }
+
+        /**
+         * Returns the requests sent per second, measured over the last full second.
+         */
+        private double sentRate(long now) {
+            rollWindow(now);
+            return Math.max(this.lastWindowCount, this.windowCount);
+        }
+
+        private void rollWindow(long now) {
+            long elapsed = now - this.windowStartedAt;
+            if (elapsed >= RATE_WINDOW_NANOS) {
+                this.lastWindowCount = elapsed < 2 * RATE_WINDOW_NANOS ? this.windowCount : 0;
+                this.windowCount = 0;
+                this.windowStartedAt = now;
+            }
+        }
+    }
+}
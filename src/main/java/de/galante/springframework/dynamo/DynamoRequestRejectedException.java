@@ -0,0 +1,24 @@
+package de.galante.springframework.dynamo;
+
+import com.amazonaws.AmazonClientException;
+
+/**
+ * Thrown by a {@link DynamoRateLimiter} instead of sending a request, because its table
+ * is throttled beyond the permitted wait or considered unavailable.
+ *
+ * @author Victor Galante
+ */
+public class DynamoRequestRejectedException extends AmazonClientException {
+
+    public DynamoRequestRejectedException(String message) {
+        super(message);
+    }
+
+    /**
+     * Rejected requests are not retried, the table needs to recover first.
+     */
+    @Override
+    public boolean isRetryable() {
+        return false;
+    }
+}
@@ -0,0 +1,59 @@
+package de.galante.springframework.dynamo;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.dynamodbv2.model.*;
+
+import java.util.Map;
+
+/**
+ * Inspects requests and failures seen by the request handlers of this package.
+ *
+ * @author Victor Galante
+ */
+final class DynamoRequests {
+
+    private DynamoRequests() {
+    }
+
+    /**
+     * Returns the table a request addresses, or an empty string if it addresses none or
+     * several tables.
+     */
+    static String tableName(AmazonWebServiceRequest request) {
+        String tableName = null;
+        if (request instanceof GetItemRequest) {
+            tableName = ((GetItemRequest) request).getTableName();
+        } else if (request instanceof PutItemRequest) {
+            tableName = ((PutItemRequest) request).getTableName();
+        } else if (request instanceof UpdateItemRequest) {
+            tableName = ((UpdateItemRequest) request).getTableName();
+        } else if (request instanceof DeleteItemRequest) {
+            tableName = ((DeleteItemRequest) request).getTableName();
+        } else if (request instanceof QueryRequest) {
+            tableName = ((QueryRequest) request).getTableName();
+        } else if (request instanceof ScanRequest) {
+            tableName = ((ScanRequest) request).getTableName();
+        } else if (request instanceof DescribeTableRequest) {
+            tableName = ((DescribeTableRequest) request).getTableName();
+        } else if (request instanceof BatchGetItemRequest) {
+            tableName = singleTable(((BatchGetItemRequest) request).getRequestItems());
+        } else if (request instanceof BatchWriteItemRequest) {
+            tableName = singleTable(((BatchWriteItemRequest) request).getRequestItems());
+        }
+        return tableName != null ? tableName : "";
+    }
+
+    /**
+     * Whether an attempt failed because the table's throughput or the account's request
+     * rate was exceeded.
+     */
+    static boolean isThrottle(Exception e) {
+        return e instanceof AmazonServiceException && RetryUtils.isThrottlingException((AmazonServiceException) e);
+    }
+
+    private static String singleTable(Map<String, ?> requestItems) {
+        return requestItems != null && requestItems.size() == 1 ? requestItems.keySet().iterator().next() : null;
+    }
+}
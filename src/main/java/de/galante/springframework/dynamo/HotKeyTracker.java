@@ -0,0 +1,79 @@
+package de.galante.springframework.dynamo;
+
+import java.util.*;
+
+/**
+ * Estimates the most frequently accessed keys of a table in bounded memory, using the
+ * Space-Saving algorithm: once the capacity is reached, a new key replaces the least
+ * counted one and inherits its count. Keys accessed more often than the total number of
+ * accesses divided by the capacity are always tracked, and counts overestimate by at
+ * most the count they inherited.
+ *
+ * @author Victor Galante
+ */
+class HotKeyTracker {
+
+    private final int capacity;
+    private final Map<String, Counter> counters = new HashMap<String, Counter>();
+    private final TreeSet<Counter> byCount = new TreeSet<Counter>();
+    private long sequence;
+
+    HotKeyTracker(int capacity) {
+        this.capacity = capacity;
+    }
+
+    synchronized void record(String key) {
+        Counter counter = this.counters.get(key);
+        if (counter == null) {
+            long count = 0;
+            if (this.counters.size() >= this.capacity) {
+                Counter evicted = this.byCount.pollFirst();
+                this.counters.remove(evicted.key);
+                count = evicted.count;
+            }
+            counter = new Counter(key, count, this.sequence++);
+            this.counters.put(key, counter);
+        } else {
+            this.byCount.remove(counter);
+        }
+        counter.count++;
+        this.byCount.add(counter);
+    }
+
+    /**
+     * Returns up to the given number of keys with their estimated access counts, most
+     * accessed first.
+     */
+    synchronized LinkedHashMap<String, Long> top(int limit) {
+        LinkedHashMap<String, Long> top = new LinkedHashMap<String, Long>();
+        for (Iterator<Counter> counters = this.byCount.descendingIterator(); counters.hasNext() && top.size() < limit; ) {
+            Counter counter = counters.next();
+            top.put(counter.key, counter.count);
+        }
+        return top;
+    }
+
+    synchronized void clear() {
+        this.counters.clear();
+        this.byCount.clear();
+    }
+
+    private static final class Counter implements Comparable<Counter> {
+
+        private final String key;
+        private final long sequence;
+        private long count;
+
+        Counter(String key, long count, long sequence) {
+            this.key = key;
+            this.count = count;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Counter other) {
+            int byCount = Long.compare(this.count, other.count);
+            return byCount != 0 ? byCount : Long.compare(this.sequence, other.sequence);
+        }
+    }
+}
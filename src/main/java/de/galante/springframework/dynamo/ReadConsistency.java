@@ -0,0 +1,40 @@
+package de.galante.springframework.dynamo;
+
+/**
+ * How a repository reads items. Strongly consistent reads see every completed write but
+ * consume twice the read capacity of eventually consistent ones, which may miss writes
+ * of about the last second.
+ *
+ * @author Victor Galante
+ */
+public enum ReadConsistency {
+
+    /**
+     * Every read is eventually consistent.
+     */
+    EVENTUAL,
+
+    /**
+     * Every read is strongly consistent.
+     */
+    STRONG,
+
+    /**
+     * Reads are eventually consistent, except reads of keys this node wrote recently,
+     * which are strongly consistent so a write is never followed by a stale read on the
+     * node that made it. Recent writes are only known to the node that made them, so
+     * reads on other nodes may still be stale; this only reads your writes if the
+     * requests of a user or session are routed to the same node.
+     */
+    READ_YOUR_WRITES;
+
+    /**
+     * Whether a read of a key has to be strongly consistent.
+     *
+     * @param recentWrites the keys written recently
+     * @param key          the key to read
+     */
+    public boolean isConsistentRead(RecentWrites recentWrites, String key) {
+        return this == STRONG || this == READ_YOUR_WRITES && recentWrites.contains(key);
+    }
+}
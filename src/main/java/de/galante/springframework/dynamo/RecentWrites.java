@@ -0,0 +1,67 @@
+package de.galante.springframework.dynamo;
+
+import org.springframework.util.Assert;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the keys written within a short window, during which eventually consistent
+ * reads may still miss the write. Once the maximum size is reached the oldest writes are
+ * forgotten early.
+ *
+ * @author Victor Galante
+ * @see ReadConsistency#READ_YOUR_WRITES
+ */
+public class RecentWrites {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+    public static final long DEFAULT_WINDOW_MILLIS = 2000;
+
+    private final long windowMillis;
+    private final Map<String, Long> writtenAt;
+
+    public RecentWrites() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_WINDOW_MILLIS);
+    }
+
+    /**
+     * @param maximumSize  the maximum number of remembered keys
+     * @param windowMillis how long a write is remembered
+     */
+    public RecentWrites(int maximumSize, long windowMillis) {
+        Assert.isTrue(maximumSize > 0, "Maximum size must be positive");
+        Assert.isTrue(windowMillis > 0, "Window must be positive");
+        this.windowMillis = windowMillis;
+        this.writtenAt = new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maximumSize
+                        || System.currentTimeMillis() - eldest.getValue() >= RecentWrites.this.windowMillis;
+            }
+        };
+    }
+
+    /**
+     * Records a write of a key, or of its deletion.
+     */
+    public void written(String key) {
+        long now = System.currentTimeMillis();
+        synchronized (this.writtenAt) {
+            // move the key to the end, keeping the map ordered by write time
+            this.writtenAt.remove(key);
+            this.writtenAt.put(key, now);
+        }
+    }
+
+    /**
+     * Whether a key was written within the window.
+     */
+    public boolean contains(String key) {
+        Long writtenAt;
+        synchronized (this.writtenAt) {
+            writtenAt = this.writtenAt.get(key);
+        }
+        return writtenAt != null && System.currentTimeMillis() - writtenAt < this.windowMillis;
+    }
+}
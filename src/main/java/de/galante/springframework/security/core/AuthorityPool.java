@@ -0,0 +1,86 @@
+package de.galante.springframework.security.core;
+
+import org.springframework.security.core.GrantedAuthority;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Canonical authorities and authority sets shared by all loaded users and clients.
+ * <p>
+ * Authority sets are keyed by their stored form, so loading a principal with a known set
+ * of roles allocates nothing. Pooled authorities are {@link DynamoAuthority} instances
+ * that refuse to be modified, and pooled sets are unmodifiable. Once the pool holds
+ * {@value #MAX_POOLED_AUTHORITIES} authorities or {@value #MAX_POOLED_SETS} sets, further
+ * ones are built per load.
+ *
+ * @author Victor Galante
+ */
+final class AuthorityPool {
+
+    private static final int MAX_POOLED_AUTHORITIES = 10000;
+    private static final int MAX_POOLED_SETS = 10000;
+
+    private static final ConcurrentMap<String, GrantedAuthority> authorities = new ConcurrentHashMap<String, GrantedAuthority>();
+    private static final ConcurrentMap<Object, Set<GrantedAuthority>> sets = new ConcurrentHashMap<Object, Set<GrantedAuthority>>();
+
+    private AuthorityPool() {
+    }
+
+    static GrantedAuthority authority(String name) {
+        GrantedAuthority authority = authorities.get(name);
+        if (authority != null) {
+            return authority;
+        }
+        authority = new PooledAuthority(name);
+        if (authorities.size() >= MAX_POOLED_AUTHORITIES) {
+            return authority;
+        }
+        GrantedAuthority pooled = authorities.putIfAbsent(name, authority);
+        return pooled != null ? pooled : authority;
+    }
+
+    /**
+     * Returns the canonical unmodifiable authority set stored as {@code key}.
+     *
+     * @param key   the stored form of the set, must be immutable
+     * @param names parses the stored form into authority names
+     */
+    static <K> Set<GrantedAuthority> authorities(K key, Function<K, Collection<String>> names) {
+        Set<GrantedAuthority> pooled = sets.get(key);
+        if (pooled != null) {
+            return pooled;
+        }
+        Collection<String> parsed = names.apply(key);
+        Set<GrantedAuthority> set = new LinkedHashSet<GrantedAuthority>(parsed.size() * 2);
+        for (String name : parsed) {
+            set.add(authority(name));
+        }
+        set = Collections.unmodifiableSet(set);
+        if (sets.size() >= MAX_POOLED_SETS) {
+            return set;
+        }
+        pooled = sets.putIfAbsent(key, set);
+        return pooled != null ? pooled : set;
+    }
+
+    /**
+     * A shared authority, equal to a {@link DynamoAuthority} of the same name.
+     */
+    private static final class PooledAuthority extends DynamoAuthority {
+
+        PooledAuthority(String authority) {
+            super(authority);
+        }
+
+        @Override
+        public void setAuthority(String authority) {
+            throw new UnsupportedOperationException("Loaded authorities are shared and must not be modified");
+        }
+    }
+}
@@ -3,31 +3,69 @@ package de.galante.springframework.security.core;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTypeConverter;
 import org.springframework.security.core.GrantedAuthority;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
-
-import static java.util.Arrays.*;
-import static java.util.stream.Collectors.joining;
-import static java.util.stream.Collectors.toCollection;
+import java.util.Collections;
+import java.util.List;
 
 /**
- * Saves authorities as list of comma separated values in DynamoDB
+ * Saves authorities as list of semicolon separated values in DynamoDB. Semicolons and
+ * backslashes in authorities are escaped with a backslash, an empty list is not stored,
+ * so mappings return an empty collection for a missing attribute, like {@code DynamoUser}.
+ * <p>
+ * Loaded authorities are unmodifiable and shared between principals with the same roles.
  * @author victor.galante
  */
 public class GrantedAuthorityConverter implements DynamoDBTypeConverter<String, Collection<GrantedAuthority>> {
 
-    private static final String SEPARATOR = ";";
+    private static final char SEPARATOR = ';';
+    private static final char ESCAPE = '\\';
 
     @Override
     public String convert(Collection<GrantedAuthority> toConvert) {
-        return toConvert.stream().map(GrantedAuthority::getAuthority).collect(joining(";"));
-
+        if (toConvert.isEmpty()) {
+            return null;
+        }
+        StringBuilder converted = new StringBuilder();
+        for (GrantedAuthority authority : toConvert) {
+            if (converted.length() > 0) {
+                converted.append(SEPARATOR);
+            }
+            String name = authority.getAuthority();
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (c == SEPARATOR || c == ESCAPE) {
+                    converted.append(ESCAPE);
+                }
+                converted.append(c);
+            }
+        }
+        return converted.toString();
     }
 
     @Override
     public Collection<GrantedAuthority> unconvert(String toUnconvert) {
-        return stream(toUnconvert.split(SEPARATOR))
-                .map(DynamoAuthority::new)
-                .collect(toCollection(HashSet::new));
+        return AuthorityPool.authorities(toUnconvert, GrantedAuthorityConverter::split);
+    }
+
+    private static List<String> split(String converted) {
+        if (converted.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> names = new ArrayList<String>(4);
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < converted.length(); i++) {
+            char c = converted.charAt(i);
+            if (c == ESCAPE && i + 1 < converted.length()) {
+                name.append(converted.charAt(++i));
+            } else if (c == SEPARATOR) {
+                names.add(name.toString());
+                name.setLength(0);
+            } else {
+                name.append(c);
+            }
+        }
+        names.add(name.toString());
+        return names;
     }
 }
@@ -0,0 +1,38 @@
+package de.galante.springframework.security.core;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTypeConverter;
+import org.springframework.security.core.GrantedAuthority;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Saves authorities as a DynamoDB string set, an empty set is not stored, so mappings
+ * return an empty collection for a missing attribute. An alternative to
+ * {@link GrantedAuthorityConverter} for new mappings, the two formats are not
+ * interchangeable on an existing attribute.
+ * <p>
+ * Loaded authorities are unmodifiable and shared between principals with the same roles.
+ * @author Victor Galante
+ */
+public class GrantedAuthoritySetConverter implements DynamoDBTypeConverter<Set<String>, Collection<GrantedAuthority>> {
+
+    @Override
+    public Set<String> convert(Collection<GrantedAuthority> toConvert) {
+        if (toConvert.isEmpty()) {
+            return null;
+        }
+        Set<String> converted = new LinkedHashSet<String>(toConvert.size() * 2);
+        for (GrantedAuthority authority : toConvert) {
+            converted.add(authority.getAuthority());
+        }
+        return converted;
+    }
+
+    @Override
+    public Collection<GrantedAuthority> unconvert(Set<String> toUnconvert) {
+        return AuthorityPool.authorities(Collections.unmodifiableSet(toUnconvert), names -> names);
+    }
+}
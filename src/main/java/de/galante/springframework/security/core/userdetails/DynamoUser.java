@@ -12,16 +12,19 @@ import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.userdetails.UserDetails;
 
 import java.util.Collection;
+import java.util.Collections;
 
 /**
  * DynamoDB user mapping
  * @author victor.galante
  */
 @Data
-@DynamoDBTable(tableName = "authorization_user")
+@DynamoDBTable(tableName = DynamoUser.TABLE_NAME)
 @JsonInclude(JsonInclude.Include.NON_NULL)
 public class DynamoUser implements UserDetails {
 
+    public static final String TABLE_NAME = "authorization_user";
+
     @DynamoDBAttribute
     private boolean isEnabled;
 
@@ -42,4 +45,12 @@ public class DynamoUser implements UserDetails {
 
     @DynamoDBTypeConverted(converter = GrantedAuthorityConverter.class)
     private Collection<? extends GrantedAuthority> authorities;
+
+    /**
+     * The authorities of the user, empty rather than {@code null} when none are stored,
+     * since an empty collection is not saved.
+     */
+    public Collection<? extends GrantedAuthority> getAuthorities() {
+        return authorities != null ? authorities : Collections.<GrantedAuthority>emptySet();
+    }
 }
@@ -0,0 +1,193 @@
+package de.galante.springframework.security.oauth2.provider;
+
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.common.util.SerializationUtils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact, versioned binary form of an {@link OAuth2Authentication}.
+ * <p>
+ * Only the authorization request (client id, request parameters, scopes, resource ids,
+ * redirect uri, response types, approval, client authorities and extensions) and the
+ * name and authorities of the user are kept. A decoded user authentication is a
+ * {@link UsernamePasswordAuthenticationToken} with the user name as principal, like the
+ * ones restored from JWT access tokens.
+ * <p>
+ * Strings are written as their UTF-8 bytes behind a variable length size. Values written
+ * with Java serialization are still decoded.
+ *
+ * @author Victor Galante
+ */
+public class OAuth2AuthenticationCodec {
+
+    private static final byte VERSION_1 = 1;
+    private static final byte SERIALIZED_STREAM = (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8);
+    private static final String NO_CREDENTIALS = "N/A";
+
+    public byte[] encode(OAuth2Authentication authentication) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION_1);
+
+            OAuth2Request request = authentication.getOAuth2Request();
+            writeString(out, request.getClientId());
+            Map<String, String> parameters = request.getRequestParameters();
+            out.writeInt(parameters.size());
+            for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                writeString(out, parameter.getKey());
+                writeString(out, parameter.getValue());
+            }
+            writeStrings(out, request.getScope());
+            writeStrings(out, request.getResourceIds());
+            writeString(out, request.getRedirectUri());
+            writeStrings(out, request.getResponseTypes());
+            out.writeBoolean(request.isApproved());
+            writeStrings(out, AuthorityUtils.authorityListToSet(request.getAuthorities()));
+            Map<String, Serializable> extensions = request.getExtensions();
+            if (extensions == null || extensions.isEmpty()) {
+                out.writeInt(0);
+            } else {
+                byte[] serialized = SerializationUtils.serialize(new HashMap<String, Serializable>(extensions));
+                out.writeInt(serialized.length);
+                out.write(serialized);
+            }
+
+            Authentication user = authentication.getUserAuthentication();
+            out.writeBoolean(user != null);
+            if (user != null) {
+                writeString(out, user.getName());
+                writeStrings(out, AuthorityUtils.authorityListToSet(user.getAuthorities()));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode authentication", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public OAuth2Authentication decode(byte[] encoded) {
+        if (encoded[0] == SERIALIZED_STREAM) {
+            return SerializationUtils.deserialize(encoded);
+        }
+        if (encoded[0] != VERSION_1) {
+            throw new IllegalArgumentException("Unknown authentication encoding " + encoded[0]);
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded, 1, encoded.length - 1))) {
+            String clientId = readString(in);
+            int parameterCount = in.readInt();
+            Map<String, String> parameters = new HashMap<String, String>(parameterCount * 2);
+            for (int i = 0; i < parameterCount; i++) {
+                parameters.put(readString(in), readString(in));
+            }
+            Set<String> scope = readStrings(in);
+            Set<String> resourceIds = readStrings(in);
+            String redirectUri = readString(in);
+            Set<String> responseTypes = readStrings(in);
+            boolean approved = in.readBoolean();
+            Collection<GrantedAuthority> clientAuthorities = readAuthorities(in);
+            Map<String, Serializable> extensions = null;
+            int extensionsLength = in.readInt();
+            if (extensionsLength > 0) {
+                byte[] serialized = new byte[extensionsLength];
+                in.readFully(serialized);
+                extensions = SerializationUtils.deserialize(serialized);
+            }
+
+            OAuth2Request request = new OAuth2Request(parameters, clientId, clientAuthorities, approved,
+                    scope, resourceIds, redirectUri, responseTypes, extensions);
+
+            Authentication user = null;
+            if (in.readBoolean()) {
+                String name = readString(in);
+                user = new UsernamePasswordAuthenticationToken(name, NO_CREDENTIALS, readAuthorities(in));
+            }
+            return new OAuth2Authentication(request, user);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to decode authentication", e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeUtf8(out, value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? readUtf8(in) : null;
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException {
+        if (values == null) {
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeUtf8(out, value);
+        }
+    }
+
+    private static Set<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Set<String> values = new LinkedHashSet<String>(size * 2);
+        for (int i = 0; i < size; i++) {
+            values.add(readUtf8(in));
+        }
+        return values;
+    }
+
+    private static Collection<GrantedAuthority> readAuthorities(DataInputStream in) throws IOException {
+        Set<String> authorities = readStrings(in);
+        return AuthorityUtils.createAuthorityList(authorities.toArray(new String[authorities.size()]));
+    }
+
+    /**
+     * Writes the UTF-8 bytes of a string behind their count, unlike
+     * {@link DataOutputStream#writeUTF(String)} not limited to 65535 bytes.
+     */
+    private static void writeUtf8(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readUtf8(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length < 0 || length > in.available()) {
+            throw new EOFException("String of " + length + " bytes exceeds the encoded authentication");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed string length");
+    }
+}
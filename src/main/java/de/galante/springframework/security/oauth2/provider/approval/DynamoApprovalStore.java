@@ -0,0 +1,254 @@
+package de.galante.springframework.security.oauth2.provider.approval;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.*;
+import de.galante.springframework.dynamo.ReadConsistency;
+import de.galante.springframework.dynamo.RecentWrites;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.oauth2.provider.approval.Approval;
+import org.springframework.security.oauth2.provider.approval.ApprovalStore;
+import org.springframework.util.Assert;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DynamoDB based storage of the scopes users approved or denied for clients.
+ * <p>
+ * All approvals of a user for a client are kept in a single item of the
+ * {@value #DEFAULT_TABLE_NAME} table, keyed by the {@value #USER_ID} hash key and the
+ * {@value #CLIENT_ID} range key, with one attribute per scope holding its status, expiry
+ * and last update. Reading the approvals is a single {@code GetItem}; adding or revoking
+ * them is a single {@code UpdateItem} per user and client, which only touches the scopes
+ * concerned.
+ * <p>
+ * Expired approvals are not returned. The item carries the latest expiry of its
+ * approvals in epoch seconds in the {@value #EXPIRES_AT} attribute; enable DynamoDB's
+ * Time To Live on it to have items removed once all their approvals expired.
+ *
+ * @author Victor Galante
+ */
+public class DynamoApprovalStore implements ApprovalStore {
+
+    public static final String DEFAULT_TABLE_NAME = "authorization_approval";
+
+    public static final String USER_ID = "userId";
+    public static final String CLIENT_ID = "clientId";
+    public static final String EXPIRES_AT = "expiresAt";
+
+    /**
+     * Prefixes the name of the attribute holding the approval of a scope.
+     */
+    public static final String SCOPE_PREFIX = "scope:";
+
+    private static final String STATUS = "status";
+    private static final String SCOPE_EXPIRES_AT = "expiresAt";
+    private static final String LAST_UPDATED_AT = "lastUpdatedAt";
+
+    private final AmazonDynamoDB dynamoDB;
+    private String tableName = DEFAULT_TABLE_NAME;
+    private ReadConsistency readConsistency = ReadConsistency.READ_YOUR_WRITES;
+    private final RecentWrites recentWrites = new RecentWrites();
+
+    @Autowired
+    public DynamoApprovalStore(AmazonDynamoDB dynamoDB) {
+        Assert.notNull(dynamoDB, "AmazonDynamoDB must not be null");
+        this.dynamoDB = dynamoDB;
+    }
+
+    /**
+     * Set the name of the table used to store approvals.
+     *
+     * @param tableName the table name
+     */
+    public void setTableName(String tableName) {
+        Assert.hasText(tableName, "Table name must not be empty");
+        this.tableName = tableName.trim();
+    }
+
+    /**
+     * Set how approvals are read. The default is {@link ReadConsistency#READ_YOUR_WRITES},
+     * so approvals given on this node within the last seconds are read strongly
+     * consistent.
+     *
+     * @param readConsistency the read consistency
+     */
+    public void setReadConsistency(ReadConsistency readConsistency) {
+        Assert.notNull(readConsistency, "ReadConsistency must not be null");
+        this.readConsistency = readConsistency;
+    }
+
+    @Override
+    public boolean addApprovals(Collection<Approval> approvals) {
+        for (Map.Entry<List<String>, List<Approval>> pair : byUserAndClient(approvals).entrySet()) {
+            addApprovals(pair.getKey().get(0), pair.getKey().get(1), pair.getValue());
+        }
+        return true;
+    }
+
+    @Override
+    public boolean revokeApprovals(Collection<Approval> approvals) {
+        for (Map.Entry<List<String>, List<Approval>> pair : byUserAndClient(approvals).entrySet()) {
+            String userId = pair.getKey().get(0);
+            String clientId = pair.getKey().get(1);
+            Set<String> scopes = new LinkedHashSet<String>();
+            for (Approval approval : pair.getValue()) {
+                scopes.add(approval.getScope());
+            }
+            List<String> remove = new ArrayList<String>();
+            Map<String, String> names = new HashMap<String, String>();
+            for (String scope : scopes) {
+                String name = "#s" + names.size();
+                names.put(name, SCOPE_PREFIX + scope);
+                remove.add(name);
+            }
+            names.put("#userId", USER_ID);
+            try {
+                this.dynamoDB.updateItem(update(userId, clientId)
+                        .withUpdateExpression("REMOVE " + String.join(", ", remove))
+                        .withConditionExpression("attribute_exists(#userId)")
+                        .withExpressionAttributeNames(names));
+            } catch (ConditionalCheckFailedException e) {
+                // nothing approved, nothing to revoke
+            } finally {
+                this.recentWrites.written(recentWriteKey(userId, clientId));
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Collection<Approval> getApprovals(String userId, String clientId) {
+        Map<String, AttributeValue> item = this.dynamoDB.getItem(new GetItemRequest()
+                .withTableName(this.tableName)
+                .withKey(key(userId, clientId))
+                .withConsistentRead(this.readConsistency.isConsistentRead(this.recentWrites,
+                        recentWriteKey(userId, clientId))))
+                .getItem();
+        if (item == null) {
+            return Collections.emptyList();
+        }
+
+        long now = System.currentTimeMillis();
+        List<Approval> approvals = new ArrayList<Approval>();
+        for (Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+            if (!attribute.getKey().startsWith(SCOPE_PREFIX)) {
+                continue;
+            }
+            Map<String, AttributeValue> stored = attribute.getValue().getM();
+            Date expiresAt = date(stored.get(SCOPE_EXPIRES_AT));
+            if (expiresAt != null && expiresAt.getTime() <= now) {
+                continue;
+            }
+            approvals.add(new Approval(userId, clientId, attribute.getKey().substring(SCOPE_PREFIX.length()),
+                    expiresAt, Approval.ApprovalStatus.valueOf(stored.get(STATUS).getS()),
+                    date(stored.get(LAST_UPDATED_AT))));
+        }
+        return approvals;
+    }
+
+    /**
+     * Writes the approvals of a user for a client, and moves the expiry of the item to
+     * the latest one. Should the item outlive them already, it is written again without
+     * touching its expiry.
+     */
+    private void addApprovals(String userId, String clientId, List<Approval> approvals) {
+        Map<String, Approval> byScope = new LinkedHashMap<String, Approval>();
+        for (Approval approval : approvals) {
+            byScope.put(approval.getScope(), approval);
+        }
+
+        List<String> set = new ArrayList<String>();
+        Map<String, String> names = new HashMap<String, String>();
+        Map<String, AttributeValue> values = new HashMap<String, AttributeValue>();
+        long expiresAt = 0;
+        for (Approval approval : byScope.values()) {
+            String name = "#s" + names.size();
+            String value = ":s" + values.size();
+            names.put(name, SCOPE_PREFIX + approval.getScope());
+            values.put(value, toAttribute(approval));
+            set.add(name + " = " + value);
+            expiresAt = approval.getExpiresAt() != null && expiresAt >= 0
+                    ? Math.max(expiresAt, TimeUnit.MILLISECONDS.toSeconds(approval.getExpiresAt().getTime()))
+                    : -1;
+        }
+        String setApprovals = "SET " + String.join(", ", set);
+
+        try {
+            if (expiresAt < 0) {
+                // an approval that never expires keeps the whole item
+                names.put("#expiresAt", EXPIRES_AT);
+                this.dynamoDB.updateItem(update(userId, clientId)
+                        .withUpdateExpression(setApprovals + " REMOVE #expiresAt")
+                        .withExpressionAttributeNames(names)
+                        .withExpressionAttributeValues(values));
+                return;
+            }
+            Map<String, String> expiringNames = new HashMap<String, String>(names);
+            expiringNames.put("#userId", USER_ID);
+            expiringNames.put("#expiresAt", EXPIRES_AT);
+            Map<String, AttributeValue> expiringValues = new HashMap<String, AttributeValue>(values);
+            expiringValues.put(":expiresAt", number(expiresAt));
+            try {
+                this.dynamoDB.updateItem(update(userId, clientId)
+                        .withUpdateExpression(setApprovals + ", #expiresAt = :expiresAt")
+                        .withConditionExpression("attribute_not_exists(#userId) OR #expiresAt < :expiresAt")
+                        .withExpressionAttributeNames(expiringNames)
+                        .withExpressionAttributeValues(expiringValues));
+            } catch (ConditionalCheckFailedException e) {
+                this.dynamoDB.updateItem(update(userId, clientId)
+                        .withUpdateExpression(setApprovals)
+                        .withExpressionAttributeNames(names)
+                        .withExpressionAttributeValues(values));
+            }
+        } finally {
+            this.recentWrites.written(recentWriteKey(userId, clientId));
+        }
+    }
+
+    private UpdateItemRequest update(String userId, String clientId) {
+        return new UpdateItemRequest()
+                .withTableName(this.tableName)
+                .withKey(key(userId, clientId));
+    }
+
+    private static Map<List<String>, List<Approval>> byUserAndClient(Collection<Approval> approvals) {
+        Map<List<String>, List<Approval>> byUserAndClient = new LinkedHashMap<List<String>, List<Approval>>();
+        for (Approval approval : approvals) {
+            byUserAndClient.computeIfAbsent(Arrays.asList(approval.getUserId(), approval.getClientId()),
+                    pair -> new ArrayList<Approval>()).add(approval);
+        }
+        return byUserAndClient;
+    }
+
+    private static AttributeValue toAttribute(Approval approval) {
+        Map<String, AttributeValue> stored = new HashMap<String, AttributeValue>();
+        stored.put(STATUS, new AttributeValue((approval.getStatus() != null
+                ? approval.getStatus() : Approval.ApprovalStatus.APPROVED).name()));
+        if (approval.getExpiresAt() != null) {
+            stored.put(SCOPE_EXPIRES_AT, number(approval.getExpiresAt().getTime()));
+        }
+        stored.put(LAST_UPDATED_AT, number(approval.getLastUpdatedAt() != null
+                ? approval.getLastUpdatedAt().getTime() : System.currentTimeMillis()));
+        return new AttributeValue().withM(stored);
+    }
+
+    private static Map<String, AttributeValue> key(String userId, String clientId) {
+        Map<String, AttributeValue> key = new HashMap<String, AttributeValue>();
+        key.put(USER_ID, new AttributeValue(userId));
+        key.put(CLIENT_ID, new AttributeValue(clientId));
+        return key;
+    }
+
+    private static String recentWriteKey(String userId, String clientId) {
+        return userId + '\n' + clientId;
+    }
+
+    private static AttributeValue number(long value) {
+        return new AttributeValue().withN(Long.toString(value));
+    }
+
+    private static Date date(AttributeValue value) {
+        return value != null ? new Date(Long.parseLong(value.getN())) : null;
+    }
+}
@@ -14,6 +14,7 @@ import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.oauth2.provider.ClientDetails;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 
@@ -22,10 +23,12 @@ import java.util.Set;
  * @author victor.galante
  */
 @Data
-@DynamoDBTable(tableName = "authorization_client")
+@DynamoDBTable(tableName = DynamoClient.TABLE_NAME)
 @JsonInclude(JsonInclude.Include.NON_NULL)
 public class DynamoClient implements ClientDetails {
 
+    public static final String TABLE_NAME = "authorization_client";
+
     @DynamoDBHashKey
     private String clientId;
     @DynamoDBAttribute
@@ -47,6 +50,8 @@ public class DynamoClient implements ClientDetails {
     @DynamoDBAttribute
     private boolean isAutoApprove;
     @DynamoDBAttribute
+    private Set<String> autoApproveScopes;
+    @DynamoDBAttribute
     private boolean scoped;
     @DynamoDBAttribute
     private Integer refreshTokenValiditySeconds;
@@ -55,7 +60,31 @@ public class DynamoClient implements ClientDetails {
     @DynamoDBAttribute
     private Map<String, Object> additionalInformation;
 
+    /**
+     * The authorities of the client, empty rather than {@code null} when none are stored,
+     * since an empty collection is not saved.
+     */
+    public Collection<GrantedAuthority> getAuthorities() {
+        return authorities != null ? authorities : Collections.<GrantedAuthority>emptySet();
+    }
+
+    /**
+     * Whether a scope is approved without asking the user: all scopes are if the client is
+     * auto approved, otherwise those matching one of its auto approve scopes, which are
+     * regular expressions like the ones of {@code BaseClientDetails}.
+     */
     public boolean isAutoApprove(String scope) {
-        return scope.contains(scope);
+        if (isAutoApprove) {
+            return true;
+        }
+        if (autoApproveScopes == null) {
+            return false;
+        }
+        for (String autoApproveScope : autoApproveScopes) {
+            if (autoApproveScope.equals("true") || scope.matches(autoApproveScope)) {
+                return true;
+            }
+        }
+        return false;
     }
 }
@@ -4,16 +4,56 @@ import org.springframework.security.oauth2.provider.ClientDetails;
 import org.springframework.security.oauth2.provider.ClientDetailsService;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * @author victor.galante
  */
 public interface DynamoClientDetailsService extends ClientDetailsService {
 
+    /**
+     * Loads client with the asynchronous client instead of blocking the calling thread.
+     * Like a client returned by {@link #loadClientByClientId(String)}, it may be shared
+     * with other callers and must not be modified.
+     * @param clientId the client to load
+     * @return a future completed with the client, or {@code null} if it does not exist
+     */
+    CompletableFuture<ClientDetails> loadClientByClientIdAsync(String clientId);
+
     void save(ClientDetails details);
 
     void delete(String id);
 
+    /**
+     * Loads clients in batches.
+     * @param ids the ids to load
+     * @return the found clients by id
+     */
+    Map<String, ClientDetails> loadAll(Collection<String> ids);
+
+    void saveAll(Collection<? extends ClientDetails> details);
+
+    void deleteAll(Collection<String> ids);
+
     Collection<ClientDetails> findAll();
 
+    /**
+     * Streams all clients, reading one page at a time.
+     * @param attributeNames the attributes to read, all if none are given
+     */
+    Stream<ClientDetails> stream(String... attributeNames);
+
+    /**
+     * Scans all clients in parallel segments, passing each page to the callback as it is
+     * read. The callback may be called concurrently.
+     * @param totalSegments the number of segments scanned in parallel
+     * @param pageCallback receives every page
+     * @param attributeNames the attributes to read, all if none are given
+     */
+    void scan(int totalSegments, Consumer<List<ClientDetails>> pageCallback, String... attributeNames);
+
 }
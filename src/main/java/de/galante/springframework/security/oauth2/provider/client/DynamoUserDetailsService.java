@@ -4,17 +4,57 @@ import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * @author victor.galante
  */
 public interface DynamoUserDetailsService extends UserDetailsService {
 
+    /**
+     * Loads user with the asynchronous client instead of blocking the calling thread.
+     * Like a user returned by {@link #loadUserByUsername(String)}, it may be shared with
+     * other callers and must not be modified.
+     * @param username the user to load
+     * @return a future completed with the user, or {@code null} if it does not exist
+     */
+    CompletableFuture<UserDetails> loadUserByUsernameAsync(String username);
+
     void save(UserDetails details);
 
     UserDetails load(String id);
 
     void delete(String id);
 
+    /**
+     * Loads users in batches.
+     * @param ids the ids to load
+     * @return the found users by id
+     */
+    Map<String, UserDetails> loadAll(Collection<String> ids);
+
+    void saveAll(Collection<? extends UserDetails> details);
+
+    void deleteAll(Collection<String> ids);
+
     Collection<UserDetails> findAll();
+
+    /**
+     * Streams all users, reading one page at a time.
+     * @param attributeNames the attributes to read, all if none are given
+     */
+    Stream<UserDetails> stream(String... attributeNames);
+
+    /**
+     * Scans all users in parallel segments, passing each page to the callback as it is
+     * read. The callback may be called concurrently.
+     * @param totalSegments the number of segments scanned in parallel
+     * @param pageCallback receives every page
+     * @param attributeNames the attributes to read, all if none are given
+     */
+    void scan(int totalSegments, Consumer<List<UserDetails>> pageCallback, String... attributeNames);
 }
@@ -0,0 +1,88 @@
+package de.galante.springframework.security.oauth2.provider.client.impl;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.BatchLoadContext;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retries the unprocessed items of batch reads and writes with exponential backoff and
+ * full jitter, so throttled batches of concurrent callers do not retry in lockstep.
+ * <p>
+ * {@link DynamoDBMapper} splits batches to the service limits of 100 keys per read and
+ * 25 items per write.
+ *
+ * @author Victor Galante
+ */
+final class BatchRetryStrategy implements DynamoDBMapperConfig.BatchWriteRetryStrategy,
+        DynamoDBMapperConfig.BatchLoadRetryStrategy {
+
+    static final DynamoDBMapperConfig CONFIG;
+
+    /**
+     * Like {@link #CONFIG}, with strongly consistent batch loads.
+     */
+    static final DynamoDBMapperConfig CONSISTENT_CONFIG;
+
+    static {
+        BatchRetryStrategy strategy = new BatchRetryStrategy();
+        CONFIG = DynamoDBMapperConfig.builder()
+                .withBatchWriteRetryStrategy(strategy)
+                .withBatchLoadRetryStrategy(strategy)
+                .build();
+        CONSISTENT_CONFIG = DynamoDBMapperConfig.builder()
+                .withBatchWriteRetryStrategy(strategy)
+                .withBatchLoadRetryStrategy(strategy)
+                .withConsistentReads(DynamoDBMapperConfig.ConsistentReads.CONSISTENT)
+                .build();
+    }
+
+    private static final int MAX_RETRIES = 8;
+    private static final long BASE_DELAY_MILLIS = 25;
+    private static final long MAX_DELAY_MILLIS = 1000;
+
+    private BatchRetryStrategy() {
+    }
+
+    /**
+     * Fails if a batch write left items unprocessed after all retries.
+     */
+    static void assertWritten(List<DynamoDBMapper.FailedBatch> failedBatches) {
+        if (!failedBatches.isEmpty()) {
+            DynamoDBMapper.FailedBatch failed = failedBatches.get(0);
+            throw new IllegalStateException(failedBatches.size() + " batches could not be written", failed.getException());
+        }
+    }
+
+    @Override
+    public int getMaxRetryOnUnprocessedItems(Map<String, List<WriteRequest>> batchWriteItemInput) {
+        return MAX_RETRIES;
+    }
+
+    @Override
+    public long getDelayBeforeRetryUnprocessedItems(Map<String, List<WriteRequest>> unprocessedItems, int retriesAttempted) {
+        return delay(retriesAttempted);
+    }
+
+    @Override
+    public boolean shouldRetry(BatchLoadContext batchLoadContext) {
+        Map<String, KeysAndAttributes> unprocessedKeys = batchLoadContext.getBatchGetItemResult().getUnprocessedKeys();
+        return unprocessedKeys != null && !unprocessedKeys.isEmpty()
+                && batchLoadContext.getRetriesAttempted() < MAX_RETRIES;
+    }
+
+    @Override
+    public long getDelayBeforeNextRetry(BatchLoadContext batchLoadContext) {
+        return delay(batchLoadContext.getRetriesAttempted());
+    }
+
+    private static long delay(int retriesAttempted) {
+        long ceiling = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(retriesAttempted, 16));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+}
@@ -0,0 +1,292 @@
+package de.galante.springframework.security.oauth2.provider.client.impl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * A bounded in-process cache of details loaded by key.
+ * <p>
+ * Entries are evicted least recently used first once the maximum size is reached, and
+ * are never served once older than the time to live. An entry read after its refresh
+ * time is still served while it is reloaded in the background, so frequently read keys
+ * do not expire. Keys that were not found are cached for the shorter negative time to
+ * live. Concurrent loads of the same key share a single call to the loader, and a load
+ * that completes after the key was invalidated is not cached.
+ *
+ * @param <V> the type of the cached details
+ * @author Victor Galante
+ */
+class DetailsCache<V> {
+
+    private static final Log logger = LogFactory.getLog(DetailsCache.class);
+
+    private final Map<String, Entry<V>> entries;
+    private final ConcurrentMap<String, CompletableFuture<V>> loading = new ConcurrentHashMap<String, CompletableFuture<V>>();
+    private Executor refreshExecutor;
+    private int maximumSize;
+    private long timeToLiveMillis;
+    private long refreshAfterMillis;
+    private long negativeTimeToLiveMillis;
+
+    DetailsCache(Executor refreshExecutor, int maximumSize, int timeToLiveSeconds,
+                 int refreshAfterSeconds, int negativeTimeToLiveSeconds) {
+        this.entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                return size() > DetailsCache.this.maximumSize;
+            }
+        };
+        setRefreshExecutor(refreshExecutor);
+        setMaximumSize(maximumSize);
+        setTimeToLiveSeconds(timeToLiveSeconds);
+        setRefreshAfterSeconds(refreshAfterSeconds);
+        setNegativeTimeToLiveSeconds(negativeTimeToLiveSeconds);
+    }
+
+    void setRefreshExecutor(Executor refreshExecutor) {
+        Assert.notNull(refreshExecutor, "Refresh executor must not be null");
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * @param maximumSize the maximum number of cached keys, 0 disables caching
+     */
+    void setMaximumSize(int maximumSize) {
+        Assert.isTrue(maximumSize >= 0, "Maximum size must not be negative");
+        synchronized (this.entries) {
+            this.maximumSize = maximumSize;
+            this.entries.clear();
+        }
+    }
+
+    void setTimeToLiveSeconds(int timeToLiveSeconds) {
+        Assert.isTrue(timeToLiveSeconds > 0, "Time to live must be positive");
+        this.timeToLiveMillis = TimeUnit.SECONDS.toMillis(timeToLiveSeconds);
+    }
+
+    /**
+     * @param refreshAfterSeconds the age after which a read entry is reloaded in the
+     *                            background, not refreshed if not below the time to live
+     */
+    void setRefreshAfterSeconds(int refreshAfterSeconds) {
+        Assert.isTrue(refreshAfterSeconds > 0, "Refresh time must be positive");
+        this.refreshAfterMillis = TimeUnit.SECONDS.toMillis(refreshAfterSeconds);
+    }
+
+    /**
+     * @param negativeTimeToLiveSeconds how long a key that was not found is cached, 0
+     *                                  disables negative caching
+     */
+    void setNegativeTimeToLiveSeconds(int negativeTimeToLiveSeconds) {
+        Assert.isTrue(negativeTimeToLiveSeconds >= 0, "Negative time to live must not be negative");
+        this.negativeTimeToLiveMillis = TimeUnit.SECONDS.toMillis(negativeTimeToLiveSeconds);
+    }
+
+    /**
+     * Returns the cached details of a key, loading them if they are missing or expired.
+     *
+     * @param loader loads the details of a key, returns {@code null} if the key does not exist
+     * @return the details or {@code null} if the key does not exist
+     */
+    V get(String key, Function<String, V> loader) {
+        return get(key, loader, Long.MAX_VALUE);
+    }
+
+    /**
+     * Returns the cached details of a key, loading them if they are missing, expired or
+     * older than the given age.
+     *
+     * @param loader       loads the details of a key, returns {@code null} if the key does not exist
+     * @param maxAgeMillis the maximum age of served details
+     * @return the details or {@code null} if the key does not exist
+     */
+    V get(String key, Function<String, V> loader, long maxAgeMillis) {
+        if (this.maximumSize == 0) {
+            return loader.apply(key);
+        }
+
+        Entry<V> entry = cached(key, maxAgeMillis);
+        if (entry != null) {
+            if (isRefreshDue(entry)) {
+                refresh(key, loader);
+            }
+            return entry.value;
+        }
+
+        CompletableFuture<V> load = new CompletableFuture<V>();
+        CompletableFuture<V> inFlight = this.loading.putIfAbsent(key, load);
+        if (inFlight != null) {
+            return await(inFlight);
+        }
+        load(key, loader, load);
+        return await(load);
+    }
+
+    /**
+     * Returns the cached details of a key, loading them with an asynchronous loader if
+     * they are missing, expired or older than the given age.
+     *
+     * @param loader       loads the details of a key, completes with {@code null} if the
+     *                     key does not exist
+     * @param maxAgeMillis the maximum age of served details
+     */
+    CompletableFuture<V> getAsync(String key, Function<String, CompletableFuture<V>> loader, long maxAgeMillis) {
+        if (this.maximumSize == 0) {
+            return loader.apply(key);
+        }
+
+        Entry<V> entry = cached(key, maxAgeMillis);
+        if (entry != null) {
+            if (isRefreshDue(entry)) {
+                CompletableFuture<V> load = new CompletableFuture<V>();
+                if (this.loading.putIfAbsent(key, load) == null) {
+                    loadAsync(key, loader, load);
+                }
+            }
+            return CompletableFuture.completedFuture(entry.value);
+        }
+
+        CompletableFuture<V> load = new CompletableFuture<V>();
+        CompletableFuture<V> inFlight = this.loading.putIfAbsent(key, load);
+        if (inFlight != null) {
+            load = inFlight;
+        } else {
+            loadAsync(key, loader, load);
+        }
+        // callers must not be able to complete the shared load
+        return load.thenApply(Function.identity());
+    }
+
+    /**
+     * Evicts a key, and keeps a load already in flight from caching what it read.
+     */
+    void invalidate(String key) {
+        synchronized (this.entries) {
+            this.entries.remove(key);
+            this.loading.remove(key);
+        }
+    }
+
+    void invalidateAll() {
+        synchronized (this.entries) {
+            this.entries.clear();
+            this.loading.clear();
+        }
+    }
+
+    /**
+     * Returns the entry of a key if it may be served.
+     */
+    private Entry<V> cached(String key, long maxAgeMillis) {
+        Entry<V> entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+        long age = System.currentTimeMillis() - entry.loadedAt;
+        long timeToLive = entry.value == null ? this.negativeTimeToLiveMillis : this.timeToLiveMillis;
+        if (age >= Math.min(timeToLive, maxAgeMillis)) {
+            return null;
+        }
+        return entry;
+    }
+
+    private boolean isRefreshDue(Entry<V> entry) {
+        return entry.value != null && System.currentTimeMillis() - entry.loadedAt >= this.refreshAfterMillis;
+    }
+
+    private void refresh(String key, Function<String, V> loader) {
+        CompletableFuture<V> load = new CompletableFuture<V>();
+        if (this.loading.putIfAbsent(key, load) != null) {
+            return;
+        }
+        try {
+            this.refreshExecutor.execute(() -> load(key, loader, load));
+        } catch (RejectedExecutionException e) {
+            load(key, loader, load);
+        }
+    }
+
+    private void load(String key, Function<String, V> loader, CompletableFuture<V> load) {
+        try {
+            V value = loader.apply(key);
+            put(key, value, load);
+            load.complete(value);
+        } catch (RuntimeException e) {
+            load.completeExceptionally(e);
+            logger.debug("Failed to load " + key, e);
+        } finally {
+            this.loading.remove(key, load);
+        }
+    }
+
+    private void loadAsync(String key, Function<String, CompletableFuture<V>> loader, CompletableFuture<V> load) {
+        CompletableFuture<V> loaded;
+        try {
+            loaded = loader.apply(key);
+        } catch (RuntimeException e) {
+            loaded = new CompletableFuture<V>();
+            loaded.completeExceptionally(e);
+        }
+        loaded.whenComplete((value, failure) -> {
+            try {
+                if (failure == null) {
+                    put(key, value, load);
+                } else {
+                    logger.debug("Failed to load " + key, failure);
+                }
+            } finally {
+                this.loading.remove(key, load);
+            }
+            if (failure == null) {
+                load.complete(value);
+            } else {
+                load.completeExceptionally(failure);
+            }
+        });
+    }
+
+    private void put(String key, V value, CompletableFuture<V> load) {
+        synchronized (this.entries) {
+            if (this.loading.get(key) == load && (value != null || this.negativeTimeToLiveMillis > 0)) {
+                this.entries.put(key, new Entry<V>(value, System.currentTimeMillis()));
+            }
+        }
+    }
+
+    private static <V> V await(CompletableFuture<V> load) {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static final class Entry<V> {
+
+        private final V value;
+        private final long loadedAt;
+
+        Entry(V value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
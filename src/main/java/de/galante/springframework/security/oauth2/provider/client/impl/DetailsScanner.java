@@ -0,0 +1,120 @@
+package de.galante.springframework.security.oauth2.provider.client.impl;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBScanExpression;
+import com.amazonaws.services.dynamodbv2.datamodeling.ScanResultPage;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import org.springframework.util.Assert;
+import org.springframework.util.CustomizableThreadCreator;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Scans whole tables page by page, so only the current page is held in memory.
+ *
+ * @author Victor Galante
+ */
+final class DetailsScanner {
+
+    private static final DynamoDBMapperConfig ITERATION_ONLY =
+            new DynamoDBMapperConfig(DynamoDBMapperConfig.PaginationLoadingStrategy.ITERATION_ONLY);
+
+    private DetailsScanner() {
+    }
+
+    /**
+     * Returns a stream loading the next page of the table when the current one is
+     * consumed. The scan starts with the terminal operation and the stream can be
+     * consumed once.
+     *
+     * @param attributeNames the attributes to read, all if empty
+     */
+    static <T> Stream<T> stream(DynamoDBMapper mapper, Class<? extends T> type, String... attributeNames) {
+        DynamoDBScanExpression expression = expression(attributeNames);
+        return StreamSupport.stream(() -> Spliterators.<T>spliteratorUnknownSize(
+                mapper.scan(type, expression, ITERATION_ONLY).iterator(), Spliterator.NONNULL),
+                Spliterator.NONNULL, false);
+    }
+
+    /**
+     * Scans the table in parallel segments, passing every page to the callback as soon
+     * as it is read. The callback is called concurrently from the threads scanning the
+     * segments. Returns when all segments have been scanned, or throws the first failure
+     * once the other segments stopped.
+     *
+     * @param executor       runs the segments, a thread per segment is used if {@code null}
+     * @param attributeNames the attributes to read, all if empty
+     */
+    static <T> void scan(DynamoDBMapper mapper, Class<? extends T> type, int totalSegments, Executor executor,
+                         Consumer<? super List<T>> pageCallback, String... attributeNames) {
+        Assert.isTrue(totalSegments > 0, "Total segments must be positive");
+        ExecutorService segmentExecutor = null;
+        if (executor == null) {
+            CustomizableThreadCreator threads = new CustomizableThreadCreator("dynamo-scan-");
+            threads.setDaemon(true);
+            segmentExecutor = Executors.newFixedThreadPool(totalSegments, threads::createThread);
+            executor = segmentExecutor;
+        }
+
+        try {
+            AtomicBoolean failed = new AtomicBoolean();
+            CompletableFuture<?>[] segments = new CompletableFuture<?>[totalSegments];
+            for (int segment = 0; segment < totalSegments; segment++) {
+                DynamoDBScanExpression expression = expression(attributeNames)
+                        .withSegment(segment)
+                        .withTotalSegments(totalSegments);
+                segments[segment] = CompletableFuture.runAsync(() -> {
+                    try {
+                        Map<String, AttributeValue> lastKey = null;
+                        do {
+                            ScanResultPage<? extends T> page =
+                                    mapper.scanPage(type, expression.withExclusiveStartKey(lastKey));
+                            pageCallback.accept(Collections.unmodifiableList(page.getResults()));
+                            lastKey = page.getLastEvaluatedKey();
+                        } while (lastKey != null && !failed.get());
+                    } catch (RuntimeException e) {
+                        failed.set(true);
+                        throw e;
+                    }
+                }, executor);
+            }
+            CompletableFuture.allOf(segments).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        } finally {
+            if (segmentExecutor != null) {
+                segmentExecutor.shutdown();
+            }
+        }
+    }
+
+    private static DynamoDBScanExpression expression(String... attributeNames) {
+        DynamoDBScanExpression expression = new DynamoDBScanExpression();
+        if (attributeNames.length == 0) {
+            return expression;
+        }
+        StringBuilder projection = new StringBuilder();
+        Map<String, String> names = new HashMap<String, String>();
+        for (int i = 0; i < attributeNames.length; i++) {
+            String placeholder = "#a" + i;
+            projection.append(i == 0 ? "" : ", ").append(placeholder);
+            names.put(placeholder, attributeNames[i]);
+        }
+        return expression
+                .withProjectionExpression(projection.toString())
+                .withExpressionAttributeNames(names);
+    }
+}
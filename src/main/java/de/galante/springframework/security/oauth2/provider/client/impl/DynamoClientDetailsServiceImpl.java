@@ -1,52 +1,291 @@
 package de.galante.springframework.security.oauth2.provider.client.impl;
 
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperTableModel;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBScanExpression;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import de.galante.springframework.dynamo.DynamoFutures;
+import de.galante.springframework.dynamo.ReadConsistency;
+import de.galante.springframework.dynamo.RecentWrites;
 import de.galante.springframework.security.oauth2.provider.client.DynamoClient;
 import de.galante.springframework.security.oauth2.provider.client.DynamoClientDetailsService;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.annotation.Cacheable;
 import org.springframework.security.oauth2.provider.ClientDetails;
-import org.springframework.security.oauth2.provider.ClientDetailsService;
 import org.springframework.security.oauth2.provider.ClientRegistrationException;
 import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+import org.springframework.util.CustomizableThreadCreator;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 
 /**
  * Manages Clients in DynamoDB
+ * <p>
+ * Loaded clients are kept in a bounded in-process cache. Clients read after the refresh
+ * time are reloaded in the background, and unknown client ids are remembered for the
+ * negative time to live. Saving or deleting a client evicts it on this node, other
+ * nodes see the change at most after the time to live.
+ * <p>
+ * A cached client is the same instance for every caller and must not be modified; to
+ * change a client, load it with {@link #loadAll(Collection)}, which bypasses the cache,
+ * and save it.
  * @author victor.galante
  */
 @Component
-public class DynamoClientDetailsServiceImpl implements DynamoClientDetailsService {
+public class DynamoClientDetailsServiceImpl implements DynamoClientDetailsService, DisposableBean {
+
+    public static final int DEFAULT_CACHE_MAXIMUM_SIZE = 1000;
+    public static final int DEFAULT_CACHE_TIME_TO_LIVE_SECONDS = 300;
+    public static final int DEFAULT_CACHE_REFRESH_AFTER_SECONDS = 240;
+    public static final int DEFAULT_CACHE_NEGATIVE_TIME_TO_LIVE_SECONDS = 10;
+
+    private static final DynamoDBMapperConfig CONSISTENT_READS =
+            new DynamoDBMapperConfig(DynamoDBMapperConfig.ConsistentReads.CONSISTENT);
 
     final DynamoDBMapper mapper;
+    final DynamoDBMapperTableModel<DynamoClient> model;
+    final String tableName;
+    private final ThreadPoolExecutor defaultRefreshExecutor;
+    private final DetailsCache<ClientDetails> cache;
+    private Executor scanExecutor;
+    private AmazonDynamoDBAsync dynamoDBAsync;
+    private ReadConsistency readConsistency = ReadConsistency.READ_YOUR_WRITES;
+    private final RecentWrites recentWrites = new RecentWrites();
 
     @Autowired
     public DynamoClientDetailsServiceImpl(DynamoDBMapper mapper) {
         this.mapper = mapper;
+        this.model = mapper.getTableModel(DynamoClient.class);
+        // honours a table name override or resolver configured on the mapper
+        this.tableName = mapper.generateCreateTableRequest(DynamoClient.class).getTableName();
+        CustomizableThreadCreator threads = new CustomizableThreadCreator("dynamo-client-refresh-");
+        threads.setDaemon(true);
+        this.defaultRefreshExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(DEFAULT_CACHE_MAXIMUM_SIZE), threads::createThread);
+        this.cache = new DetailsCache<ClientDetails>(this.defaultRefreshExecutor, DEFAULT_CACHE_MAXIMUM_SIZE,
+                DEFAULT_CACHE_TIME_TO_LIVE_SECONDS, DEFAULT_CACHE_REFRESH_AFTER_SECONDS,
+                DEFAULT_CACHE_NEGATIVE_TIME_TO_LIVE_SECONDS);
+    }
+
+    /**
+     * Set the maximum number of cached clients, 0 disables the cache. The default is
+     * {@value #DEFAULT_CACHE_MAXIMUM_SIZE}.
+     * @param cacheMaximumSize the maximum number of cached clients
+     */
+    public void setCacheMaximumSize(int cacheMaximumSize) {
+        this.cache.setMaximumSize(cacheMaximumSize);
+    }
+
+    /**
+     * Set the time after which a cached client is loaded again. The default is
+     * {@value #DEFAULT_CACHE_TIME_TO_LIVE_SECONDS} seconds.
+     * @param cacheTimeToLiveSeconds the time to live in seconds
+     */
+    public void setCacheTimeToLiveSeconds(int cacheTimeToLiveSeconds) {
+        this.cache.setTimeToLiveSeconds(cacheTimeToLiveSeconds);
+    }
+
+    /**
+     * Set the age after which a cached client that is read is reloaded in the background.
+     * The default is {@value #DEFAULT_CACHE_REFRESH_AFTER_SECONDS} seconds.
+     * @param cacheRefreshAfterSeconds the refresh time in seconds
+     */
+    public void setCacheRefreshAfterSeconds(int cacheRefreshAfterSeconds) {
+        this.cache.setRefreshAfterSeconds(cacheRefreshAfterSeconds);
+    }
+
+    /**
+     * Set how long an unknown client id is remembered, 0 disables negative caching. The
+     * default is {@value #DEFAULT_CACHE_NEGATIVE_TIME_TO_LIVE_SECONDS} seconds.
+     * @param cacheNegativeTimeToLiveSeconds the negative time to live in seconds
+     */
+    public void setCacheNegativeTimeToLiveSeconds(int cacheNegativeTimeToLiveSeconds) {
+        this.cache.setNegativeTimeToLiveSeconds(cacheNegativeTimeToLiveSeconds);
+    }
+
+    /**
+     * Set the executor reloading cached clients in the background. By default a single
+     * daemon thread is used.
+     * @param cacheRefreshExecutor the refresh executor
+     */
+    public void setCacheRefreshExecutor(Executor cacheRefreshExecutor) {
+        this.cache.setRefreshExecutor(cacheRefreshExecutor);
+    }
+
+    /**
+     * Set how clients are read. The default is {@link ReadConsistency#READ_YOUR_WRITES}: a
+     * client saved or deleted through this service within the last seconds is read
+     * strongly consistent, so it is not cached stale.
+     * @param readConsistency the read consistency
+     */
+    public void setReadConsistency(ReadConsistency readConsistency) {
+        Assert.notNull(readConsistency, "ReadConsistency must not be null");
+        this.readConsistency = readConsistency;
+    }
+
+    /**
+     * Set the client used by {@link #loadClientByClientIdAsync(String)}.
+     * @param dynamoDBAsync the asynchronous client
+     */
+    public void setDynamoDBAsync(AmazonDynamoDBAsync dynamoDBAsync) {
+        this.dynamoDBAsync = dynamoDBAsync;
+    }
+
+    /**
+     * Set the executor running the segments of {@link #scan(int, Consumer, String...)}. By
+     * default every scan starts a thread per segment.
+     * @param scanExecutor the scan executor
+     */
+    public void setScanExecutor(Executor scanExecutor) {
+        this.scanExecutor = scanExecutor;
     }
 
     @Override
-    @Cacheable("clients")
     public ClientDetails loadClientByClientId(String clientId) throws ClientRegistrationException {
-        return mapper.load(DynamoClient.class, clientId);
+        return cache.get(clientId, id -> isConsistentRead(id)
+                ? mapper.load(DynamoClient.class, id, CONSISTENT_READS)
+                : mapper.load(DynamoClient.class, id));
+    }
+
+    @Override
+    public CompletableFuture<ClientDetails> loadClientByClientIdAsync(String clientId) {
+        return cache.getAsync(clientId, this::loadAsync, Long.MAX_VALUE);
     }
 
     @Override
     public void save(ClientDetails details) {
-        mapper.save(details);
+        try {
+            mapper.save(details);
+        } finally {
+            invalidate(details.getClientId());
+        }
     }
 
     @Override
     public void delete(String id) {
-        mapper.delete(loadClientByClientId(id));
+        try {
+            mapper.delete(key(id));
+        } finally {
+            invalidate(id);
+        }
+    }
+
+    @Override
+    public Map<String, ClientDetails> loadAll(Collection<String> ids) {
+        List<DynamoClient> keys = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            keys.add(key(id));
+        }
+        Map<String, ClientDetails> loaded = new HashMap<>(ids.size() * 2);
+        if (!keys.isEmpty()) {
+            DynamoDBMapperConfig config = isConsistentRead(ids) ? BatchRetryStrategy.CONSISTENT_CONFIG : BatchRetryStrategy.CONFIG;
+            for (List<Object> items : mapper.batchLoad(keys, config).values()) {
+                for (Object item : items) {
+                    ClientDetails details = (ClientDetails) item;
+                    loaded.put(details.getClientId(), details);
+                }
+            }
+        }
+        return loaded;
+    }
+
+    @Override
+    public void saveAll(Collection<? extends ClientDetails> details) {
+        try {
+            BatchRetryStrategy.assertWritten(mapper.batchWrite(details, Collections.emptyList(), BatchRetryStrategy.CONFIG));
+        } finally {
+            for (ClientDetails saved : details) {
+                invalidate(saved.getClientId());
+            }
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<String> ids) {
+        List<DynamoClient> keys = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            keys.add(key(id));
+        }
+        try {
+            BatchRetryStrategy.assertWritten(mapper.batchWrite(Collections.emptyList(), keys, BatchRetryStrategy.CONFIG));
+        } finally {
+            for (String id : ids) {
+                invalidate(id);
+            }
+        }
     }
 
     @Override
     public Collection<ClientDetails> findAll() {
         return new ArrayList<>(mapper.scan(DynamoClient.class, new DynamoDBScanExpression()));
     }
+
+    @Override
+    public Stream<ClientDetails> stream(String... attributeNames) {
+        return DetailsScanner.stream(mapper, DynamoClient.class, attributeNames);
+    }
+
+    @Override
+    public void scan(int totalSegments, Consumer<List<ClientDetails>> pageCallback, String... attributeNames) {
+        DetailsScanner.scan(mapper, DynamoClient.class, totalSegments, scanExecutor, pageCallback, attributeNames);
+    }
+
+    private CompletableFuture<ClientDetails> loadAsync(String id) {
+        Assert.state(dynamoDBAsync != null, "No AmazonDynamoDBAsync client set");
+        GetItemRequest request = new GetItemRequest()
+                .withTableName(tableName)
+                .withKey(model.convertKey(key(id)))
+                .withConsistentRead(isConsistentRead(id));
+        CompletableFuture<GetItemResult> loaded = DynamoFutures.execute(request, dynamoDBAsync::getItemAsync);
+        return loaded.<ClientDetails>thenApply(result -> result.getItem() != null ? model.unconvert(result.getItem()) : null);
+    }
+
+    private boolean isConsistentRead(String id) {
+        return readConsistency.isConsistentRead(recentWrites, id);
+    }
+
+    private boolean isConsistentRead(Collection<String> ids) {
+        for (String id : ids) {
+            if (isConsistentRead(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called after every write of a client, including failed ones and deletions.
+     */
+    private void invalidate(String clientId) {
+        recentWrites.written(clientId);
+        cache.invalidate(clientId);
+    }
+
+    private static DynamoClient key(String id) {
+        DynamoClient key = new DynamoClient();
+        key.setClientId(id);
+        return key;
+    }
+
+    @Override
+    public void destroy() {
+        defaultRefreshExecutor.shutdownNow();
+    }
 }
@@ -0,0 +1,329 @@
+package de.galante.springframework.security.oauth2.provider.client.impl;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
+import com.amazonaws.services.dynamodbv2.model.*;
+import de.galante.springframework.dynamo.RecentWrites;
+import de.galante.springframework.security.core.userdetails.DynamoUser;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.util.Assert;
+import org.springframework.util.CustomizableThreadCreator;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * An in-process cache of users for {@link DynamoUserDetailsServiceImpl}, invalidated by
+ * consuming the change stream of the user table.
+ * <p>
+ * Every change to a user, made on any node, evicts the user from the cache once the
+ * stream record is read. The stream must be enabled on the table, any view type will
+ * do as only the keys are read. While the consumer is more than the maximum lag behind
+ * the stream, or is not running, cached users are only served for the shorter lagging
+ * time to live.
+ * <p>
+ * A user evicted by a stream record is loaded strongly consistent within the next
+ * seconds, as an eventually consistent read may still return the version before the
+ * change, which would then stay cached.
+ * <p>
+ * The streams client may point to the streams endpoint of DynamoDB Local.
+ *
+ * @author Victor Galante
+ */
+public class DynamoUserCache implements SmartLifecycle {
+
+    public static final String DEFAULT_TABLE_NAME = DynamoUser.TABLE_NAME;
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+    public static final int DEFAULT_TIME_TO_LIVE_SECONDS = 900;
+    public static final int DEFAULT_LAGGING_TIME_TO_LIVE_SECONDS = 30;
+    public static final int DEFAULT_MAX_LAG_SECONDS = 10;
+    public static final int DEFAULT_POLL_INTERVAL_MILLIS = 1000;
+
+    private static final Log logger = LogFactory.getLog(DynamoUserCache.class);
+
+    /**
+     * The maximum number of records in one {@code GetRecords} response.
+     */
+    private static final int MAX_RECORDS = 1000;
+    private static final long SHARD_LISTING_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final AmazonDynamoDB dynamoDB;
+    private final AmazonDynamoDBStreams streams;
+    private final DetailsCache<UserDetails> cache;
+    private final RecentWrites changes = new RecentWrites();
+    private String tableName = DEFAULT_TABLE_NAME;
+    private String streamArn;
+    private long laggingTimeToLiveMillis = TimeUnit.SECONDS.toMillis(DEFAULT_LAGGING_TIME_TO_LIVE_SECONDS);
+    private long maxLagMillis = TimeUnit.SECONDS.toMillis(DEFAULT_MAX_LAG_SECONDS);
+    private long pollIntervalMillis = DEFAULT_POLL_INTERVAL_MILLIS;
+    private ScheduledExecutorService poller;
+
+    // only accessed by the poller thread
+    private final Map<String, String> shardIterators = new LinkedHashMap<String, String>();
+    private final Set<String> finishedShards = new HashSet<String>();
+    private long shardsListedAt;
+    private boolean shardsChanged;
+
+    /**
+     * The start of the last poll that read every shard up to its end, or 0.
+     */
+    private volatile long consumedUntil;
+
+    public DynamoUserCache(AmazonDynamoDB dynamoDB, AmazonDynamoDBStreams streams) {
+        this.dynamoDB = dynamoDB;
+        this.streams = streams;
+        // users are not refreshed ahead, their changes arrive on the stream
+        this.cache = new DetailsCache<UserDetails>(Runnable::run, DEFAULT_MAXIMUM_SIZE,
+                DEFAULT_TIME_TO_LIVE_SECONDS, DEFAULT_TIME_TO_LIVE_SECONDS, 0);
+    }
+
+    /**
+     * Set the name of the user table, used to look up its latest stream. The default is
+     * {@value #DEFAULT_TABLE_NAME}.
+     *
+     * @param tableName the user table name
+     */
+    public void setTableName(String tableName) {
+        this.tableName = tableName;
+    }
+
+    /**
+     * Set the ARN of the stream to consume instead of the latest stream of the table.
+     *
+     * @param streamArn the stream ARN
+     */
+    public void setStreamArn(String streamArn) {
+        this.streamArn = streamArn;
+    }
+
+    /**
+     * Set the maximum number of cached users. The default is {@value #DEFAULT_MAXIMUM_SIZE}.
+     *
+     * @param maximumSize the maximum number of cached users
+     */
+    public void setMaximumSize(int maximumSize) {
+        this.cache.setMaximumSize(maximumSize);
+    }
+
+    /**
+     * Set the time after which a cached user is loaded again while the stream is
+     * consumed. The default is {@value #DEFAULT_TIME_TO_LIVE_SECONDS} seconds.
+     *
+     * @param timeToLiveSeconds the time to live in seconds
+     */
+    public void setTimeToLiveSeconds(int timeToLiveSeconds) {
+        this.cache.setTimeToLiveSeconds(timeToLiveSeconds);
+        this.cache.setRefreshAfterSeconds(timeToLiveSeconds);
+    }
+
+    /**
+     * Set the time after which a cached user is loaded again while the consumer lags
+     * behind the stream. The default is {@value #DEFAULT_LAGGING_TIME_TO_LIVE_SECONDS}
+     * seconds.
+     *
+     * @param laggingTimeToLiveSeconds the lagging time to live in seconds
+     */
+    public void setLaggingTimeToLiveSeconds(int laggingTimeToLiveSeconds) {
+        this.laggingTimeToLiveMillis = TimeUnit.SECONDS.toMillis(laggingTimeToLiveSeconds);
+    }
+
+    /**
+     * Set how far the consumer may fall behind the stream before cached users are only
+     * served for the lagging time to live. The default is
+     * {@value #DEFAULT_MAX_LAG_SECONDS} seconds.
+     *
+     * @param maxLagSeconds the maximum lag in seconds
+     */
+    public void setMaxLagSeconds(int maxLagSeconds) {
+        this.maxLagMillis = TimeUnit.SECONDS.toMillis(maxLagSeconds);
+    }
+
+    /**
+     * Set the delay between two polls of the stream. The default is
+     * {@value #DEFAULT_POLL_INTERVAL_MILLIS} milliseconds.
+     *
+     * @param pollIntervalMillis the poll interval in milliseconds
+     */
+    public void setPollIntervalMillis(long pollIntervalMillis) {
+        Assert.isTrue(pollIntervalMillis > 0, "Poll interval must be positive");
+        this.pollIntervalMillis = pollIntervalMillis;
+    }
+
+    UserDetails get(String username, Function<String, UserDetails> loader) {
+        return this.cache.get(username, loader, maxAgeMillis());
+    }
+
+    CompletableFuture<UserDetails> getAsync(String username, Function<String, CompletableFuture<UserDetails>> loader) {
+        return this.cache.getAsync(username, loader, maxAgeMillis());
+    }
+
+    void invalidate(String username) {
+        this.cache.invalidate(username);
+    }
+
+    /**
+     * Whether a change of the user was read from the stream within the last seconds.
+     */
+    boolean isChanged(String username) {
+        return this.changes.contains(username);
+    }
+
+    private long maxAgeMillis() {
+        long lag = System.currentTimeMillis() - this.consumedUntil;
+        return lag <= this.maxLagMillis ? Long.MAX_VALUE : this.laggingTimeToLiveMillis;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (this.poller != null) {
+            return;
+        }
+        if (this.streamArn == null) {
+            this.streamArn = this.dynamoDB.describeTable(this.tableName).getTable().getLatestStreamArn();
+            Assert.state(this.streamArn != null, "No stream is enabled on table " + this.tableName);
+        }
+        // changes made while stopped were not read
+        this.cache.invalidateAll();
+        this.shardIterators.clear();
+        this.finishedShards.clear();
+        this.shardsListedAt = 0;
+        CustomizableThreadCreator threads = new CustomizableThreadCreator("dynamo-user-stream-");
+        threads.setDaemon(true);
+        this.poller = Executors.newSingleThreadScheduledExecutor(threads::createThread);
+        this.poller.scheduleWithFixedDelay(this::poll, 0, this.pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (this.poller == null) {
+            return;
+        }
+        this.poller.shutdownNow();
+        try {
+            this.poller.awaitTermination(this.pollIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.poller = null;
+        this.consumedUntil = 0;
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        stop();
+        callback.run();
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return this.poller != null;
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    @Override
+    public int getPhase() {
+        return 0;
+    }
+
+    private void poll() {
+        long startedAt = System.currentTimeMillis();
+        try {
+            if (this.shardsChanged || startedAt - this.shardsListedAt >= SHARD_LISTING_INTERVAL_MILLIS) {
+                listShards(this.shardsListedAt == 0);
+                this.shardsListedAt = startedAt;
+            }
+
+            boolean caughtUp = true;
+            for (Iterator<Map.Entry<String, String>> shards = this.shardIterators.entrySet().iterator(); shards.hasNext(); ) {
+                Map.Entry<String, String> shard = shards.next();
+                GetRecordsResult result;
+                try {
+                    result = this.streams.getRecords(new GetRecordsRequest()
+                            .withShardIterator(shard.getValue())
+                            .withLimit(MAX_RECORDS));
+                } catch (ExpiredIteratorException | TrimmedDataAccessException e) {
+                    // records may have been missed, nothing cached can be trusted
+                    logger.debug("Lost position in shard " + shard.getKey() + ", evicting all users", e);
+                    this.cache.invalidateAll();
+                    shard.setValue(shardIterator(shard.getKey(), ShardIteratorType.LATEST));
+                    continue;
+                }
+
+                for (Record record : result.getRecords()) {
+                    for (AttributeValue key : record.getDynamodb().getKeys().values()) {
+                        // marked before the eviction, so the next load is consistent
+                        this.changes.written(key.getS());
+                        this.cache.invalidate(key.getS());
+                    }
+                }
+                if (result.getRecords().size() >= MAX_RECORDS) {
+                    caughtUp = false;
+                }
+                if (result.getNextShardIterator() == null) {
+                    shards.remove();
+                    this.finishedShards.add(shard.getKey());
+                    this.shardsChanged = true;
+                } else {
+                    shard.setValue(result.getNextShardIterator());
+                }
+            }
+            if (caughtUp) {
+                this.consumedUntil = startedAt;
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Failed to read the stream of " + this.tableName + ", cached users expire after "
+                    + TimeUnit.MILLISECONDS.toSeconds(this.laggingTimeToLiveMillis) + " seconds", e);
+        }
+    }
+
+    /**
+     * Starts reading shards that appeared since the last listing. The shards open when
+     * consuming starts are read from their latest record, later shards from their first,
+     * as they succeed a shard that was read. Shards are read side by side rather than
+     * parents first, which does not matter as records only evict users.
+     */
+    private void listShards(boolean initial) {
+        Set<String> listed = new HashSet<String>();
+        String lastShardId = null;
+        do {
+            StreamDescription description = this.streams.describeStream(new DescribeStreamRequest()
+                    .withStreamArn(this.streamArn)
+                    .withExclusiveStartShardId(lastShardId)).getStreamDescription();
+            for (Shard shard : description.getShards()) {
+                String shardId = shard.getShardId();
+                listed.add(shardId);
+                if (this.shardIterators.containsKey(shardId) || this.finishedShards.contains(shardId)) {
+                    continue;
+                }
+                if (initial && shard.getSequenceNumberRange().getEndingSequenceNumber() != null) {
+                    this.finishedShards.add(shardId);
+                } else {
+                    this.shardIterators.put(shardId, shardIterator(shardId,
+                            initial ? ShardIteratorType.LATEST : ShardIteratorType.TRIM_HORIZON));
+                }
+            }
+            lastShardId = description.getLastEvaluatedShardId();
+        } while (lastShardId != null);
+
+        this.finishedShards.retainAll(listed);
+        this.shardsChanged = false;
+    }
+
+    private String shardIterator(String shardId, ShardIteratorType type) {
+        return this.streams.getShardIterator(new GetShardIteratorRequest()
+                .withStreamArn(this.streamArn)
+                .withShardId(shardId)
+                .withShardIteratorType(type)).getShardIterator();
+    }
+}
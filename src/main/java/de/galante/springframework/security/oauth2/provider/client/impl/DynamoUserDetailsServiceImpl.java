@@ -1,54 +1,241 @@
 package de.galante.springframework.security.oauth2.provider.client.impl;
 
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperTableModel;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBScanExpression;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import de.galante.springframework.dynamo.DynamoFutures;
+import de.galante.springframework.dynamo.ReadConsistency;
+import de.galante.springframework.dynamo.RecentWrites;
 import de.galante.springframework.security.core.userdetails.DynamoUser;
 import de.galante.springframework.security.oauth2.provider.client.DynamoUserDetailsService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
 
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Manages Users in DynamoDB
+ * <p>
+ * Users are loaded on every call unless a {@link DynamoUserCache} is set. A cached user
+ * is the same instance for every caller and must not be modified; to change a user,
+ * load it with {@link #load(String)}, which bypasses the cache, and save it.
  * @author victor.galante
  */
 @Component
 public class DynamoUserDetailsServiceImpl implements DynamoUserDetailsService {
 
+    private static final DynamoDBMapperConfig CONSISTENT_READS =
+            new DynamoDBMapperConfig(DynamoDBMapperConfig.ConsistentReads.CONSISTENT);
+
     final DynamoDBMapper mapper;
+    final DynamoDBMapperTableModel<DynamoUser> model;
+    final String tableName;
+    private DynamoUserCache userCache;
+    private Executor scanExecutor;
+    private AmazonDynamoDBAsync dynamoDBAsync;
+    private ReadConsistency readConsistency = ReadConsistency.READ_YOUR_WRITES;
+    private final RecentWrites recentWrites = new RecentWrites();
 
     @Autowired
     public DynamoUserDetailsServiceImpl(DynamoDBMapper mapper) {
         this.mapper = mapper;
+        this.model = mapper.getTableModel(DynamoUser.class);
+        // honours a table name override or resolver configured on the mapper
+        this.tableName = mapper.generateCreateTableRequest(DynamoUser.class).getTableName();
+    }
+
+    /**
+     * Set the cache serving {@link #loadUserByUsername(String)}. Not set by default.
+     * @param userCache the user cache
+     */
+    public void setUserCache(DynamoUserCache userCache) {
+        this.userCache = userCache;
+    }
+
+    /**
+     * Set how users are read. The default is {@link ReadConsistency#READ_YOUR_WRITES}: a
+     * user saved or deleted through this service within the last seconds is read
+     * strongly consistent, so it is not cached stale. Users whose change the
+     * {@link DynamoUserCache} just read from the stream are read strongly consistent
+     * whatever the read consistency.
+     * @param readConsistency the read consistency
+     */
+    public void setReadConsistency(ReadConsistency readConsistency) {
+        Assert.notNull(readConsistency, "ReadConsistency must not be null");
+        this.readConsistency = readConsistency;
+    }
+
+    /**
+     * Set the client used by {@link #loadUserByUsernameAsync(String)}.
+     * @param dynamoDBAsync the asynchronous client
+     */
+    public void setDynamoDBAsync(AmazonDynamoDBAsync dynamoDBAsync) {
+        this.dynamoDBAsync = dynamoDBAsync;
+    }
+
+    /**
+     * Set the executor running the segments of {@link #scan(int, Consumer, String...)}. By
+     * default every scan starts a thread per segment.
+     * @param scanExecutor the scan executor
+     */
+    public void setScanExecutor(Executor scanExecutor) {
+        this.scanExecutor = scanExecutor;
     }
 
     @Override
     public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
-        return mapper.load(DynamoUser.class, username);
+        if (userCache != null) {
+            return userCache.get(username, this::load);
+        }
+        return load(username);
+    }
+
+    @Override
+    public CompletableFuture<UserDetails> loadUserByUsernameAsync(String username) {
+        if (userCache != null) {
+            return userCache.getAsync(username, this::loadAsync);
+        }
+        return loadAsync(username);
     }
 
     @Override
     public void save(UserDetails details) {
-        mapper.save(details);
+        try {
+            mapper.save(details);
+        } finally {
+            invalidate(details.getUsername());
+        }
     }
 
     @Override
     public UserDetails load(String id) {
-        return mapper.load(DynamoUser.class, id);
+        return isConsistentRead(id)
+                ? mapper.load(DynamoUser.class, id, CONSISTENT_READS)
+                : mapper.load(DynamoUser.class, id);
     }
 
     @Override
     public void delete(String id) {
-        mapper.delete(load(id));
+        try {
+            mapper.delete(key(id));
+        } finally {
+            invalidate(id);
+        }
+    }
+
+    @Override
+    public Map<String, UserDetails> loadAll(Collection<String> ids) {
+        List<DynamoUser> keys = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            keys.add(key(id));
+        }
+        Map<String, UserDetails> loaded = new HashMap<>(ids.size() * 2);
+        if (!keys.isEmpty()) {
+            DynamoDBMapperConfig config = isConsistentRead(ids) ? BatchRetryStrategy.CONSISTENT_CONFIG : BatchRetryStrategy.CONFIG;
+            for (List<Object> items : mapper.batchLoad(keys, config).values()) {
+                for (Object item : items) {
+                    UserDetails details = (UserDetails) item;
+                    loaded.put(details.getUsername(), details);
+                }
+            }
+        }
+        return loaded;
+    }
+
+    @Override
+    public void saveAll(Collection<? extends UserDetails> details) {
+        try {
+            BatchRetryStrategy.assertWritten(mapper.batchWrite(details, Collections.emptyList(), BatchRetryStrategy.CONFIG));
+        } finally {
+            for (UserDetails saved : details) {
+                invalidate(saved.getUsername());
+            }
+        }
+    }
+
+    @Override
+    public void deleteAll(Collection<String> ids) {
+        List<DynamoUser> keys = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            keys.add(key(id));
+        }
+        try {
+            BatchRetryStrategy.assertWritten(mapper.batchWrite(Collections.emptyList(), keys, BatchRetryStrategy.CONFIG));
+        } finally {
+            for (String id : ids) {
+                invalidate(id);
+            }
+        }
     }
 
     @Override
     public Collection<UserDetails> findAll() {
         return new ArrayList<>(mapper.scan(DynamoUser.class, new DynamoDBScanExpression()));
     }
+
+    @Override
+    public Stream<UserDetails> stream(String... attributeNames) {
+        return DetailsScanner.stream(mapper, DynamoUser.class, attributeNames);
+    }
+
+    @Override
+    public void scan(int totalSegments, Consumer<List<UserDetails>> pageCallback, String... attributeNames) {
+        DetailsScanner.scan(mapper, DynamoUser.class, totalSegments, scanExecutor, pageCallback, attributeNames);
+    }
+
+    private CompletableFuture<UserDetails> loadAsync(String id) {
+        Assert.state(dynamoDBAsync != null, "No AmazonDynamoDBAsync client set");
+        GetItemRequest request = new GetItemRequest()
+                .withTableName(tableName)
+                .withKey(model.convertKey(key(id)))
+                .withConsistentRead(isConsistentRead(id));
+        CompletableFuture<GetItemResult> loaded = DynamoFutures.execute(request, dynamoDBAsync::getItemAsync);
+        return loaded.<UserDetails>thenApply(result -> result.getItem() != null ? model.unconvert(result.getItem()) : null);
+    }
+
+    private boolean isConsistentRead(String id) {
+        return readConsistency.isConsistentRead(recentWrites, id) || userCache != null && userCache.isChanged(id);
+    }
+
+    private boolean isConsistentRead(Collection<String> ids) {
+        for (String id : ids) {
+            if (isConsistentRead(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static DynamoUser key(String id) {
+        DynamoUser key = new DynamoUser();
+        key.setUsername(id);
+        return key;
+    }
+
+    /**
+     * Called after every write of a user, including failed ones and deletions.
+     */
+    private void invalidate(String username) {
+        recentWrites.written(username);
+        if (userCache != null) {
+            userCache.invalidate(username);
+        }
+    }
 }
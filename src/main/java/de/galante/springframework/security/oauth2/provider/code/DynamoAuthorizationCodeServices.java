@@ -1,31 +1,72 @@
 package de.galante.springframework.security.oauth2.provider.code;
 
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
-import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBQueryExpression;
-import com.amazonaws.services.dynamodbv2.datamodeling.PaginatedList;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperTableModel;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import de.galante.springframework.security.oauth2.provider.OAuth2AuthenticationCodec;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.security.oauth2.common.util.SerializationUtils;
 import org.springframework.security.oauth2.provider.OAuth2Authentication;
 import org.springframework.security.oauth2.provider.code.RandomValueAuthorizationCodeServices;
 import org.springframework.stereotype.Component;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 
 /**
- * DynamoDB based authentication code storage
+ * DynamoDB based authentication code storage.
+ * <p>
+ * A code is consumed with a single conditional {@code DeleteItem} returning the deleted
+ * item, so it can only be redeemed once even by concurrent token requests.
+ * <p>
+ * The authentication is stored in the compact form of {@link OAuth2AuthenticationCodec}.
+ * Every code carries its expiry in epoch seconds in the {@code expiresAt} attribute;
+ * enable DynamoDB's Time To Live on it to have unused codes removed. Expired codes are
+ * never redeemed.
  */
 @Component
 public class DynamoAuthorizationCodeServices extends RandomValueAuthorizationCodeServices {
 
+    /**
+     * Default {@link #setCodeValiditySeconds(int)} (10 minutes).
+     */
+    public static final int DEFAULT_CODE_VALIDITY_SECONDS = 600;
+
+    final AmazonDynamoDB dynamoDB;
     final DynamoDBMapper mapper;
+    final DynamoDBMapperTableModel<OAuthCode> model;
+    final String tableName;
+    final OAuth2AuthenticationCodec authenticationCodec = new OAuth2AuthenticationCodec();
+    private int codeValiditySeconds = DEFAULT_CODE_VALIDITY_SECONDS;
 
     @Autowired
-    public DynamoAuthorizationCodeServices(DynamoDBMapper mapper) {
+    public DynamoAuthorizationCodeServices(AmazonDynamoDB dynamoDB, DynamoDBMapper mapper) {
+        this.dynamoDB = dynamoDB;
         this.mapper = mapper;
+        this.model = mapper.getTableModel(OAuthCode.class);
+        // honours a table name override or resolver configured on the mapper
+        this.tableName = mapper.generateCreateTableRequest(OAuthCode.class).getTableName();
+    }
+
+    /**
+     * Set the time in seconds after which an authorization code can no longer be
+     * redeemed. The default is 600 (10 minutes).
+     *
+     * @param codeValiditySeconds the code validity in seconds
+     */
+    public void setCodeValiditySeconds(int codeValiditySeconds) {
+        this.codeValiditySeconds = codeValiditySeconds;
     }
 
     @Override
     protected void store(String code, OAuth2Authentication authentication) {
-        OAuthCode oauthCode = new OAuthCode(code, SerializationUtils.serialize(authentication));
+        long expiresAt = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + codeValiditySeconds;
+        OAuthCode oauthCode = new OAuthCode(code, authenticationCodec.encode(authentication), expiresAt);
         mapper.save(oauthCode);
     }
 
@@ -34,23 +75,28 @@ public class DynamoAuthorizationCodeServices extends RandomValueAuthorizationCod
         OAuthCode key = new OAuthCode();
         key.setCode(code);
 
-        DynamoDBQueryExpression<OAuthCode> query = new DynamoDBQueryExpression<OAuthCode>()
-                .withConsistentRead(true)
-                .withHashKeyValues(key);
-
-         PaginatedList<OAuthCode> results = mapper.query(OAuthCode.class, query);
-         if(results.size()  == 0) {
-             return null;
-         }
+        Map<String, String> names = new HashMap<>();
+        names.put("#code", OAuthCode.CODE);
+        names.put("#expiresAt", OAuthCode.EXPIRES_AT);
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":now", new AttributeValue().withN(Long.toString(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()))));
 
-         if(results.size() > 1) {
-             throw new RuntimeException(String.format("More than one authorization_code with value %s was found", code));
-         }
+        DeleteItemRequest delete = new DeleteItemRequest()
+                .withTableName(tableName)
+                .withKey(model.convertKey(key))
+                .withConditionExpression("attribute_exists(#code) AND (attribute_not_exists(#expiresAt) OR #expiresAt > :now)")
+                .withExpressionAttributeNames(names)
+                .withExpressionAttributeValues(values)
+                .withReturnValues(ReturnValue.ALL_OLD);
 
-         OAuthCode oAuthCode = results.get(0);
-         OAuth2Authentication authentication = SerializationUtils.deserialize(oAuthCode.getAuthentication());
+        Map<String, AttributeValue> deleted;
+        try {
+            deleted = dynamoDB.deleteItem(delete).getAttributes();
+        } catch (ConditionalCheckFailedException e) {
+            return null;
+        }
 
-         mapper.delete(oAuthCode);
-         return authentication;
+        OAuthCode oAuthCode = model.unconvert(deleted);
+        return authenticationCodec.decode(oAuthCode.getAuthentication());
     }
 }
@@ -8,16 +8,31 @@ import lombok.NoArgsConstructor;
 
 @NoArgsConstructor
 @Data
-@DynamoDBTable(tableName = "authorization_code")
+@DynamoDBTable(tableName = OAuthCode.TABLE_NAME)
 public class OAuthCode {
 
+    public static final String TABLE_NAME = "authorization_code";
+    static final String CODE = "code";
+    static final String EXPIRES_AT = "expiresAt";
+
     @DynamoDBHashKey
     private String code;
 
     private byte[] authentication;
 
+    /**
+     * Expiry in epoch seconds, used as the table's Time To Live attribute.
+     */
+    private Long expiresAt;
+
     public OAuthCode(String code, byte[] authentication) {
         this.code = code;
         this.authentication = authentication;
     }
+
+    public OAuthCode(String code, byte[] authentication, Long expiresAt) {
+        this.code = code;
+        this.authentication = authentication;
+        this.expiresAt = expiresAt;
+    }
 }
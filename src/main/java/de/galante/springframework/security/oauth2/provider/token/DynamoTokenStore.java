@@ -0,0 +1,401 @@
+package de.galante.springframework.security.oauth2.provider.token;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.*;
+import de.galante.springframework.dynamo.ReadConsistency;
+import de.galante.springframework.dynamo.RecentWrites;
+import de.galante.springframework.security.oauth2.provider.OAuth2AuthenticationCodec;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.oauth2.common.*;
+import org.springframework.security.oauth2.common.util.SerializationUtils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.AuthenticationKeyGenerator;
+import org.springframework.security.oauth2.provider.token.DefaultAuthenticationKeyGenerator;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+import org.springframework.util.Assert;
+import org.springframework.util.DigestUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DynamoDB based access and refresh token storage.
+ * <p>
+ * Tokens are keyed by the MD5 hash of their value in the {@value #TOKEN_ID} attribute, so
+ * a token and its authentication are read with a single {@code GetItem}. Access tokens are
+ * stored in the {@value #DEFAULT_ACCESS_TOKEN_TABLE_NAME} table and refresh tokens in the
+ * {@value #DEFAULT_REFRESH_TOKEN_TABLE_NAME} table. The authentication is stored in the
+ * compact form of {@link OAuth2AuthenticationCodec}, and token values, scopes and expiry
+ * as plain attributes.
+ * <p>
+ * The access token table needs global secondary indexes named
+ * <ul>
+ * <li>{@value #AUTHENTICATION_ID_INDEX}, with {@value #AUTHENTICATION_ID} as hash key,</li>
+ * <li>{@value #CLIENT_ID_INDEX}, with {@value #CLIENT_ID} as hash key,</li>
+ * <li>{@value #USER_NAME_INDEX}, with {@value #USER_NAME} as hash key and
+ * {@value #CLIENT_ID} as range key,</li>
+ * </ul>
+ * all projecting all attributes, and {@value #REFRESH_TOKEN_INDEX}, with
+ * {@value #REFRESH_TOKEN_ID} as hash key, projecting only the keys. Tokens of clients
+ * acting on their own behalf have no user name and are not part of the user name index.
+ * <p>
+ * Every expiring token carries its expiry in epoch seconds in the {@value #EXPIRES_AT}
+ * attribute; enable DynamoDB's Time To Live on it in both tables to have expired tokens
+ * removed.
+ *
+ * @author Victor Galante
+ */
+public class DynamoTokenStore implements TokenStore {
+
+    public static final String DEFAULT_ACCESS_TOKEN_TABLE_NAME = "authorization_access_token";
+    public static final String DEFAULT_REFRESH_TOKEN_TABLE_NAME = "authorization_refresh_token";
+
+    public static final String AUTHENTICATION_ID_INDEX = "authentication_id_index";
+    public static final String CLIENT_ID_INDEX = "client_id_index";
+    public static final String USER_NAME_INDEX = "user_name_index";
+    public static final String REFRESH_TOKEN_INDEX = "refresh_token_index";
+
+    public static final String TOKEN_ID = "tokenId";
+    public static final String AUTHENTICATION_ID = "authenticationId";
+    public static final String CLIENT_ID = "clientId";
+    public static final String USER_NAME = "userName";
+    public static final String REFRESH_TOKEN_ID = "refreshTokenId";
+    public static final String EXPIRES_AT = "expiresAt";
+
+    private static final String TOKEN = "token";
+    private static final String TOKEN_TYPE = "tokenType";
+    private static final String EXPIRATION = "expiration";
+    private static final String SCOPE = "scope";
+    private static final String ADDITIONAL_INFORMATION = "additionalInformation";
+    private static final String REFRESH_TOKEN = "refreshToken";
+    private static final String REFRESH_TOKEN_EXPIRATION = "refreshTokenExpiration";
+    private static final String AUTHENTICATION = "authentication";
+
+    private final AmazonDynamoDB dynamoDB;
+    private final OAuth2AuthenticationCodec authenticationCodec = new OAuth2AuthenticationCodec();
+    private AuthenticationKeyGenerator authenticationKeyGenerator = new DefaultAuthenticationKeyGenerator();
+    private String accessTokenTableName = DEFAULT_ACCESS_TOKEN_TABLE_NAME;
+    private String refreshTokenTableName = DEFAULT_REFRESH_TOKEN_TABLE_NAME;
+    private ReadConsistency readConsistency = ReadConsistency.STRONG;
+    private final RecentWrites recentWrites = new RecentWrites();
+
+    @Autowired
+    public DynamoTokenStore(AmazonDynamoDB dynamoDB) {
+        Assert.notNull(dynamoDB, "AmazonDynamoDB must not be null");
+        this.dynamoDB = dynamoDB;
+    }
+
+    /**
+     * Set the name of the table used to store access tokens.
+     *
+     * @param accessTokenTableName the table name
+     */
+    public void setAccessTokenTableName(String accessTokenTableName) {
+        Assert.hasText(accessTokenTableName, "Table name must not be empty");
+        this.accessTokenTableName = accessTokenTableName.trim();
+    }
+
+    /**
+     * Set the name of the table used to store refresh tokens.
+     *
+     * @param refreshTokenTableName the table name
+     */
+    public void setRefreshTokenTableName(String refreshTokenTableName) {
+        Assert.hasText(refreshTokenTableName, "Table name must not be empty");
+        this.refreshTokenTableName = refreshTokenTableName.trim();
+    }
+
+    /**
+     * Set the generator of the keys identifying equivalent authentications, which
+     * {@link #getAccessToken(OAuth2Authentication)} looks up. The default is a
+     * {@link DefaultAuthenticationKeyGenerator}.
+     *
+     * @param authenticationKeyGenerator the authentication key generator
+     */
+    public void setAuthenticationKeyGenerator(AuthenticationKeyGenerator authenticationKeyGenerator) {
+        Assert.notNull(authenticationKeyGenerator, "AuthenticationKeyGenerator must not be null");
+        this.authenticationKeyGenerator = authenticationKeyGenerator;
+    }
+
+    /**
+     * Set how tokens are read by their value. The default is
+     * {@link ReadConsistency#STRONG}, since tokens are usually issued by one node and
+     * presented to another right away. Lookups through the indexes are always
+     * eventually consistent.
+     *
+     * @param readConsistency the read consistency
+     */
+    public void setReadConsistency(ReadConsistency readConsistency) {
+        Assert.notNull(readConsistency, "ReadConsistency must not be null");
+        this.readConsistency = readConsistency;
+    }
+
+    @Override
+    public OAuth2Authentication readAuthentication(OAuth2AccessToken token) {
+        return readAuthentication(token.getValue());
+    }
+
+    @Override
+    public OAuth2Authentication readAuthentication(String token) {
+        Map<String, AttributeValue> item = get(this.accessTokenTableName, extractTokenKey(token));
+        return item != null ? this.authenticationCodec.decode(bytes(item.get(AUTHENTICATION))) : null;
+    }
+
+    @Override
+    public void storeAccessToken(OAuth2AccessToken token, OAuth2Authentication authentication) {
+        String tokenId = extractTokenKey(token.getValue());
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        item.put(TOKEN_ID, new AttributeValue(tokenId));
+        item.put(TOKEN, new AttributeValue(token.getValue()));
+        if (token.getTokenType() != null) {
+            item.put(TOKEN_TYPE, new AttributeValue(token.getTokenType()));
+        }
+        putExpiration(item, EXPIRATION, token.getExpiration());
+        if (token.getScope() != null && !token.getScope().isEmpty()) {
+            item.put(SCOPE, new AttributeValue().withSS(new ArrayList<String>(token.getScope())));
+        }
+        if (token.getAdditionalInformation() != null && !token.getAdditionalInformation().isEmpty()) {
+            item.put(ADDITIONAL_INFORMATION, new AttributeValue().withB(ByteBuffer.wrap(SerializationUtils.serialize(
+                    new LinkedHashMap<String, Object>(token.getAdditionalInformation())))));
+        }
+        OAuth2RefreshToken refreshToken = token.getRefreshToken();
+        if (refreshToken != null) {
+            item.put(REFRESH_TOKEN, new AttributeValue(refreshToken.getValue()));
+            item.put(REFRESH_TOKEN_ID, new AttributeValue(extractTokenKey(refreshToken.getValue())));
+            if (refreshToken instanceof ExpiringOAuth2RefreshToken
+                    && ((ExpiringOAuth2RefreshToken) refreshToken).getExpiration() != null) {
+                item.put(REFRESH_TOKEN_EXPIRATION,
+                        number(((ExpiringOAuth2RefreshToken) refreshToken).getExpiration().getTime()));
+            }
+        }
+        item.put(AUTHENTICATION_ID, new AttributeValue(this.authenticationKeyGenerator.extractKey(authentication)));
+        item.put(CLIENT_ID, new AttributeValue(authentication.getOAuth2Request().getClientId()));
+        if (!authentication.isClientOnly()) {
+            item.put(USER_NAME, new AttributeValue(authentication.getName()));
+        }
+        item.put(AUTHENTICATION, new AttributeValue().withB(ByteBuffer.wrap(this.authenticationCodec.encode(authentication))));
+
+        this.dynamoDB.putItem(new PutItemRequest().withTableName(this.accessTokenTableName).withItem(item));
+        this.recentWrites.written(tokenId);
+    }
+
+    @Override
+    public OAuth2AccessToken readAccessToken(String tokenValue) {
+        Map<String, AttributeValue> item = get(this.accessTokenTableName, extractTokenKey(tokenValue));
+        return item != null ? toAccessToken(item) : null;
+    }
+
+    @Override
+    public void removeAccessToken(OAuth2AccessToken token) {
+        delete(this.accessTokenTableName, extractTokenKey(token.getValue()));
+    }
+
+    @Override
+    public void storeRefreshToken(OAuth2RefreshToken refreshToken, OAuth2Authentication authentication) {
+        String tokenId = extractTokenKey(refreshToken.getValue());
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        item.put(TOKEN_ID, new AttributeValue(tokenId));
+        item.put(TOKEN, new AttributeValue(refreshToken.getValue()));
+        if (refreshToken instanceof ExpiringOAuth2RefreshToken) {
+            putExpiration(item, EXPIRATION, ((ExpiringOAuth2RefreshToken) refreshToken).getExpiration());
+        }
+        item.put(AUTHENTICATION, new AttributeValue().withB(ByteBuffer.wrap(this.authenticationCodec.encode(authentication))));
+
+        this.dynamoDB.putItem(new PutItemRequest().withTableName(this.refreshTokenTableName).withItem(item));
+        this.recentWrites.written(tokenId);
+    }
+
+    @Override
+    public OAuth2RefreshToken readRefreshToken(String tokenValue) {
+        Map<String, AttributeValue> item = get(this.refreshTokenTableName, extractTokenKey(tokenValue));
+        return item != null ? toRefreshToken(item.get(TOKEN).getS(), item.get(EXPIRATION)) : null;
+    }
+
+    @Override
+    public OAuth2Authentication readAuthenticationForRefreshToken(OAuth2RefreshToken token) {
+        Map<String, AttributeValue> item = get(this.refreshTokenTableName, extractTokenKey(token.getValue()));
+        return item != null ? this.authenticationCodec.decode(bytes(item.get(AUTHENTICATION))) : null;
+    }
+
+    @Override
+    public void removeRefreshToken(OAuth2RefreshToken token) {
+        delete(this.refreshTokenTableName, extractTokenKey(token.getValue()));
+    }
+
+    @Override
+    public void removeAccessTokenUsingRefreshToken(OAuth2RefreshToken refreshToken) {
+        Map<String, String> keys = Collections.singletonMap(REFRESH_TOKEN_ID, extractTokenKey(refreshToken.getValue()));
+        for (Map<String, AttributeValue> item : query(REFRESH_TOKEN_INDEX, keys)) {
+            delete(this.accessTokenTableName, item.get(TOKEN_ID).getS());
+        }
+    }
+
+    /**
+     * Returns the token stored for an equivalent authentication. Until Time To Live
+     * removes them, expired tokens of the same authentication are still indexed, so an
+     * unexpired token is preferred. Like {@code JdbcTokenStore}, a token whose stored
+     * authentication no longer yields the same key is stored again for the given one.
+     */
+    @Override
+    public OAuth2AccessToken getAccessToken(OAuth2Authentication authentication) {
+        String authenticationId = this.authenticationKeyGenerator.extractKey(authentication);
+        Map<String, AttributeValue> found = null;
+        OAuth2AccessToken accessToken = null;
+        for (Map<String, AttributeValue> item : query(AUTHENTICATION_ID_INDEX,
+                Collections.singletonMap(AUTHENTICATION_ID, authenticationId))) {
+            OAuth2AccessToken candidate = toAccessToken(item);
+            if (accessToken == null || isPreferred(candidate, accessToken)) {
+                found = item;
+                accessToken = candidate;
+            }
+        }
+        if (accessToken != null && !authenticationId.equals(this.authenticationKeyGenerator.extractKey(
+                this.authenticationCodec.decode(bytes(found.get(AUTHENTICATION)))))) {
+            removeAccessToken(accessToken);
+            storeAccessToken(accessToken, authentication);
+        }
+        return accessToken;
+    }
+
+    @Override
+    public Collection<OAuth2AccessToken> findTokensByClientIdAndUserName(String clientId, String userName) {
+        Map<String, String> keys = new HashMap<String, String>();
+        keys.put(USER_NAME, userName);
+        keys.put(CLIENT_ID, clientId);
+        return toAccessTokens(query(USER_NAME_INDEX, keys));
+    }
+
+    @Override
+    public Collection<OAuth2AccessToken> findTokensByClientId(String clientId) {
+        return toAccessTokens(query(CLIENT_ID_INDEX, Collections.singletonMap(CLIENT_ID, clientId)));
+    }
+
+    private Map<String, AttributeValue> get(String tableName, String tokenId) {
+        return this.dynamoDB.getItem(new GetItemRequest()
+                .withTableName(tableName)
+                .withKey(Collections.singletonMap(TOKEN_ID, new AttributeValue(tokenId)))
+                .withConsistentRead(this.readConsistency.isConsistentRead(this.recentWrites, tokenId)))
+                .getItem();
+    }
+
+    private void delete(String tableName, String tokenId) {
+        try {
+            this.dynamoDB.deleteItem(new DeleteItemRequest()
+                    .withTableName(tableName)
+                    .withKey(Collections.singletonMap(TOKEN_ID, new AttributeValue(tokenId))));
+        } finally {
+            this.recentWrites.written(tokenId);
+        }
+    }
+
+    /**
+     * Reads all items of the access token table with the given index keys.
+     *
+     * @param keys the values of the hash key and optionally the range key of the index
+     */
+    private List<Map<String, AttributeValue>> query(String indexName, Map<String, String> keys) {
+        List<String> conditions = new ArrayList<String>();
+        Map<String, String> names = new HashMap<String, String>();
+        Map<String, AttributeValue> values = new HashMap<String, AttributeValue>();
+        for (Map.Entry<String, String> key : keys.entrySet()) {
+            conditions.add("#" + key.getKey() + " = :" + key.getKey());
+            names.put("#" + key.getKey(), key.getKey());
+            values.put(":" + key.getKey(), new AttributeValue(key.getValue()));
+        }
+        QueryRequest query = new QueryRequest()
+                .withTableName(this.accessTokenTableName)
+                .withIndexName(indexName)
+                .withKeyConditionExpression(String.join(" AND ", conditions))
+                .withExpressionAttributeNames(names)
+                .withExpressionAttributeValues(values);
+
+        List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+        Map<String, AttributeValue> lastEvaluatedKey = null;
+        do {
+            QueryResult result = this.dynamoDB.query(query.withExclusiveStartKey(lastEvaluatedKey));
+            items.addAll(result.getItems());
+            lastEvaluatedKey = result.getLastEvaluatedKey();
+        } while (lastEvaluatedKey != null && !lastEvaluatedKey.isEmpty());
+        return items;
+    }
+
+    private List<OAuth2AccessToken> toAccessTokens(List<Map<String, AttributeValue>> items) {
+        List<OAuth2AccessToken> tokens = new ArrayList<OAuth2AccessToken>(items.size());
+        for (Map<String, AttributeValue> item : items) {
+            tokens.add(toAccessToken(item));
+        }
+        return tokens;
+    }
+
+    private OAuth2AccessToken toAccessToken(Map<String, AttributeValue> item) {
+        DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken(item.get(TOKEN).getS());
+        if (item.containsKey(TOKEN_TYPE)) {
+            token.setTokenType(item.get(TOKEN_TYPE).getS());
+        }
+        if (item.containsKey(EXPIRATION)) {
+            token.setExpiration(new Date(Long.parseLong(item.get(EXPIRATION).getN())));
+        }
+        if (item.containsKey(SCOPE)) {
+            token.setScope(new LinkedHashSet<String>(item.get(SCOPE).getSS()));
+        }
+        if (item.containsKey(ADDITIONAL_INFORMATION)) {
+            token.setAdditionalInformation(SerializationUtils.<Map<String, Object>>deserialize(
+                    bytes(item.get(ADDITIONAL_INFORMATION))));
+        }
+        if (item.containsKey(REFRESH_TOKEN)) {
+            token.setRefreshToken(toRefreshToken(item.get(REFRESH_TOKEN).getS(), item.get(REFRESH_TOKEN_EXPIRATION)));
+        }
+        return token;
+    }
+
+    /**
+     * Whether a token is preferred over another issued for the same authentication: an
+     * unexpired token over an expired one, and otherwise the one expiring later.
+     */
+    private static boolean isPreferred(OAuth2AccessToken token, OAuth2AccessToken other) {
+        if (token.isExpired() != other.isExpired()) {
+            return !token.isExpired();
+        }
+        if (token.getExpiration() == null || other.getExpiration() == null) {
+            return token.getExpiration() == null && other.getExpiration() != null;
+        }
+        return token.getExpiration().after(other.getExpiration());
+    }
+
+    private static OAuth2RefreshToken toRefreshToken(String value, AttributeValue expiration) {
+        return expiration != null
+                ? new DefaultExpiringOAuth2RefreshToken(value, new Date(Long.parseLong(expiration.getN())))
+                : new DefaultOAuth2RefreshToken(value);
+    }
+
+    /**
+     * Stores an expiry date in milliseconds, and in epoch seconds as Time To Live.
+     */
+    private static void putExpiration(Map<String, AttributeValue> item, String attributeName, Date expiration) {
+        if (expiration != null) {
+            item.put(attributeName, number(expiration.getTime()));
+            item.put(EXPIRES_AT, number(TimeUnit.MILLISECONDS.toSeconds(expiration.getTime())));
+        }
+    }
+
+    private static AttributeValue number(long value) {
+        return new AttributeValue().withN(Long.toString(value));
+    }
+
+    private static byte[] bytes(AttributeValue attributeValue) {
+        ByteBuffer buffer = attributeValue.getB().duplicate();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * The key of a token, the hex encoded MD5 hash of its value like the one of
+     * {@code JdbcTokenStore}.
+     */
+    private static String extractTokenKey(String value) {
+        return DigestUtils.md5DigestAsHex(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
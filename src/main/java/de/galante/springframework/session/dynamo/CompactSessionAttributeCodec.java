@@ -0,0 +1,278 @@
+package de.galante.springframework.session.dynamo;
+
+import org.springframework.core.serializer.DefaultDeserializer;
+import org.springframework.core.serializer.DefaultSerializer;
+import org.springframework.core.serializer.Deserializer;
+import org.springframework.core.serializer.Serializer;
+import org.springframework.core.serializer.support.SerializationFailedException;
+import org.springframework.util.Assert;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The default {@link SessionAttributeCodec} of {@link DynamoSessionRepository}.
+ * <p>
+ * Strings, integers, longs, booleans and byte arrays are written in a compact binary
+ * form, any other value with Java serialization. Encoded values larger than the
+ * compression threshold are deflated when that makes them smaller. Encoding reuses
+ * per-thread buffers, so a request only allocates the resulting blobs. A compressed value
+ * gets a {@link Deflater} or {@link Inflater} of its own, ended right after, so threads
+ * do not hold on to native zlib memory.
+ * <p>
+ * Values written with plain Java serialization by {@link SerializingSessionAttributeCodec}
+ * are still decoded.
+ *
+ * @author Victor Galante
+ */
+public class CompactSessionAttributeCodec implements SessionAttributeCodec {
+
+    /**
+     * The default size in bytes above which encoded values are compressed.
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    private static final byte PLAIN = 1;
+    private static final byte DEFLATED = 2;
+    private static final byte SERIALIZED_STREAM = (byte) (ObjectStreamConstants.STREAM_MAGIC >>> 8);
+
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte BYTES = 5;
+    private static final byte SERIALIZED = 6;
+
+    /**
+     * Buffers grown beyond this size are not kept for the next request.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+    private final Serializer<Object> serializer = new DefaultSerializer();
+    private final Deserializer<Object> deserializer;
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private int compressionLevel = Deflater.BEST_SPEED;
+
+    public CompactSessionAttributeCodec() {
+        this.deserializer = new DefaultDeserializer();
+    }
+
+    /**
+     * @param classLoader the class loader used to resolve deserialized classes
+     */
+    public CompactSessionAttributeCodec(ClassLoader classLoader) {
+        this.deserializer = new DefaultDeserializer(classLoader);
+    }
+
+    /**
+     * Set the size in bytes above which encoded values are compressed. A negative value
+     * disables compression. The default is {@value #DEFAULT_COMPRESSION_THRESHOLD}.
+     *
+     * @param compressionThreshold the compression threshold in bytes
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Set the {@link Deflater} compression level. The default is
+     * {@link Deflater#BEST_SPEED}.
+     *
+     * @param compressionLevel the compression level, 0-9
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        Assert.isTrue(compressionLevel >= Deflater.NO_COMPRESSION && compressionLevel <= Deflater.BEST_COMPRESSION,
+                "Compression level must be between 0 and 9");
+        this.compressionLevel = compressionLevel;
+    }
+
+    @Override
+    public byte[] encode(Object attributeValue) {
+        Buffers buffers = this.buffers.get();
+        try {
+            Buffer plain = buffers.plain;
+            plain.reset();
+            plain.write(PLAIN);
+            writeValue(plain, attributeValue);
+
+            if (this.compressionThreshold >= 0 && plain.size() - 1 > this.compressionThreshold) {
+                Buffer deflated = deflate(buffers, plain);
+                if (deflated.size() < plain.size()) {
+                    return deflated.toByteArray();
+                }
+            }
+            return plain.toByteArray();
+        } catch (IOException e) {
+            throw new SerializationFailedException("Failed to encode session attribute of type "
+                    + attributeValue.getClass().getName(), e);
+        } finally {
+            buffers.trim();
+        }
+    }
+
+    @Override
+    public Object decode(byte[] encoded) {
+        Assert.isTrue(encoded.length > 0, "Encoded session attribute must not be empty");
+        try {
+            switch (encoded[0]) {
+                case PLAIN:
+                    return readValue(encoded, 1, encoded.length - 1);
+                case DEFLATED:
+                    byte[] plain = inflate(encoded);
+                    return readValue(plain, 0, plain.length);
+                case SERIALIZED_STREAM:
+                    return this.deserializer.deserialize(new ByteArrayInputStream(encoded));
+                default:
+                    throw new SerializationFailedException("Unknown session attribute encoding " + encoded[0]);
+            }
+        } catch (IOException e) {
+            throw new SerializationFailedException("Failed to decode session attribute", e);
+        } catch (DataFormatException e) {
+            throw new SerializationFailedException("Failed to decompress session attribute", e);
+        }
+    }
+
+    private void writeValue(Buffer out, Object value) throws IOException {
+        if (value instanceof String) {
+            out.write(STRING);
+            out.write(((String) value).getBytes(StandardCharsets.UTF_8));
+        } else if (value instanceof Integer) {
+            out.write(INTEGER);
+            writeInt(out, (Integer) value);
+        } else if (value instanceof Long) {
+            out.write(LONG);
+            writeInt(out, (int) ((Long) value >>> 32));
+            writeInt(out, (int) (long) (Long) value);
+        } else if (value instanceof Boolean) {
+            out.write(BOOLEAN);
+            out.write((Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            out.write(BYTES);
+            out.write((byte[]) value);
+        } else {
+            out.write(SERIALIZED);
+            this.serializer.serialize(value, out);
+        }
+    }
+
+    private Object readValue(byte[] bytes, int offset, int length) throws IOException {
+        int start = offset + 1;
+        int size = length - 1;
+        switch (bytes[offset]) {
+            case STRING:
+                return new String(bytes, start, size, StandardCharsets.UTF_8);
+            case INTEGER:
+                return readInt(bytes, start);
+            case LONG:
+                return ((long) readInt(bytes, start) << 32) | (readInt(bytes, start + 4) & 0xFFFFFFFFL);
+            case BOOLEAN:
+                return bytes[start] != 0;
+            case BYTES:
+                return Arrays.copyOfRange(bytes, start, start + size);
+            case SERIALIZED:
+                return this.deserializer.deserialize(new ByteArrayInputStream(bytes, start, size));
+            default:
+                throw new SerializationFailedException("Unknown session attribute type " + bytes[offset]);
+        }
+    }
+
+    /**
+     * Deflates everything after the format byte of {@code plain}, prefixed with the
+     * length of the uncompressed data.
+     */
+    private Buffer deflate(Buffers buffers, Buffer plain) {
+        Deflater deflater = new Deflater(this.compressionLevel);
+        try {
+            deflater.setInput(plain.array(), 1, plain.size() - 1);
+            deflater.finish();
+
+            Buffer deflated = buffers.deflated;
+            deflated.reset();
+            deflated.write(DEFLATED);
+            writeInt(deflated, plain.size() - 1);
+            while (!deflater.finished() && deflated.size() < plain.size()) {
+                int n = deflater.deflate(buffers.chunk);
+                deflated.write(buffers.chunk, 0, n);
+            }
+            return deflated;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] encoded) throws DataFormatException {
+        byte[] plain = new byte[readInt(encoded, 1)];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(encoded, 5, encoded.length - 5);
+            int inflated = 0;
+            while (inflated < plain.length) {
+                int n = inflater.inflate(plain, inflated, plain.length - inflated);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new DataFormatException("Truncated session attribute");
+                }
+                inflated += n;
+            }
+            return plain;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    /**
+     * A {@link ByteArrayOutputStream} exposing its backing array.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(256);
+        }
+
+        byte[] array() {
+            return this.buf;
+        }
+
+        int capacity() {
+            return this.buf.length;
+        }
+    }
+
+    /**
+     * The buffers reused by one thread.
+     */
+    private static final class Buffers {
+
+        private Buffer plain = new Buffer();
+        private Buffer deflated = new Buffer();
+        private final byte[] chunk = new byte[4096];
+
+        void trim() {
+            if (this.plain.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+                this.plain = new Buffer();
+            }
+            if (this.deflated.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+                this.deflated = new Buffer();
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package de.galante.springframework.session.dynamo;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import org.springframework.util.Assert;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * A bounded in-process cache of session items that {@link DynamoSessionRepository} can
+ * put in front of its {@code GetItem} requests.
+ * <p>
+ * Entries are evicted least recently used first once the maximum size is reached, or
+ * when they have not been read for the maximum idle time. An entry older than the
+ * maximum staleness is never served, which bounds how long a change made on another
+ * node can go unnoticed. Concurrent misses for the same session share a single load,
+ * and a load that completes after the session was invalidated, or that returns an older
+ * version than the cached one, is not cached.
+ *
+ * @author Victor Galante
+ */
+public class DynamoSessionCache {
+
+    private final int maximumSize;
+    private final long maxIdleMillis;
+    private final long maxStalenessMillis;
+    private final Map<String, CachedItem> items;
+    private final ConcurrentMap<String, CompletableFuture<Map<String, AttributeValue>>> loading =
+            new ConcurrentHashMap<String, CompletableFuture<Map<String, AttributeValue>>>();
+
+    /**
+     * @param maximumSize         the maximum number of cached sessions
+     * @param maxIdleSeconds      the time after which a session that was not read is evicted
+     * @param maxStalenessSeconds the time after which a cached session is loaded again
+     */
+    public DynamoSessionCache(int maximumSize, int maxIdleSeconds, int maxStalenessSeconds) {
+        Assert.isTrue(maximumSize > 0, "Maximum size must be positive");
+        Assert.isTrue(maxIdleSeconds > 0, "Maximum idle time must be positive");
+        Assert.isTrue(maxStalenessSeconds > 0, "Maximum staleness must be positive");
+        this.maximumSize = maximumSize;
+        this.maxIdleMillis = TimeUnit.SECONDS.toMillis(maxIdleSeconds);
+        this.maxStalenessMillis = TimeUnit.SECONDS.toMillis(maxStalenessSeconds);
+        this.items = new LinkedHashMap<String, CachedItem>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedItem> eldest) {
+                return size() > DynamoSessionCache.this.maximumSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached item of a session, loading it if it is missing, idle or stale.
+     *
+     * @param id     the session id
+     * @param loader loads the item, returns {@code null} if the session does not exist
+     * @return the session item or {@code null}
+     */
+    Map<String, AttributeValue> get(String id, Function<String, Map<String, AttributeValue>> loader) {
+        long now = System.currentTimeMillis();
+        Map<String, AttributeValue> cached = cached(id, now);
+        if (cached != null) {
+            return cached;
+        }
+
+        CompletableFuture<Map<String, AttributeValue>> load = new CompletableFuture<Map<String, AttributeValue>>();
+        CompletableFuture<Map<String, AttributeValue>> inFlight = this.loading.putIfAbsent(id, load);
+        if (inFlight != null) {
+            return await(inFlight);
+        }
+
+        try {
+            Map<String, AttributeValue> item = loader.apply(id);
+            if (item != null) {
+                put(id, item, load, now);
+            }
+            load.complete(item);
+            return item;
+        } catch (RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.loading.remove(id, load);
+        }
+    }
+
+    /**
+     * Returns the cached item of a session, loading it with an asynchronous loader if it
+     * is missing, idle or stale.
+     *
+     * @param id     the session id
+     * @param loader loads the item, completes with {@code null} if the session does not exist
+     */
+    CompletableFuture<Map<String, AttributeValue>> getAsync(String id,
+            Function<String, CompletableFuture<Map<String, AttributeValue>>> loader) {
+        long now = System.currentTimeMillis();
+        Map<String, AttributeValue> cached = cached(id, now);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<Map<String, AttributeValue>> load = new CompletableFuture<Map<String, AttributeValue>>();
+        CompletableFuture<Map<String, AttributeValue>> inFlight = this.loading.putIfAbsent(id, load);
+        if (inFlight != null) {
+            return inFlight.thenApply(Function.identity());
+        }
+
+        CompletableFuture<Map<String, AttributeValue>> loaded;
+        try {
+            loaded = loader.apply(id);
+        } catch (RuntimeException e) {
+            loaded = new CompletableFuture<Map<String, AttributeValue>>();
+            loaded.completeExceptionally(e);
+        }
+        loaded.whenComplete((item, failure) -> {
+            try {
+                if (item != null) {
+                    put(id, item, load, now);
+                }
+            } finally {
+                this.loading.remove(id, load);
+                // complete the shared load even if caching failed, its readers would wait forever
+                if (failure == null) {
+                    load.complete(item);
+                } else {
+                    load.completeExceptionally(failure);
+                }
+            }
+        });
+        // callers must not be able to complete the shared load
+        return load.thenApply(Function.identity());
+    }
+
+    /**
+     * Evicts a session, and keeps a load already in flight from caching what it read.
+     *
+     * @param id the session id
+     */
+    void invalidate(String id) {
+        synchronized (this.items) {
+            this.items.remove(id);
+            this.loading.remove(id);
+        }
+    }
+
+    private Map<String, AttributeValue> cached(String id, long now) {
+        synchronized (this.items) {
+            CachedItem cached = this.items.get(id);
+            if (cached == null) {
+                return null;
+            }
+            if (now - cached.loadedAt < this.maxStalenessMillis && now - cached.accessedAt < this.maxIdleMillis) {
+                cached.accessedAt = now;
+                return cached.item;
+            }
+            this.items.remove(id);
+            return null;
+        }
+    }
+
+    private void put(String id, Map<String, AttributeValue> item, CompletableFuture<Map<String, AttributeValue>> load, long loadedAt) {
+        long version = DynamoSessionRepository.versionOf(item);
+        synchronized (this.items) {
+            if (this.loading.get(id) != load) {
+                return;
+            }
+            CachedItem cached = this.items.get(id);
+            if (cached == null || cached.version <= version) {
+                this.items.put(id, new CachedItem(item, version, loadedAt));
+            }
+        }
+    }
+
+    private static Map<String, AttributeValue> await(CompletableFuture<Map<String, AttributeValue>> load) {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static final class CachedItem {
+
+        private final Map<String, AttributeValue> item;
+        private final long version;
+        private final long loadedAt;
+        private long accessedAt;
+
+        CachedItem(Map<String, AttributeValue> item, long version, long loadedAt) {
+            this.item = item;
+            this.version = version;
+            this.loadedAt = loadedAt;
+            this.accessedAt = loadedAt;
+        }
+    }
+}
@@ -1,38 +1,214 @@
 package de.galante.springframework.session.dynamo;
 
-import com.amazonaws.services.dynamodbv2.datamodeling.*;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
+import com.amazonaws.services.dynamodbv2.model.*;
+import de.galante.springframework.dynamo.DynamoFutures;
+import de.galante.springframework.dynamo.DynamoRateLimiter;
+import de.galante.springframework.dynamo.ReadConsistency;
+import de.galante.springframework.dynamo.RecentWrites;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.expression.Expression;
 import org.springframework.expression.spel.standard.SpelExpressionParser;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.session.ExpiringSession;
 import org.springframework.session.FindByIndexNameSessionRepository;
 import org.springframework.session.Session;
+import org.springframework.util.Assert;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * A {@link org.springframework.session.SessionRepository} implementation that uses
- * Spring's {@link DynamoDBMapper} to store sessions in Amazon's Dynamo database. This
- * implementation does not support publishing of session events.
+ * Amazon's {@link AmazonDynamoDB} client to store sessions in Amazon's Dynamo database.
+ * This implementation does not support publishing of session events.
+ * <p>
+ * Existing sessions are persisted with a single {@code UpdateItem} request that only
+ * writes the attributes changed since the session was loaded, so a session is never
+ * deleted and re-created while it is being saved. Each attribute is stored as a binary
+ * blob encoded by a {@link SessionAttributeCodec}, a {@link CompactSessionAttributeCodec}
+ * by default.
+ * <p>
+ * The update is conditional on the version the session was loaded with, so concurrent
+ * requests for the same session can be served by any node. When another request saved
+ * the session first, it is read again and merged: the attributes this request changed
+ * are applied over the stored ones, and the last accessed time never moves back. After
+ * {@value #MAX_SAVE_ATTEMPTS} conflicts the changed attributes are written regardless of
+ * the version.
+ * <p>
+ * Every session item carries its expiry time in epoch seconds in the
+ * {@value #EXPIRES_AT} attribute. Enable DynamoDB's Time To Live on that attribute to
+ * have expired sessions removed by DynamoDB itself; until then they are treated as
+ * missing when read. A {@link DynamoSessionSweeper} removes them sooner.
+ * <p>
+ * The resolved principal name of a session is stored in the {@value #PRINCIPAL_NAME}
+ * attribute and looked up through a global secondary index on it, named
+ * {@value #DEFAULT_PRINCIPAL_NAME_INDEX} by default. The index only needs to project
+ * the keys and the {@value #EXPIRES_AT} attribute. Principals holding thousands of
+ * sessions, such as service accounts, can be spread over several index partitions with
+ * {@link #setPrincipalNameShards(int)}.
+ * <p>
+ * Reads can optionally be served from a {@link DynamoSessionCache}, which is
+ * invalidated whenever a session is saved or deleted through this repository. Every
+ * write increments the version attribute of the session item, so the cache never
+ * replaces a session with an older copy.
+ * <p>
+ * A session whose only change is its last accessed time can be persisted less often
+ * by setting a touch threshold, see {@link #setTouchThresholdSeconds(int)} and
+ * {@link #setTouchThresholdRatio(double)}. Sessions then expire up to that threshold
+ * earlier than their actual last access would allow. Touch-only saves are also skipped
+ * while the session table is throttled, see {@link #setRateLimiter(DynamoRateLimiter)}.
+ * <p>
+ * With {@link #setLazyAttributeLoading(boolean) lazy attribute loading} the session item
+ * only holds the metadata and the attribute names, and every attribute is stored as its
+ * own item in a separate table, {@value #DEFAULT_ATTRIBUTE_TABLE_NAME} by default, keyed
+ * by the session id and the attribute name. An attribute is then read the first time it
+ * is accessed. Otherwise attributes are read with the session but only decoded on first
+ * access.
+ * <p>
+ * Saves can be written behind in the background, see
+ * {@link #setWriteBehindDelayMillis(long)}, trading the durability of recent changes
+ * for response times.
+ * <p>
+ * When given an {@link AmazonDynamoDBAsync} client, sessions with attributes stored in the
+ * session item can also be read, saved and deleted without blocking, see
+ * {@link #getSessionAsync(String)}.
  *
  * @author Victor Galante
  */
-public class DynamoSessionRepository implements FindByIndexNameSessionRepository<DynamoSessionRepository.DynamoSession> {
+public class DynamoSessionRepository implements FindByIndexNameSessionRepository<DynamoSessionRepository.DynamoSession>,
+        DisposableBean {
+
+    /**
+     * The default name of the table used by Spring Session to store sessions.
+     */
+    public static final String DEFAULT_TABLE_NAME = "authentication_session";
+
+    /**
+     * The attribute holding the session expiry in epoch seconds, to be used as the
+     * table's Time To Live attribute.
+     */
+    public static final String EXPIRES_AT = "expiresAt";
+
+    /**
+     * The attribute holding the resolved principal name of the session.
+     */
+    public static final String PRINCIPAL_NAME = "principalName";
+
+    /**
+     * The default name of the global secondary index on {@value #PRINCIPAL_NAME}.
+     */
+    public static final String DEFAULT_PRINCIPAL_NAME_INDEX = "principal_name_index";
+
+    /**
+     * Separates the principal name from its shard in the {@value #PRINCIPAL_NAME}
+     * attribute of sharded sessions, a control character principal names do not contain.
+     */
+    public static final String PRINCIPAL_NAME_SHARD_SEPARATOR = "\u001f";
+
+    /**
+     * The default name of the table used to store session attributes when they are
+     * loaded lazily.
+     */
+    public static final String DEFAULT_ATTRIBUTE_TABLE_NAME = "authentication_session_attribute";
 
     private static final Log logger = LogFactory.getLog(DynamoSessionRepository.class);
     private static final String SPRING_SECURITY_CONTEXT = "SPRING_SECURITY_CONTEXT";
     private static final DynamoSessionRepository.PrincipalNameResolver PRINCIPAL_NAME_RESOLVER = new DynamoSessionRepository.PrincipalNameResolver();
-    private final DynamoDBMapper mapper;
+
+    /**
+     * The number of conditional updates a save attempts before writing unconditionally.
+     */
+    static final int MAX_SAVE_ATTEMPTS = 4;
+
+    /**
+     * The maximum number of keys in one {@code BatchGetItem} call.
+     */
+    private static final int MAX_BATCH_GET = 100;
+    private static final int MAX_BATCH_RETRIES = 8;
+
+    public static final int DEFAULT_WRITE_BEHIND_BATCH_SIZE = 25;
+    public static final int DEFAULT_WRITE_BEHIND_MAX_PENDING = 10000;
+
+    static final String ID = "id";
+    private static final String CREATION_TIME = "creationTime";
+    private static final String LAST_ACCESSED_TIME = "lastAccessedTime";
+    private static final String MAX_INACTIVE_INTERVAL = "maxInactiveInterval";
+    private static final String SESSION_ATTRS = "sessionAttrs";
+    private static final String VERSION = "version";
+    private static final String ATTRIBUTE_NAMES = "attributeNames";
+    private static final String ATTRIBUTES_EXPIRES_AT = "attributesExpiresAt";
+
+    private final AmazonDynamoDB dynamoDB;
+    private final SessionAttributeTable attributeTable;
+    private SessionAttributeCodec attributeCodec = new CompactSessionAttributeCodec();
+    private String tableName = DEFAULT_TABLE_NAME;
+    private String principalNameIndexName = DEFAULT_PRINCIPAL_NAME_INDEX;
+    private int principalNameShards = 1;
     private Integer defaultMaxInactiveInterval;
+    private DynamoSessionCache sessionCache;
+    private int touchThresholdSeconds;
+    private double touchThresholdRatio;
+    private boolean lazyAttributeLoading;
+    private DynamoRateLimiter rateLimiter;
+    private ReadConsistency readConsistency = ReadConsistency.STRONG;
+    private final RecentWrites recentWrites = new RecentWrites();
+    private long writeBehindDelayMillis;
+    private int writeBehindBatchSize = DEFAULT_WRITE_BEHIND_BATCH_SIZE;
+    private int writeBehindMaxPending = DEFAULT_WRITE_BEHIND_MAX_PENDING;
+    private volatile SessionWriteBehind writeBehind;
 
     @Autowired
-    public DynamoSessionRepository(DynamoDBMapper mapper) {
-        this.mapper = mapper;
+    public DynamoSessionRepository(AmazonDynamoDB dynamoDB) {
+        Assert.notNull(dynamoDB, "AmazonDynamoDB must not be null");
+        this.dynamoDB = dynamoDB;
+        this.attributeTable = new SessionAttributeTable(dynamoDB, DEFAULT_ATTRIBUTE_TABLE_NAME);
+    }
+
+    /**
+     * Set the name of the table used to store sessions.
+     *
+     * @param tableName the table name
+     */
+    public void setTableName(String tableName) {
+        Assert.hasText(tableName, "Table name must not be empty");
+        this.tableName = tableName.trim();
+    }
+
+    /**
+     * Set the name of the global secondary index used to find sessions by principal name.
+     *
+     * @param principalNameIndexName the index name
+     */
+    public void setPrincipalNameIndexName(String principalNameIndexName) {
+        Assert.hasText(principalNameIndexName, "Index name must not be empty");
+        this.principalNameIndexName = principalNameIndexName.trim();
+    }
+
+    /**
+     * Set the number of shards the principal name index spreads the sessions of a
+     * principal over. Each session is stored under its principal name suffixed with a
+     * shard derived from the session id, except for shard 0 which keeps the plain
+     * principal name; finding the sessions of a principal queries all shards in parallel
+     * when the client is an {@link AmazonDynamoDBAsync}. The default is 1, no sharding.
+     * <p>
+     * Lookups cost one query per shard, so only shard when single principals hold enough
+     * sessions to throttle an index partition. The number of shards can be increased at
+     * any time, but sessions written with more shards than configured are no longer found.
+     *
+     * @param principalNameShards the number of principal name shards
+     */
+    public void setPrincipalNameShards(int principalNameShards) {
+        Assert.isTrue(principalNameShards > 0, "Principal name shards must be positive");
+        this.principalNameShards = principalNameShards;
     }
 
     /**
@@ -46,27 +222,302 @@ public class DynamoSessionRepository implements FindByIndexNameSessionRepository
         this.defaultMaxInactiveInterval = defaultMaxInactiveInterval;
     }
 
+    /**
+     * Set the codec used to encode session attribute values. The default is a
+     * {@link CompactSessionAttributeCodec}.
+     *
+     * @param attributeCodec the session attribute codec
+     */
+    public void setAttributeCodec(SessionAttributeCodec attributeCodec) {
+        Assert.notNull(attributeCodec, "SessionAttributeCodec must not be null");
+        this.attributeCodec = attributeCodec;
+    }
+
+    /**
+     * Set the cache to serve {@link #getSession(String)} from. By default sessions are not
+     * cached.
+     *
+     * @param sessionCache the session cache, or {@code null} to disable caching
+     */
+    public void setSessionCache(DynamoSessionCache sessionCache) {
+        this.sessionCache = sessionCache;
+    }
+
+    /**
+     * Set the minimum time in seconds the last accessed time of a session has to move
+     * before a save that changes nothing else is written. The default is 0, every touch
+     * is written. The threshold applied to a session is capped at half its maximum
+     * inactive interval, so a session in use never expires.
+     *
+     * @param touchThresholdSeconds the touch threshold in seconds
+     */
+    public void setTouchThresholdSeconds(int touchThresholdSeconds) {
+        Assert.isTrue(touchThresholdSeconds >= 0, "Touch threshold must not be negative");
+        this.touchThresholdSeconds = touchThresholdSeconds;
+    }
+
+    /**
+     * Set the minimum fraction of the maximum inactive interval of a session its last
+     * accessed time has to move before a save that changes nothing else is written, for
+     * example 0.01 for 1%. When a fixed threshold is set as well the larger one applies,
+     * up to half the maximum inactive interval. The default is 0, every touch is written.
+     *
+     * @param touchThresholdRatio the touch threshold as a fraction of the maximum
+     *                            inactive interval
+     */
+    public void setTouchThresholdRatio(double touchThresholdRatio) {
+        Assert.isTrue(touchThresholdRatio >= 0 && touchThresholdRatio < 1, "Touch threshold ratio must be between 0 and 1");
+        this.touchThresholdRatio = touchThresholdRatio;
+    }
+
+    /**
+     * Set the rate limiter registered on the client, to skip saves that only touch a
+     * session while the session table is throttled or failing. Such a save is still
+     * written once half of the session's maximum inactive interval has passed since its
+     * last accessed time was written, so the session does not expire while in use.
+     *
+     * @param rateLimiter the rate limiter of the client, or {@code null} to write every
+     *                    touch past the touch threshold
+     */
+    public void setRateLimiter(DynamoRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Set how sessions and their lazily loaded attributes are read. The default is
+     * {@link ReadConsistency#STRONG}, since the request following a save may reach any
+     * node. {@link ReadConsistency#READ_YOUR_WRITES} reads at half the read capacity
+     * except right after this node wrote a session, and never reads a stale session only
+     * if all requests of a session reach the same node, with sticky sessions on the load
+     * balancer. The ids of the sessions found by principal name are always read from the
+     * index, which only supports eventually consistent reads.
+     *
+     * @param readConsistency the read consistency
+     */
+    public void setReadConsistency(ReadConsistency readConsistency) {
+        Assert.notNull(readConsistency, "ReadConsistency must not be null");
+        this.readConsistency = readConsistency;
+    }
+
+    /**
+     * Set the maximum time in milliseconds a save is queued before it is written, to
+     * write changed sessions in the background instead of on the saving thread. Saves of
+     * a session still queued are written together, and reading a session through
+     * {@link #getSession(String)} writes its queued changes first, so the node saving a
+     * session always reads it back. Other nodes see the changes after at most this delay.
+     * <p>
+     * New sessions and saves changing the security context or principal name are always
+     * written synchronously, so are saves while the queue is full. Queued changes are
+     * written on {@link #destroy()}, and lost if the node fails or a background write
+     * fails. The default is 0, every save is written synchronously.
+     *
+     * @param writeBehindDelayMillis the maximum write-behind delay in milliseconds, or 0
+     *                               to disable write-behind
+     */
+    public void setWriteBehindDelayMillis(long writeBehindDelayMillis) {
+        Assert.isTrue(writeBehindDelayMillis >= 0, "Write-behind delay must not be negative");
+        this.writeBehindDelayMillis = writeBehindDelayMillis;
+    }
+
+    /**
+     * Set the number of queued sessions that are written without waiting for the
+     * write-behind delay, which is also the number of sessions written in parallel. The
+     * default is {@value #DEFAULT_WRITE_BEHIND_BATCH_SIZE}.
+     *
+     * @param writeBehindBatchSize the write-behind batch size
+     */
+    public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+        Assert.isTrue(writeBehindBatchSize > 0, "Write-behind batch size must be positive");
+        this.writeBehindBatchSize = writeBehindBatchSize;
+    }
+
+    /**
+     * Set the number of queued sessions above which saves of further sessions are written
+     * synchronously again, until the queue is flushed. The default is
+     * {@value #DEFAULT_WRITE_BEHIND_MAX_PENDING}.
+     *
+     * @param writeBehindMaxPending the maximum number of queued sessions
+     */
+    public void setWriteBehindMaxPending(int writeBehindMaxPending) {
+        Assert.isTrue(writeBehindMaxPending > 0, "Write-behind maximum must be positive");
+        this.writeBehindMaxPending = writeBehindMaxPending;
+    }
+
+    /**
+     * Set whether session attributes are stored as separate items and each is only read
+     * when it is first accessed. Suits sessions holding large attributes most requests
+     * do not use. The default is {@code false}, attributes are stored within the session
+     * item. Sessions written in one mode cannot be read in the other.
+     *
+     * @param lazyAttributeLoading whether to load attributes lazily
+     */
+    public void setLazyAttributeLoading(boolean lazyAttributeLoading) {
+        this.lazyAttributeLoading = lazyAttributeLoading;
+    }
+
+    /**
+     * Set the name of the table used to store session attributes when they are loaded
+     * lazily.
+     *
+     * @param attributeTableName the table name
+     */
+    public void setAttributeTableName(String attributeTableName) {
+        Assert.hasText(attributeTableName, "Table name must not be empty");
+        this.attributeTable.setTableName(attributeTableName.trim());
+    }
+
+    /**
+     * Finds the sessions of a principal through the principal name index, querying every
+     * principal name shard. Only the ids of the unexpired sessions are read from the
+     * index; the sessions themselves are then read with {@code BatchGetItem}, and those
+     * gone or expired by then are left out of the returned map.
+     */
     @Override
     public Map<String, DynamoSession> findByIndexNameAndIndexValue(String indexName, String indexValue) {
 
-        if (!PRINCIPAL_NAME_INDEX_NAME.equals(indexName)) {
+        if (!PRINCIPAL_NAME_INDEX_NAME.equals(indexName) || indexValue == null || indexValue.isEmpty()) {
             return Collections.emptyMap();
         }
 
-        DynamoDBQueryExpression<DynamoSession> listSessionsByPrincipalNameQuery = new DynamoDBQueryExpression<DynamoSession>()
-                .withConsistentRead(true)
-                .withKeyConditionExpression(":principalName = " + indexValue);
+        Map<String, String> names = new HashMap<String, String>();
+        names.put("#principalName", PRINCIPAL_NAME);
+        names.put("#id", ID);
+        names.put("#expiresAt", EXPIRES_AT);
 
-        PaginatedQueryList<DynamoSession> sessions = mapper.query(DynamoSession.class, listSessionsByPrincipalNameQuery);
+        List<QueryRequest> listSessionsByPrincipalNameQueries = new ArrayList<QueryRequest>();
+        for (int shard = 0; shard < this.principalNameShards; shard++) {
+            listSessionsByPrincipalNameQueries.add(new QueryRequest()
+                    .withTableName(this.tableName)
+                    .withIndexName(this.principalNameIndexName)
+                    .withKeyConditionExpression("#principalName = :principalName")
+                    .withProjectionExpression("#id, #expiresAt")
+                    .withExpressionAttributeNames(names)
+                    .withExpressionAttributeValues(Collections.singletonMap(":principalName",
+                            new AttributeValue(shardedPrincipalName(indexValue, shard)))));
+        }
 
-        Map<String, DynamoSession> sessionMap = new HashMap<String, DynamoSession>(
-                sessions.size());
+        List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>();
+        if (listSessionsByPrincipalNameQueries.size() > 1 && this.dynamoDB instanceof AmazonDynamoDBAsync) {
+            List<CompletableFuture<List<Map<String, AttributeValue>>>> shards =
+                    new ArrayList<CompletableFuture<List<Map<String, AttributeValue>>>>();
+            for (QueryRequest query : listSessionsByPrincipalNameQueries) {
+                shards.add(queryAsync((AmazonDynamoDBAsync) this.dynamoDB, query,
+                        new ArrayList<Map<String, AttributeValue>>()));
+            }
+            try {
+                for (CompletableFuture<List<Map<String, AttributeValue>>> shard : shards) {
+                    items.addAll(shard.join());
+                }
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        } else {
+            for (QueryRequest query : listSessionsByPrincipalNameQueries) {
+                Map<String, AttributeValue> lastEvaluatedKey = null;
+                do {
+                    QueryResult result = this.dynamoDB.query(query.withExclusiveStartKey(lastEvaluatedKey));
+                    items.addAll(result.getItems());
+                    lastEvaluatedKey = result.getLastEvaluatedKey();
+                } while (lastEvaluatedKey != null && !lastEvaluatedKey.isEmpty());
+            }
+        }
+
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        List<String> ids = new ArrayList<String>();
+        for (Map<String, AttributeValue> item : items) {
+            AttributeValue expiresAt = item.get(EXPIRES_AT);
+            if (expiresAt == null || Long.parseLong(expiresAt.getN()) > now) {
+                ids.add(item.get(ID).getS());
+            }
+        }
+
+        Map<String, DynamoSession> sessions = new HashMap<String, DynamoSession>(ids.size());
+        for (Map<String, AttributeValue> item : loadItems(ids)) {
+            DynamoSession session = toSession(item);
+            if (!session.isExpired()) {
+                sessions.put(session.getId(), session);
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * Reads session items with {@code BatchGetItem}, retrying unprocessed keys. Items of
+     * sessions that do not exist are missing from the returned list.
+     */
+    private List<Map<String, AttributeValue>> loadItems(List<String> ids) {
+        SessionWriteBehind writeBehind = this.writeBehind;
+        List<Map<String, AttributeValue>> items = new ArrayList<Map<String, AttributeValue>>(ids.size());
+        for (int from = 0; from < ids.size(); from += MAX_BATCH_GET) {
+            List<String> chunk = ids.subList(from, Math.min(from + MAX_BATCH_GET, ids.size()));
+            List<Map<String, AttributeValue>> keys = new ArrayList<Map<String, AttributeValue>>(chunk.size());
+            boolean consistentRead = false;
+            for (String id : chunk) {
+                if (writeBehind != null) {
+                    writeBehind.flush(id);
+                }
+                keys.add(key(id));
+                consistentRead |= isConsistentRead(id);
+            }
+            Map<String, KeysAndAttributes> pending = Collections.singletonMap(this.tableName,
+                    new KeysAndAttributes().withKeys(keys).withConsistentRead(consistentRead));
+            for (int attempt = 0; pending != null && !pending.isEmpty(); attempt++) {
+                Assert.state(attempt <= MAX_BATCH_RETRIES, "Sessions could not be read, unprocessed keys left");
+                if (attempt > 0) {
+                    backOff(attempt);
+                }
+                BatchGetItemResult result = this.dynamoDB.batchGetItem(new BatchGetItemRequest(pending));
+                List<Map<String, AttributeValue>> read = result.getResponses().get(this.tableName);
+                if (read != null) {
+                    items.addAll(read);
+                }
+                pending = result.getUnprocessedKeys();
+            }
+        }
+        return items;
+    }
 
-        for (DynamoSession session : sessions) {
-            sessionMap.put(session.getId(), session);
+    private static void backOff(int attempt) {
+        try {
+            Thread.sleep(Math.min(1000, 25L << attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading sessions", e);
         }
+    }
+
+    /**
+     * Reads all pages of a query, adding their items to the given list.
+     */
+    private CompletableFuture<List<Map<String, AttributeValue>>> queryAsync(
+            AmazonDynamoDBAsync dynamoDBAsync, QueryRequest query, List<Map<String, AttributeValue>> items) {
+        CompletableFuture<QueryResult> page = DynamoFutures.execute(query, dynamoDBAsync::queryAsync);
+        return page.thenCompose(result -> {
+            items.addAll(result.getItems());
+            Map<String, AttributeValue> lastEvaluatedKey = result.getLastEvaluatedKey();
+            return lastEvaluatedKey == null || lastEvaluatedKey.isEmpty()
+                    ? CompletableFuture.completedFuture(items)
+                    : queryAsync(dynamoDBAsync, query.withExclusiveStartKey(lastEvaluatedKey), items);
+        });
+    }
+
+    /**
+     * Returns the value of the {@value #PRINCIPAL_NAME} attribute of a session, the
+     * principal name with the shard of the session appended. Shard 0 of a principal name
+     * without the separator is the plain name, so unsharded sessions stay in shard 0 and
+     * no principal name can be mistaken for another's shard.
+     */
+    private String principalNameAttribute(DynamoSession session, String principalName) {
+        return shardedPrincipalName(principalName, Math.floorMod(session.getId().hashCode(), this.principalNameShards));
+    }
 
-        return sessionMap;
+    private static String shardedPrincipalName(String principalName, int shard) {
+        return shard == 0 && !principalName.contains(PRINCIPAL_NAME_SHARD_SEPARATOR)
+                ? principalName
+                : principalName + PRINCIPAL_NAME_SHARD_SEPARATOR + shard;
     }
 
     @Override
@@ -80,48 +531,601 @@ public class DynamoSessionRepository implements FindByIndexNameSessionRepository
 
     @Override
     public void save(final DynamoSession session) {
+        SessionWriteBehind writeBehind = writeBehind();
+        if (writeBehind != null && !session.isNew() && (session.isChanged() || !session.getDelta().isEmpty())) {
+            if (isTouchDeferred(session)) {
+                return;
+            }
+            if (!isPrincipalChanged(session) && writeBehind.enqueue(session)) {
+                session.clearChangeFlags();
+                return;
+            }
+            writeBehind.flush(session.getId());
+        }
+        write(session);
+    }
+
+    /**
+     * Writes the queued session saves and stops queueing further ones.
+     */
+    @Override
+    public void destroy() {
+        SessionWriteBehind writeBehind = this.writeBehind;
+        if (writeBehind != null) {
+            writeBehind.close();
+        }
+    }
+
+    private void write(DynamoSession session) {
         if (session.isNew()) {
-            mapper.save(session);
-        } else {
-            delete(session.getId());
-            mapper.save(session);
+            long attributesExpiresAt = attributesExpiresAt(session);
+            if (this.lazyAttributeLoading) {
+                this.attributeTable.write(session.getId(), encode(session.sessionAttrs),
+                        Collections.<String>emptySet(), attributesExpiresAt);
+            }
+            this.dynamoDB.putItem(new PutItemRequest()
+                    .withTableName(this.tableName)
+                    .withItem(toItem(session, attributesExpiresAt)));
+            session.attributesExpiresAt = attributesExpiresAt;
+            session.version = 1;
+            invalidate(session.getId());
+        } else if (session.isChanged() || !session.getDelta().isEmpty()) {
+            if (isTouchDeferred(session)) {
+                // keep the change flags, the touch is written with the next real change
+                return;
+            }
+            long attributesExpiresAt = attributesExpiresAt(session);
+            try {
+                if (this.lazyAttributeLoading) {
+                    saveAttributes(session, attributesExpiresAt);
+                }
+                update(session, attributesExpiresAt);
+            } finally {
+                invalidate(session.getId());
+            }
         }
+        session.clearChangeFlags();
     }
 
     @Override
     public DynamoSession getSession(String id) {
-        DynamoSession session = mapper.load(DynamoSession.class, id);
-        if (session != null) {
-            if (session.isExpired()) {
-                delete(id);
-            } else {
-                return session;
-            }
+        SessionWriteBehind writeBehind = this.writeBehind;
+        if (writeBehind != null) {
+            writeBehind.flush(id);
         }
+        Map<String, AttributeValue> item = this.sessionCache != null
+                ? this.sessionCache.get(id, this::loadItem)
+                : loadItem(id);
 
-        return null;
+        if (item == null) {
+            return null;
+        }
+
+        // expired items are left for the table's TTL to remove
+        DynamoSession session = toSession(item);
+        return session.isExpired() ? null : session;
     }
 
     @Override
     public void delete(String s) {
-        mapper.delete(new DynamoSession(s));
+        SessionWriteBehind writeBehind = this.writeBehind;
+        if (writeBehind != null) {
+            writeBehind.discard(s);
+        }
+        try {
+            Map<String, AttributeValue> deleted = this.dynamoDB.deleteItem(new DeleteItemRequest()
+                    .withTableName(this.tableName)
+                    .withKey(key(s))
+                    .withReturnValues(this.lazyAttributeLoading ? ReturnValue.ALL_OLD : ReturnValue.NONE))
+                    .getAttributes();
+            if (this.lazyAttributeLoading && deleted != null && deleted.containsKey(ATTRIBUTE_NAMES)) {
+                this.attributeTable.delete(s, deleted.get(ATTRIBUTE_NAMES).getM().keySet());
+            }
+        } finally {
+            invalidate(s);
+        }
+    }
+
+    /**
+     * Loads a session with the asynchronous client instead of blocking the calling thread.
+     * Requires an {@link AmazonDynamoDBAsync} client and attributes stored within the
+     * session item.
+     *
+     * @param id the session id
+     * @return a future completed with the session, or {@code null} if it does not exist
+     * or has expired
+     */
+    public CompletableFuture<DynamoSession> getSessionAsync(String id) {
+        AmazonDynamoDBAsync dynamoDBAsync = asyncClient();
+        Function<String, CompletableFuture<Map<String, AttributeValue>>> loader = sessionId -> {
+            CompletableFuture<GetItemResult> loaded = DynamoFutures.execute(new GetItemRequest()
+                    .withTableName(this.tableName)
+                    .withKey(key(sessionId))
+                    .withConsistentRead(isConsistentRead(sessionId)), dynamoDBAsync::getItemAsync);
+            return loaded.thenApply(GetItemResult::getItem);
+        };
+        CompletableFuture<Map<String, AttributeValue>> item = this.sessionCache != null
+                ? this.sessionCache.getAsync(id, loader)
+                : loader.apply(id);
+        return item.thenApply(loaded -> {
+            if (loaded == null) {
+                return null;
+            }
+            DynamoSession session = toSession(loaded);
+            return session.isExpired() ? null : session;
+        });
+    }
+
+    /**
+     * Saves a session with the asynchronous client instead of blocking the calling thread,
+     * like {@link #save(DynamoSession)}. The session must not be changed until the returned
+     * future completes. Requires an {@link AmazonDynamoDBAsync} client and attributes
+     * stored within the session item.
+     *
+     * @param session the session to save
+     * @return a future completed once the session is written
+     */
+    public CompletableFuture<Void> saveAsync(final DynamoSession session) {
+        AmazonDynamoDBAsync dynamoDBAsync = asyncClient();
+        CompletableFuture<?> written;
+        if (session.isNew()) {
+            CompletableFuture<PutItemResult> put = DynamoFutures.execute(new PutItemRequest()
+                    .withTableName(this.tableName)
+                    .withItem(toItem(session, -1)), dynamoDBAsync::putItemAsync);
+            written = put.thenRun(() -> session.version = 1);
+        } else if (session.isChanged() || !session.getDelta().isEmpty()) {
+            if (isTouchDeferred(session)) {
+                return CompletableFuture.completedFuture(null);
+            }
+            written = updateAsync(dynamoDBAsync, session, 1);
+        } else {
+            return CompletableFuture.completedFuture(null);
+        }
+        return written.handle((result, failure) -> {
+            invalidate(session.getId());
+            if (failure != null) {
+                throw DynamoFutures.completionException(failure);
+            }
+            session.clearChangeFlags();
+            return null;
+        });
     }
 
-    @Scheduled(cron = "${spring.session.cleanup.cron.expression:0 * * * * *}")
-    public void cleanUpExpiredSessions() {
+    /**
+     * Deletes a session with the asynchronous client instead of blocking the calling
+     * thread. Requires an {@link AmazonDynamoDBAsync} client and attributes stored within
+     * the session item.
+     *
+     * @param id the session id
+     * @return a future completed once the session is deleted
+     */
+    public CompletableFuture<Void> deleteAsync(String id) {
+        CompletableFuture<DeleteItemResult> deleted = DynamoFutures.execute(new DeleteItemRequest()
+                .withTableName(this.tableName)
+                .withKey(key(id)), asyncClient()::deleteItemAsync);
+        return deleted.handle((result, failure) -> {
+            invalidate(id);
+            if (failure != null) {
+                throw DynamoFutures.completionException(failure);
+            }
+            return null;
+        });
+    }
 
-        DynamoDBQueryExpression<DynamoSession> deleteSessionsByLastAccessTimeQuery = new DynamoDBQueryExpression<DynamoSession>()
-                .withConsistentRead(true)
-                .withKeyConditionExpression(":maxInactiveInterval < (" + System.currentTimeMillis() + ") / 1000");
+    /**
+     * Writes the changes of a session conditional on its version, merging it with the
+     * stored session and trying again when another request saved it first.
+     */
+    private void update(DynamoSession session, long attributesExpiresAt) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                this.dynamoDB.updateItem(toUpdate(session, attributesExpiresAt, attempt < MAX_SAVE_ATTEMPTS));
+                updated(session, attributesExpiresAt, attempt < MAX_SAVE_ATTEMPTS);
+                return;
+            } catch (ConditionalCheckFailedException e) {
+                Map<String, AttributeValue> item = loadItem(session.getId(), true);
+                if (!merge(session, item)) {
+                    return;
+                }
+                if (this.lazyAttributeLoading) {
+                    long merged = attributesExpiresAt(session);
+                    if (merged > attributesExpiresAt) {
+                        // the stored session was touched later, the attributes written have to outlive it
+                        this.attributeTable.extend(session.getId(), session.sessionAttrs.keySet(), merged);
+                        attributesExpiresAt = merged;
+                    }
+                }
+            }
+        }
+    }
 
-        PaginatedQueryList<DynamoSession> found = mapper.query(DynamoSession.class, deleteSessionsByLastAccessTimeQuery);
+    private CompletableFuture<Void> updateAsync(AmazonDynamoDBAsync dynamoDBAsync, DynamoSession session, int attempt) {
+        boolean conditional = attempt < MAX_SAVE_ATTEMPTS;
+        CompletableFuture<UpdateItemResult> updated = DynamoFutures.execute(
+                toUpdate(session, -1, conditional), dynamoDBAsync::updateItemAsync);
+        CompletableFuture<CompletableFuture<Void>> next = updated.handle((result, failure) -> {
+            if (failure == null) {
+                updated(session, -1, conditional);
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            if (!(failure instanceof ConditionalCheckFailedException)) {
+                throw DynamoFutures.completionException(failure);
+            }
+            CompletableFuture<GetItemResult> loaded = DynamoFutures.execute(new GetItemRequest()
+                    .withTableName(this.tableName)
+                    .withKey(key(session.getId()))
+                    .withConsistentRead(true), dynamoDBAsync::getItemAsync);
+            return loaded.thenCompose(item -> merge(session, item.getItem())
+                    ? updateAsync(dynamoDBAsync, session, attempt + 1)
+                    : CompletableFuture.<Void>completedFuture(null));
+        });
+        return next.thenCompose(Function.identity());
+    }
 
-        found.parallelStream()
-                .forEach(s -> delete(s.getId()));
+    private static void updated(DynamoSession session, long attributesExpiresAt, boolean conditional) {
+        session.attributesExpiresAt = attributesExpiresAt;
+        // an unconditional update may have raced with others, the next save has to reload
+        session.version = conditional ? session.version + 1 : DynamoSession.UNKNOWN_VERSION;
+    }
 
+    /**
+     * Merges a session whose conditional update failed with the session as now stored.
+     * The attributes changed by this request are kept, all others and the metadata not
+     * changed by this request are taken from the stored session, and the last accessed
+     * time is the later of both.
+     *
+     * @param item the stored session item, {@code null} if it was deleted
+     * @return whether the merged session still has changes to write
+     */
+    private boolean merge(DynamoSession session, Map<String, AttributeValue> item) {
+        if (item == null) {
+            // the session was deleted by another request, do not resurrect it
+            if (logger.isDebugEnabled()) {
+                logger.debug("Session " + session.getId() + " was deleted before it could be saved");
+            }
+            return false;
+        }
         if (logger.isDebugEnabled()) {
-            logger.debug("Cleaned up " + found.size() + " expired sessions");
+            logger.debug("Session " + session.getId() + " was saved concurrently, merging");
+        }
+        DynamoSession stored = toSession(item);
+        session.version = versionOf(item);
+        session.attributesExpiresAt = stored.attributesExpiresAt;
+
+        boolean intervalChanged = session.maxInactiveInterval != session.persistedMaxInactiveInterval;
+        long lastAccessedTime = Math.max(session.lastAccessedTime, stored.lastAccessedTime);
+        int maxInactiveInterval = intervalChanged ? session.maxInactiveInterval : stored.maxInactiveInterval;
+        session.persistedLastAccessedTime = stored.lastAccessedTime;
+        session.persistedMaxInactiveInterval = stored.maxInactiveInterval;
+        session.lastAccessedTime = lastAccessedTime;
+        session.maxInactiveInterval = maxInactiveInterval;
+        session.expiresAt = session.computeExpiresAt();
+        session.changed = lastAccessedTime != stored.lastAccessedTime || maxInactiveInterval != stored.maxInactiveInterval;
+
+        for (Iterator<String> names = session.sessionAttrs.keySet().iterator(); names.hasNext(); ) {
+            String name = names.next();
+            if (!session.delta.containsKey(name) && !stored.sessionAttrs.containsKey(name)) {
+                names.remove();
+            }
+        }
+        for (Map.Entry<String, Object> attribute : stored.sessionAttrs.entrySet()) {
+            if (!session.delta.containsKey(attribute.getKey())) {
+                session.sessionAttrs.put(attribute.getKey(), attribute.getValue());
+            }
+        }
+        return session.changed || !session.delta.isEmpty();
+    }
+
+    private SessionWriteBehind writeBehind() {
+        if (this.writeBehindDelayMillis <= 0) {
+            return null;
+        }
+        SessionWriteBehind writeBehind = this.writeBehind;
+        if (writeBehind == null) {
+            synchronized (this) {
+                if (this.writeBehind == null) {
+                    this.writeBehind = new SessionWriteBehind(this::write, this.writeBehindDelayMillis,
+                            this.writeBehindBatchSize, this.writeBehindMaxPending);
+                }
+                writeBehind = this.writeBehind;
+            }
+        }
+        return writeBehind;
+    }
+
+    private static boolean isPrincipalChanged(DynamoSession session) {
+        return session.getDelta().containsKey(PRINCIPAL_NAME_INDEX_NAME)
+                || session.getDelta().containsKey(SPRING_SECURITY_CONTEXT);
+    }
+
+    private AmazonDynamoDBAsync asyncClient() {
+        Assert.state(this.dynamoDB instanceof AmazonDynamoDBAsync,
+                "Asynchronous operations require an AmazonDynamoDBAsync client");
+        Assert.state(!this.lazyAttributeLoading,
+                "Sessions with lazily loaded attributes can only be accessed synchronously");
+        return (AmazonDynamoDBAsync) this.dynamoDB;
+    }
+
+    /**
+     * Writes the attributes changed in a lazily loaded session to the attribute table,
+     * and moves the expiry of the unchanged ones if the session outlives it.
+     */
+    private void saveAttributes(DynamoSession session, long attributesExpiresAt) {
+        Map<String, Object> changed = new HashMap<String, Object>();
+        Set<String> removed = new HashSet<String>();
+        for (Map.Entry<String, Object> entry : session.getDelta().entrySet()) {
+            if (entry.getValue() == null) {
+                removed.add(entry.getKey());
+            } else {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        this.attributeTable.write(session.getId(), encode(changed), removed, attributesExpiresAt);
+
+        if (attributesExpiresAt != session.attributesExpiresAt) {
+            Set<String> unchanged = new HashSet<String>(session.sessionAttrs.keySet());
+            unchanged.removeAll(session.getDelta().keySet());
+            this.attributeTable.extend(session.getId(), unchanged, attributesExpiresAt);
+        }
+    }
+
+    /**
+     * The expiry to give the attribute items of a lazily loaded session: they have to
+     * outlive the session, and are moved one maximum inactive interval ahead of it
+     * whenever it would outlive them.
+     */
+    private long attributesExpiresAt(DynamoSession session) {
+        long expiresAt = session.getExpiresAt();
+        long current = session.attributesExpiresAt;
+        if (expiresAt < 0) {
+            return -1;
+        }
+        if (current >= 0 && current >= expiresAt) {
+            return current;
+        }
+        return expiresAt + session.getMaxInactiveIntervalInSeconds();
+    }
+
+    private boolean isTouchDeferred(DynamoSession session) {
+        if (!session.isTouchOnly()) {
+            return false;
+        }
+        long touched = session.getLastAccessedTime() - session.persistedLastAccessedTime;
+        if (this.rateLimiter != null && this.rateLimiter.isDegraded(this.tableName)
+                && (session.getMaxInactiveIntervalInSeconds() <= 0
+                || touched < TimeUnit.SECONDS.toMillis(session.getMaxInactiveIntervalInSeconds()) / 2)) {
+            return true;
+        }
+        long threshold = TimeUnit.SECONDS.toMillis(this.touchThresholdSeconds);
+        if (session.getMaxInactiveIntervalInSeconds() > 0) {
+            long maxInactiveInterval = TimeUnit.SECONDS.toMillis(session.getMaxInactiveIntervalInSeconds());
+            threshold = Math.max(threshold, (long) (maxInactiveInterval * this.touchThresholdRatio));
+            // the stored session has to outlive the deferred touches by a margin
+            threshold = Math.min(threshold, maxInactiveInterval / 2);
+        }
+        return touched < threshold;
+    }
+
+    private Map<String, AttributeValue> loadItem(String id) {
+        return loadItem(id, isConsistentRead(id));
+    }
+
+    private Map<String, AttributeValue> loadItem(String id, boolean consistentRead) {
+        return this.dynamoDB.getItem(new GetItemRequest()
+                .withTableName(this.tableName)
+                .withKey(key(id))
+                .withConsistentRead(consistentRead)).getItem();
+    }
+
+    private boolean isConsistentRead(String id) {
+        return this.readConsistency.isConsistentRead(this.recentWrites, id);
+    }
+
+    /**
+     * Called after every write of a session, including failed ones and deletions.
+     */
+    private void invalidate(String id) {
+        this.recentWrites.written(id);
+        if (this.sessionCache != null) {
+            this.sessionCache.invalidate(id);
+        }
+    }
+
+    private Map<String, AttributeValue> toItem(DynamoSession session, long attributesExpiresAt) {
+        Map<String, AttributeValue> attributes = new HashMap<String, AttributeValue>();
+        for (String attributeName : session.sessionAttrs.keySet()) {
+            attributes.put(attributeName, this.lazyAttributeLoading ? present() : session.encoded(attributeName));
+        }
+
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        item.put(ID, new AttributeValue(session.getId()));
+        item.put(CREATION_TIME, number(session.getCreationTime()));
+        item.put(LAST_ACCESSED_TIME, number(session.getLastAccessedTime()));
+        item.put(MAX_INACTIVE_INTERVAL, number(session.getMaxInactiveIntervalInSeconds()));
+        item.put(VERSION, number(1));
+        if (session.getExpiresAt() >= 0) {
+            item.put(EXPIRES_AT, number(session.getExpiresAt()));
+        }
+        String principalName = PRINCIPAL_NAME_RESOLVER.resolvePrincipal(session);
+        if (principalName != null && !principalName.isEmpty()) {
+            item.put(PRINCIPAL_NAME, new AttributeValue(principalNameAttribute(session, principalName)));
+        }
+        if (this.lazyAttributeLoading) {
+            item.put(ATTRIBUTE_NAMES, new AttributeValue().withM(attributes));
+            if (attributesExpiresAt >= 0) {
+                item.put(ATTRIBUTES_EXPIRES_AT, number(attributesExpiresAt));
+            }
+        } else {
+            item.put(SESSION_ATTRS, new AttributeValue().withM(attributes));
+        }
+        return item;
+    }
+
+    /**
+     * Builds an update that only touches the session metadata if it changed and the
+     * attribute paths recorded in the session delta. With lazy attribute loading only
+     * the attribute names are updated.
+     *
+     * @param conditional whether the update requires the stored version to be the one
+     *                    of the session, otherwise only that the session exists
+     */
+    private UpdateItemRequest toUpdate(DynamoSession session, long attributesExpiresAt, boolean conditional) {
+        List<String> set = new ArrayList<String>();
+        List<String> remove = new ArrayList<String>();
+        Map<String, String> names = new HashMap<String, String>();
+        Map<String, AttributeValue> values = new HashMap<String, AttributeValue>();
+
+        if (session.isChanged()) {
+            set.add(LAST_ACCESSED_TIME + " = :lastAccessedTime");
+            set.add(MAX_INACTIVE_INTERVAL + " = :maxInactiveInterval");
+            values.put(":lastAccessedTime", number(session.getLastAccessedTime()));
+            values.put(":maxInactiveInterval", number(session.getMaxInactiveIntervalInSeconds()));
+            if (session.getExpiresAt() >= 0) {
+                set.add(EXPIRES_AT + " = :expiresAt");
+                values.put(":expiresAt", number(session.getExpiresAt()));
+            } else {
+                remove.add(EXPIRES_AT);
+            }
+        }
+
+        if (isPrincipalChanged(session)) {
+            String principalName = PRINCIPAL_NAME_RESOLVER.resolvePrincipal(session);
+            if (principalName != null && !principalName.isEmpty()) {
+                set.add(PRINCIPAL_NAME + " = :principalName");
+                values.put(":principalName", new AttributeValue(principalNameAttribute(session, principalName)));
+            } else {
+                remove.add(PRINCIPAL_NAME);
+            }
+        }
+
+        if (this.lazyAttributeLoading && attributesExpiresAt != session.attributesExpiresAt) {
+            if (attributesExpiresAt >= 0) {
+                set.add(ATTRIBUTES_EXPIRES_AT + " = :attributesExpiresAt");
+                values.put(":attributesExpiresAt", number(attributesExpiresAt));
+            } else {
+                remove.add(ATTRIBUTES_EXPIRES_AT);
+            }
+        }
+
+        if (!session.getDelta().isEmpty()) {
+            names.put("#attrs", this.lazyAttributeLoading ? ATTRIBUTE_NAMES : SESSION_ATTRS);
+            int i = 0;
+            for (Map.Entry<String, Object> entry : session.getDelta().entrySet()) {
+                String name = "#a" + i;
+                names.put(name, entry.getKey());
+                if (entry.getValue() == null) {
+                    remove.add("#attrs." + name);
+                } else {
+                    String value = ":a" + i;
+                    set.add("#attrs." + name + " = " + value);
+                    values.put(value, this.lazyAttributeLoading ? present() : encodeChange(entry.getValue()));
+                }
+                i++;
+            }
+        }
+
+        StringBuilder expression = new StringBuilder();
+        if (!set.isEmpty()) {
+            expression.append("SET ").append(String.join(", ", set));
+        }
+        if (!remove.isEmpty()) {
+            expression.append(expression.length() > 0 ? " " : "").append("REMOVE ").append(String.join(", ", remove));
+        }
+        expression.append(expression.length() > 0 ? " " : "").append("ADD #version :one");
+        names.put("#version", VERSION);
+        values.put(":one", number(1));
+
+        names.put("#id", ID);
+        String condition = "attribute_exists(#id)";
+        if (conditional && session.version == 0) {
+            // written before sessions were versioned
+            condition = "attribute_exists(#id) AND attribute_not_exists(#version)";
+        } else if (conditional) {
+            condition = "#version = :version";
+            values.put(":version", number(session.version));
+        }
+        return new UpdateItemRequest()
+                .withTableName(this.tableName)
+                .withKey(key(session.getId()))
+                .withUpdateExpression(expression.toString())
+                .withConditionExpression(condition)
+                .withExpressionAttributeNames(names)
+                .withExpressionAttributeValues(values);
+    }
+
+    private DynamoSession toSession(Map<String, AttributeValue> item) {
+        DynamoSession session = new DynamoSession(item.get(ID).getS());
+        session.setCreationTime(Long.parseLong(item.get(CREATION_TIME).getN()));
+        session.setLastAccessedTime(Long.parseLong(item.get(LAST_ACCESSED_TIME).getN()));
+        session.setMaxInactiveIntervalInSeconds(Integer.parseInt(item.get(MAX_INACTIVE_INTERVAL).getN()));
+
+        AttributeValue attributes = item.get(this.lazyAttributeLoading ? ATTRIBUTE_NAMES : SESSION_ATTRS);
+        if (attributes != null && attributes.getM() != null) {
+            for (Map.Entry<String, AttributeValue> attribute : attributes.getM().entrySet()) {
+                session.sessionAttrs.put(attribute.getKey(),
+                        new StoredAttribute(this.lazyAttributeLoading ? null : attribute.getValue()));
+            }
+        }
+        AttributeValue attributesExpiresAt = item.get(ATTRIBUTES_EXPIRES_AT);
+        session.attributesExpiresAt = attributesExpiresAt != null ? Long.parseLong(attributesExpiresAt.getN()) : -1;
+
+        session.version = versionOf(item);
+        session.isNew = false;
+        session.clearChangeFlags();
+        return session;
+    }
+
+    private Map<String, AttributeValue> encode(Map<String, Object> attributes) {
+        Map<String, AttributeValue> encoded = new HashMap<String, AttributeValue>();
+        for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            encoded.put(attribute.getKey(), encodeChange(attribute.getValue()));
+        }
+        return encoded;
+    }
+
+    /**
+     * Encodes a set attribute, unless a session queued by the write-behind holds it
+     * encoded already.
+     */
+    private AttributeValue encodeChange(Object attributeValue) {
+        return attributeValue instanceof StoredAttribute
+                ? ((StoredAttribute) attributeValue).value
+                : serialize(attributeValue);
+    }
+
+    private AttributeValue serialize(Object attributeValue) {
+        return new AttributeValue().withB(ByteBuffer.wrap(this.attributeCodec.encode(attributeValue)));
+    }
+
+    private Object deserialize(AttributeValue attributeValue) {
+        ByteBuffer buffer = attributeValue.getB();
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.remaining() == buffer.array().length) {
+            return this.attributeCodec.decode(buffer.array());
         }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return this.attributeCodec.decode(bytes);
+    }
+
+    /**
+     * The version of a session item, incremented by every write.
+     */
+    static long versionOf(Map<String, AttributeValue> item) {
+        AttributeValue version = item.get(VERSION);
+        return version != null ? Long.parseLong(version.getN()) : 0;
+    }
+
+    private static AttributeValue present() {
+        return new AttributeValue().withBOOL(true);
+    }
+
+    private static Map<String, AttributeValue> key(String id) {
+        return Collections.singletonMap(ID, new AttributeValue(id));
+    }
+
+    private static AttributeValue number(long value) {
+        return new AttributeValue().withN(Long.toString(value));
     }
 
     /**
@@ -131,7 +1135,8 @@ public class DynamoSessionRepository implements FindByIndexNameSessionRepository
      */
     static class PrincipalNameResolver {
 
-        private SpelExpressionParser parser = new SpelExpressionParser();
+        private final Expression expression = new SpelExpressionParser()
+                .parseExpression("authentication?.name");
 
         public String resolvePrincipal(Session session) {
             String principalName = session.getAttribute(PRINCIPAL_NAME_INDEX_NAME);
@@ -140,21 +1145,39 @@ public class DynamoSessionRepository implements FindByIndexNameSessionRepository
             }
             Object authentication = session.getAttribute(SPRING_SECURITY_CONTEXT);
             if (authentication != null) {
-                Expression expression = this.parser
-                        .parseExpression("authentication?.name");
-                return expression.getValue(authentication, String.class);
+                return this.expression.getValue(authentication, String.class);
             }
             return null;
         }
 
     }
 
+    /**
+     * An attribute of a loaded session that was not accessed yet, either still encoded or,
+     * with lazy attribute loading, not read at all.
+     */
+    private final class StoredAttribute {
+
+        private final AttributeValue value;
+
+        StoredAttribute(AttributeValue value) {
+            this.value = value;
+        }
+
+        Object load(String sessionId, String attributeName) {
+            AttributeValue stored = this.value != null ? this.value : attributeTable.load(sessionId, attributeName, isConsistentRead(sessionId));
+            return stored != null ? deserialize(stored) : null;
+        }
+    }
+
     /**
      * The {@link ExpiringSession} to use for {@link DynamoSessionRepository}.
+     * <p>
+     * Keeps track of the attributes set or removed since it was loaded (the delta) and
+     * whether its metadata was touched, so that only those are written back.
      *
      * @author Victor Galante
      */
-    @DynamoDBTable(tableName = "authentication_session")
     final class DynamoSession implements ExpiringSession, Serializable {
 
         /**
@@ -162,25 +1185,48 @@ public class DynamoSessionRepository implements FindByIndexNameSessionRepository
          */
         public static final int DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS = 1800;
 
-        @DynamoDBAttribute
+        /**
+         * The version of a session whose stored version is not known, which no stored
+         * version matches.
+         */
+        static final long UNKNOWN_VERSION = -1;
+
         private boolean isNew;
-        @DynamoDBAttribute
         private boolean changed;
-        @DynamoDBHashKey
         private String id;
-        @DynamoDBAttribute
         private Map<String, Object> sessionAttrs = new HashMap<String, Object>();
-        @DynamoDBAttribute
+        private Map<String, Object> delta = new HashMap<String, Object>();
         private long creationTime = System.currentTimeMillis();
-        @DynamoDBAttribute
         private long lastAccessedTime = this.creationTime;
 
         /**
          * Defaults to 30 minutes.
          */
-        @DynamoDBAttribute
         private int maxInactiveInterval = DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS;
 
+        /**
+         * Epoch seconds after which the session is expired, recomputed on every touch.
+         */
+        private long expiresAt = computeExpiresAt();
+
+        /**
+         * Epoch seconds until which the attribute items of a lazily loaded session are
+         * kept, negative if they never expire.
+         */
+        private long attributesExpiresAt = -1;
+
+        /**
+         * The last accessed time and maximum inactive interval as last persisted.
+         */
+        private long persistedLastAccessedTime = this.lastAccessedTime;
+        private int persistedMaxInactiveInterval = this.maxInactiveInterval;
+
+        /**
+         * The version of the session item as loaded or last saved, 0 for a new session or
+         * an item written before sessions were versioned.
+         */
+        private long version;
+
         public DynamoSession() {
             this(UUID.randomUUID().toString());
         }
@@ -194,10 +1240,103 @@ public class DynamoSessionRepository implements FindByIndexNameSessionRepository
             return this.isNew;
         }
 
+        /**
+         * The version of the session item this session was loaded from or last saved as.
+         * Every save increments it.
+         *
+         * @return the version
+         */
+        public long getVersion() {
+            return this.version;
+        }
+
         boolean isChanged() {
             return this.changed;
         }
 
+        /**
+         * Attributes set or removed since the session was last persisted, a {@code null}
+         * value marks a removed attribute.
+         */
+        Map<String, Object> getDelta() {
+            return this.delta;
+        }
+
+        /**
+         * Whether the only change since the session was last persisted is its last
+         * accessed time.
+         */
+        boolean isTouchOnly() {
+            return !this.isNew && this.delta.isEmpty()
+                    && this.maxInactiveInterval == this.persistedMaxInactiveInterval;
+        }
+
+        /**
+         * A copy of this session and its changes to write on another thread. The set
+         * attributes are encoded on the calling thread, so the copy shares no attribute
+         * objects with the session, which the request may go on changing. Of the other
+         * attributes only the names are copied, along with those still encoded.
+         */
+        DynamoSession copy() {
+            DynamoSession copy = new DynamoSession(this.id);
+            copy.isNew = this.isNew;
+            copy.changed = this.changed;
+            copy.sessionAttrs = new HashMap<String, Object>(this.sessionAttrs.size() * 2);
+            for (Map.Entry<String, Object> attribute : this.sessionAttrs.entrySet()) {
+                copy.sessionAttrs.put(attribute.getKey(),
+                        attribute.getValue() instanceof StoredAttribute ? attribute.getValue() : null);
+            }
+            copy.delta = new HashMap<String, Object>(this.delta.size() * 2);
+            for (Map.Entry<String, Object> change : this.delta.entrySet()) {
+                StoredAttribute encoded = change.getValue() != null
+                        ? new StoredAttribute(encodeChange(change.getValue()))
+                        : null;
+                copy.delta.put(change.getKey(), encoded);
+                if (encoded != null) {
+                    copy.sessionAttrs.put(change.getKey(), encoded);
+                }
+            }
+            copy.creationTime = this.creationTime;
+            copy.lastAccessedTime = this.lastAccessedTime;
+            copy.maxInactiveInterval = this.maxInactiveInterval;
+            copy.expiresAt = this.expiresAt;
+            copy.attributesExpiresAt = this.attributesExpiresAt;
+            copy.persistedLastAccessedTime = this.persistedLastAccessedTime;
+            copy.persistedMaxInactiveInterval = this.persistedMaxInactiveInterval;
+            copy.version = this.version;
+            return copy;
+        }
+
+        /**
+         * Applies the changes of a later save of this session, so both are written at once.
+         *
+         * @param later a {@link #copy()} of the later save
+         */
+        void absorb(DynamoSession later) {
+            for (Map.Entry<String, Object> change : later.delta.entrySet()) {
+                if (change.getValue() != null) {
+                    this.sessionAttrs.put(change.getKey(), change.getValue());
+                } else {
+                    this.sessionAttrs.remove(change.getKey());
+                }
+                this.delta.put(change.getKey(), change.getValue());
+            }
+            this.lastAccessedTime = Math.max(this.lastAccessedTime, later.lastAccessedTime);
+            if (later.maxInactiveInterval != later.persistedMaxInactiveInterval) {
+                this.maxInactiveInterval = later.maxInactiveInterval;
+            }
+            this.expiresAt = computeExpiresAt();
+            this.changed |= later.changed;
+        }
+
+        void clearChangeFlags() {
+            this.isNew = false;
+            this.changed = false;
+            this.delta.clear();
+            this.persistedLastAccessedTime = this.lastAccessedTime;
+            this.persistedMaxInactiveInterval = this.maxInactiveInterval;
+        }
+
         public long getCreationTime() {
             return this.creationTime;
         }
@@ -234,6 +1373,7 @@ public class DynamoSessionRepository implements FindByIndexNameSessionRepository
 
         public void setLastAccessedTime(long lastAccessedTime) {
             this.lastAccessedTime = lastAccessedTime;
+            this.expiresAt = computeExpiresAt();
             this.changed = true;
         }
 
@@ -243,9 +1383,28 @@ public class DynamoSessionRepository implements FindByIndexNameSessionRepository
 
         public void setMaxInactiveIntervalInSeconds(int interval) {
             this.maxInactiveInterval = interval;
+            this.expiresAt = computeExpiresAt();
             this.changed = true;
         }
 
+        /**
+         * The time after which this session is expired in seconds since midnight of
+         * 1/1/1970 GMT, or a negative value if it never expires.
+         *
+         * @return the expiry time in epoch seconds
+         */
+        public long getExpiresAt() {
+            return this.expiresAt;
+        }
+
+        private long computeExpiresAt() {
+            if (this.maxInactiveInterval < 0) {
+                return -1;
+            }
+            return TimeUnit.MILLISECONDS.toSeconds(this.lastAccessedTime
+                    + TimeUnit.SECONDS.toMillis(this.maxInactiveInterval));
+        }
+
         public boolean isExpired() {
             return isExpired(System.currentTimeMillis());
         }
@@ -260,11 +1419,35 @@ public class DynamoSessionRepository implements FindByIndexNameSessionRepository
 
         @SuppressWarnings("unchecked")
         public <T> T getAttribute(String attributeName) {
-            return (T) this.sessionAttrs.get(attributeName);
+            Object value = this.sessionAttrs.get(attributeName);
+            if (value instanceof StoredAttribute) {
+                value = ((StoredAttribute) value).load(this.id, attributeName);
+                if (value != null) {
+                    this.sessionAttrs.put(attributeName, value);
+                } else {
+                    this.sessionAttrs.remove(attributeName);
+                }
+            }
+            return (T) value;
         }
 
+        /**
+         * The stored form of an attribute, without decoding it if it was not accessed.
+         */
+        AttributeValue encoded(String attributeName) {
+            Object value = this.sessionAttrs.get(attributeName);
+            if (value instanceof StoredAttribute && ((StoredAttribute) value).value != null) {
+                return ((StoredAttribute) value).value;
+            }
+            return serialize(getAttribute(attributeName));
+        }
+
+        /**
+         * A snapshot of the attribute names, as reading an attribute that turns out to be
+         * gone removes its name.
+         */
         public Set<String> getAttributeNames() {
-            return this.sessionAttrs.keySet();
+            return new HashSet<String>(this.sessionAttrs.keySet());
         }
 
         public void setAttribute(String attributeName, Object attributeValue) {
@@ -272,13 +1455,13 @@ public class DynamoSessionRepository implements FindByIndexNameSessionRepository
                 removeAttribute(attributeName);
             } else {
                 this.sessionAttrs.put(attributeName, attributeValue);
+                this.delta.put(attributeName, attributeValue);
             }
-
-            this.changed = true;
         }
 
         public void removeAttribute(String attributeName) {
             this.sessionAttrs.remove(attributeName);
+            this.delta.put(attributeName, null);
         }
 
         public boolean equals(Object obj) {
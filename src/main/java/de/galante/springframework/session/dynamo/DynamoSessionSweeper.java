@@ -0,0 +1,346 @@
+package de.galante.springframework.session.dynamo;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.*;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.util.Assert;
+import org.springframework.util.CustomizableThreadCreator;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deletes expired sessions from the session table ahead of DynamoDB's Time To Live, which
+ * may take up to two days to remove an item. Until then expired sessions are only treated
+ * as missing, but still take up storage and entries in the principal name index.
+ * <p>
+ * The table is scanned in parallel segments, and every node running a sweeper takes
+ * segments by leasing them through conditional writes to the lease table,
+ * {@value #DEFAULT_LEASE_TABLE_NAME} by default, with the {@value #SEGMENT} number
+ * attribute as hash key. A segment stays leased for one sweep interval, so each segment
+ * is swept once per interval however many nodes run a sweeper, and the nodes share the
+ * work. Each node scans up to {@value #DEFAULT_PARALLEL_SEGMENTS} segments at the same
+ * time, leasing the next segment whenever a scan is done.
+ * <p>
+ * A sweep only reads the ids of sessions expired for more than a minute, so a request
+ * still saving a session it loaded just before it expired does not lose it, and deletes
+ * them in batches. Sweeps run on threads of their own and together consume at most the
+ * configured capacity units per second; a scan still consumes capacity for every item it
+ * reads, expired or not. Attribute items of lazily loaded sessions are left to their own
+ * Time To Live.
+ *
+ * @author Victor Galante
+ */
+public class DynamoSessionSweeper implements SmartLifecycle {
+
+    public static final String DEFAULT_LEASE_TABLE_NAME = "authentication_session_sweep";
+    public static final int DEFAULT_TOTAL_SEGMENTS = 8;
+    public static final long DEFAULT_SWEEP_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    public static final double DEFAULT_CAPACITY_UNITS_PER_SECOND = 25;
+    public static final int DEFAULT_PARALLEL_SEGMENTS = 2;
+
+    /**
+     * The hash key of the lease table.
+     */
+    public static final String SEGMENT = "segment";
+
+    private static final Log logger = LogFactory.getLog(DynamoSessionSweeper.class);
+    private static final String OWNER = "owner";
+    private static final String LEASE_EXPIRES_AT = "leaseExpiresAt";
+
+    /**
+     * How long a session has to be expired to be swept.
+     */
+    private static final long GRACE_SECONDS = 60;
+    private static final int PAGE_SIZE = 200;
+
+    /**
+     * The maximum number of requests in one {@code BatchWriteItem} call.
+     */
+    private static final int MAX_BATCH_WRITE = 25;
+    private static final int MAX_BATCH_RETRIES = 8;
+
+    private final AmazonDynamoDB dynamoDB;
+    private final String owner = UUID.randomUUID().toString();
+    private final CustomizableThreadCreator threads = new CustomizableThreadCreator("dynamo-session-sweep-");
+    private String tableName = DynamoSessionRepository.DEFAULT_TABLE_NAME;
+    private String leaseTableName = DEFAULT_LEASE_TABLE_NAME;
+    private int totalSegments = DEFAULT_TOTAL_SEGMENTS;
+    private long sweepIntervalMillis = DEFAULT_SWEEP_INTERVAL_MILLIS;
+    private double capacityUnitsPerSecond = DEFAULT_CAPACITY_UNITS_PER_SECOND;
+    private int parallelSegments = DEFAULT_PARALLEL_SEGMENTS;
+    private ScheduledExecutorService sweeper;
+
+    private final Object pacing = new Object();
+    // guarded by pacing
+    private long nextRequestAt = System.nanoTime();
+
+    public DynamoSessionSweeper(AmazonDynamoDB dynamoDB) {
+        Assert.notNull(dynamoDB, "AmazonDynamoDB must not be null");
+        this.dynamoDB = dynamoDB;
+        this.threads.setDaemon(true);
+    }
+
+    /**
+     * Set the name of the table sessions are stored in.
+     *
+     * @param tableName the table name
+     */
+    public void setTableName(String tableName) {
+        Assert.hasText(tableName, "Table name must not be empty");
+        this.tableName = tableName.trim();
+    }
+
+    /**
+     * Set the name of the table holding the segment leases.
+     *
+     * @param leaseTableName the table name
+     */
+    public void setLeaseTableName(String leaseTableName) {
+        Assert.hasText(leaseTableName, "Table name must not be empty");
+        this.leaseTableName = leaseTableName.trim();
+    }
+
+    /**
+     * Set the number of segments the session table is swept in, the most nodes that can
+     * share a sweep. All sweepers of a table must use the same number. The default is
+     * {@value #DEFAULT_TOTAL_SEGMENTS}.
+     *
+     * @param totalSegments the number of segments
+     */
+    public void setTotalSegments(int totalSegments) {
+        Assert.isTrue(totalSegments > 0, "Total segments must be positive");
+        this.totalSegments = totalSegments;
+    }
+
+    /**
+     * Set the time in milliseconds between two sweeps of each segment. The default is 5
+     * minutes.
+     *
+     * @param sweepIntervalMillis the sweep interval in milliseconds
+     */
+    public void setSweepIntervalMillis(long sweepIntervalMillis) {
+        Assert.isTrue(sweepIntervalMillis > 0, "Sweep interval must be positive");
+        this.sweepIntervalMillis = sweepIntervalMillis;
+    }
+
+    /**
+     * Set the read and write capacity units this node's sweeps may consume per second.
+     * The default is {@value #DEFAULT_CAPACITY_UNITS_PER_SECOND}.
+     *
+     * @param capacityUnitsPerSecond the capacity units per second
+     */
+    public void setCapacityUnitsPerSecond(double capacityUnitsPerSecond) {
+        Assert.isTrue(capacityUnitsPerSecond > 0, "Capacity units per second must be positive");
+        this.capacityUnitsPerSecond = capacityUnitsPerSecond;
+    }
+
+    /**
+     * Set the number of segments this node scans at the same time. The capacity units
+     * per second are shared by all of them. The default is
+     * {@value #DEFAULT_PARALLEL_SEGMENTS}.
+     *
+     * @param parallelSegments the number of segments scanned at the same time
+     */
+    public void setParallelSegments(int parallelSegments) {
+        Assert.isTrue(parallelSegments > 0, "Parallel segments must be positive");
+        this.parallelSegments = parallelSegments;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (this.sweeper != null) {
+            return;
+        }
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(this.threads::createThread);
+        // nodes started together do not all compete for the first lease
+        long initialDelay = ThreadLocalRandom.current().nextLong(this.sweepIntervalMillis);
+        this.sweeper.scheduleWithFixedDelay(this::sweep, initialDelay, this.sweepIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (this.sweeper == null) {
+            return;
+        }
+        this.sweeper.shutdownNow();
+        try {
+            this.sweeper.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.sweeper = null;
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        stop();
+        callback.run();
+    }
+
+    @Override
+    public synchronized boolean isRunning() {
+        return this.sweeper != null;
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    @Override
+    public int getPhase() {
+        return 0;
+    }
+
+    /**
+     * Sweeps the segments this node can lease, in random order, scanning up to the
+     * parallel segments at the same time on threads of this sweep.
+     */
+    void sweep() {
+        int first = ThreadLocalRandom.current().nextInt(this.totalSegments);
+        AtomicInteger next = new AtomicInteger();
+        int workers = Math.min(this.parallelSegments, this.totalSegments);
+        ExecutorService segmentSweepers = Executors.newFixedThreadPool(workers, this.threads::createThread);
+        try {
+            List<Future<Void>> sweeps = new ArrayList<Future<Void>>(workers);
+            for (int i = 0; i < workers; i++) {
+                sweeps.add(segmentSweepers.submit(() -> sweepSegments(first, next)));
+            }
+            for (Future<Void> sweep : sweeps) {
+                try {
+                    sweep.get();
+                } catch (ExecutionException e) {
+                    logger.warn("Failed to sweep expired sessions of table " + this.tableName, e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            segmentSweepers.shutdownNow();
+        }
+    }
+
+    /**
+     * Leases and sweeps the segments not yet taken by another thread of this sweep.
+     */
+    private Void sweepSegments(int first, AtomicInteger next) throws InterruptedException {
+        for (int i = next.getAndIncrement(); i < this.totalSegments; i = next.getAndIncrement()) {
+            int segment = (first + i) % this.totalSegments;
+            if (lease(segment)) {
+                sweep(segment);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes the lease of a segment for one sweep interval, unless another node holds it.
+     */
+    private boolean lease(int segment) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        item.put(SEGMENT, number(segment));
+        item.put(OWNER, new AttributeValue(this.owner));
+        item.put(LEASE_EXPIRES_AT, number(now + this.sweepIntervalMillis));
+
+        Map<String, String> names = new HashMap<String, String>();
+        names.put("#segment", SEGMENT);
+        names.put("#leaseExpiresAt", LEASE_EXPIRES_AT);
+        try {
+            PutItemResult result = this.dynamoDB.putItem(new PutItemRequest()
+                    .withTableName(this.leaseTableName)
+                    .withItem(item)
+                    .withConditionExpression("attribute_not_exists(#segment) OR #leaseExpiresAt <= :now")
+                    .withExpressionAttributeNames(names)
+                    .withExpressionAttributeValues(Collections.singletonMap(":now", number(now)))
+                    .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
+            pace(result.getConsumedCapacity());
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            return false;
+        }
+    }
+
+    private void sweep(int segment) throws InterruptedException {
+        Map<String, String> names = new HashMap<String, String>();
+        names.put("#id", DynamoSessionRepository.ID);
+        names.put("#expiresAt", DynamoSessionRepository.EXPIRES_AT);
+        long cutoff = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) - GRACE_SECONDS;
+        ScanRequest scan = new ScanRequest()
+                .withTableName(this.tableName)
+                .withSegment(segment)
+                .withTotalSegments(this.totalSegments)
+                .withProjectionExpression("#id")
+                .withFilterExpression("#expiresAt < :cutoff")
+                .withExpressionAttributeNames(names)
+                .withExpressionAttributeValues(Collections.singletonMap(":cutoff", number(cutoff)))
+                .withLimit(PAGE_SIZE)
+                .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+
+        int deleted = 0;
+        Map<String, AttributeValue> lastEvaluatedKey = null;
+        do {
+            ScanResult result = this.dynamoDB.scan(scan.withExclusiveStartKey(lastEvaluatedKey));
+            pace(result.getConsumedCapacity());
+            List<WriteRequest> deletes = new ArrayList<WriteRequest>(result.getItems().size());
+            for (Map<String, AttributeValue> item : result.getItems()) {
+                deletes.add(new WriteRequest(new DeleteRequest(
+                        Collections.singletonMap(DynamoSessionRepository.ID, item.get(DynamoSessionRepository.ID)))));
+            }
+            batchDelete(deletes);
+            deleted += deletes.size();
+            lastEvaluatedKey = result.getLastEvaluatedKey();
+        } while (lastEvaluatedKey != null && !lastEvaluatedKey.isEmpty());
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Swept " + deleted + " expired sessions from segment " + segment + " of table " + this.tableName);
+        }
+    }
+
+    private void batchDelete(List<WriteRequest> deletes) throws InterruptedException {
+        for (int from = 0; from < deletes.size(); from += MAX_BATCH_WRITE) {
+            List<WriteRequest> chunk = deletes.subList(from, Math.min(from + MAX_BATCH_WRITE, deletes.size()));
+            Map<String, List<WriteRequest>> pending = Collections.singletonMap(this.tableName, chunk);
+            for (int attempt = 0; pending != null && !pending.isEmpty(); attempt++) {
+                Assert.state(attempt <= MAX_BATCH_RETRIES, "Expired sessions could not be deleted, unprocessed items left");
+                if (attempt > 0) {
+                    Thread.sleep(Math.min(1000, 25L << attempt));
+                }
+                BatchWriteItemResult result = this.dynamoDB.batchWriteItem(new BatchWriteItemRequest(pending)
+                        .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL));
+                if (result.getConsumedCapacity() != null) {
+                    for (ConsumedCapacity consumed : result.getConsumedCapacity()) {
+                        pace(consumed);
+                    }
+                }
+                pending = result.getUnprocessedItems();
+            }
+        }
+    }
+
+    /**
+     * Waits until the consumed capacity fits into the capacity units per second, shared by
+     * the segments scanned at the same time.
+     */
+    private void pace(ConsumedCapacity consumed) throws InterruptedException {
+        if (consumed == null || consumed.getCapacityUnits() == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long wait;
+        synchronized (this.pacing) {
+            this.nextRequestAt = (this.nextRequestAt - now > 0 ? this.nextRequestAt : now)
+                    + (long) (consumed.getCapacityUnits() / this.capacityUnitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+            wait = this.nextRequestAt - now;
+        }
+        TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    private static AttributeValue number(long value) {
+        return new AttributeValue().withN(Long.toString(value));
+    }
+}
@@ -0,0 +1,39 @@
+package de.galante.springframework.session.dynamo;
+
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.core.serializer.support.DeserializingConverter;
+import org.springframework.core.serializer.support.SerializingConverter;
+
+/**
+ * A {@link SessionAttributeCodec} storing attribute values with plain Java
+ * serialization, readable by any Java deserializer. The
+ * {@link CompactSessionAttributeCodec} decodes the values it writes as well.
+ *
+ * @author Victor Galante
+ */
+public class SerializingSessionAttributeCodec implements SessionAttributeCodec {
+
+    private final Converter<Object, byte[]> serializer = new SerializingConverter();
+    private final Converter<byte[], Object> deserializer;
+
+    public SerializingSessionAttributeCodec() {
+        this.deserializer = new DeserializingConverter();
+    }
+
+    /**
+     * @param classLoader the class loader used to resolve deserialized classes
+     */
+    public SerializingSessionAttributeCodec(ClassLoader classLoader) {
+        this.deserializer = new DeserializingConverter(classLoader);
+    }
+
+    @Override
+    public byte[] encode(Object attributeValue) {
+        return this.serializer.convert(attributeValue);
+    }
+
+    @Override
+    public Object decode(byte[] encoded) {
+        return this.deserializer.convert(encoded);
+    }
+}
@@ -0,0 +1,30 @@
+package de.galante.springframework.session.dynamo;
+
+/**
+ * Strategy used by {@link DynamoSessionRepository} to turn session attribute values into
+ * the binary blobs stored in DynamoDB and back.
+ * <p>
+ * Implementations must be thread safe.
+ *
+ * @author Victor Galante
+ * @see CompactSessionAttributeCodec
+ * @see SerializingSessionAttributeCodec
+ */
+public interface SessionAttributeCodec {
+
+    /**
+     * Encodes a session attribute value.
+     *
+     * @param attributeValue the attribute value, never {@code null}
+     * @return the encoded value
+     */
+    byte[] encode(Object attributeValue);
+
+    /**
+     * Decodes a session attribute value written by {@link #encode(Object)}.
+     *
+     * @param encoded the encoded value
+     * @return the attribute value
+     */
+    Object decode(byte[] encoded);
+}
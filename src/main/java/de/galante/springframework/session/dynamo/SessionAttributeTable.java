@@ -0,0 +1,149 @@
+package de.galante.springframework.session.dynamo;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.*;
+import org.springframework.util.Assert;
+
+import java.util.*;
+
+/**
+ * The table holding one item per session attribute when {@link DynamoSessionRepository}
+ * loads attributes lazily. Items are keyed by the session id ({@value #SESSION_ID}) and
+ * the attribute name ({@value #ATTRIBUTE_NAME}).
+ *
+ * @author Victor Galante
+ */
+class SessionAttributeTable {
+
+    static final String SESSION_ID = "sessionId";
+    static final String ATTRIBUTE_NAME = "attributeName";
+    static final String VALUE = "value";
+
+    /**
+     * The maximum number of requests in one {@code BatchWriteItem} call.
+     */
+    private static final int MAX_BATCH_WRITE = 25;
+    private static final int MAX_BATCH_RETRIES = 8;
+
+    private final AmazonDynamoDB dynamoDB;
+    private String tableName;
+
+    SessionAttributeTable(AmazonDynamoDB dynamoDB, String tableName) {
+        this.dynamoDB = dynamoDB;
+        this.tableName = tableName;
+    }
+
+    void setTableName(String tableName) {
+        this.tableName = tableName;
+    }
+
+    /**
+     * Reads an attribute. An eventually consistent read is retried consistently if the
+     * attribute was not found, as the session metadata listing it may be newer.
+     *
+     * @param consistentRead whether to read strongly consistent right away
+     * @return the encoded value or {@code null} if the attribute does not exist
+     */
+    AttributeValue load(String sessionId, String attributeName, boolean consistentRead) {
+        GetItemRequest request = new GetItemRequest()
+                .withTableName(this.tableName)
+                .withKey(key(sessionId, attributeName))
+                .withConsistentRead(consistentRead);
+        Map<String, AttributeValue> item = this.dynamoDB.getItem(request).getItem();
+        if (item == null && !consistentRead) {
+            item = this.dynamoDB.getItem(request.withConsistentRead(true)).getItem();
+        }
+        return item != null ? item.get(VALUE) : null;
+    }
+
+    /**
+     * Writes and deletes attributes of a session.
+     *
+     * @param values    the encoded attributes to write
+     * @param removed   the names of the attributes to delete
+     * @param expiresAt the expiry of the written items in epoch seconds, negative for none
+     */
+    void write(String sessionId, Map<String, AttributeValue> values, Collection<String> removed, long expiresAt) {
+        List<WriteRequest> requests = new ArrayList<WriteRequest>(values.size() + removed.size());
+        for (Map.Entry<String, AttributeValue> value : values.entrySet()) {
+            Map<String, AttributeValue> item = key(sessionId, value.getKey());
+            item.put(VALUE, value.getValue());
+            if (expiresAt >= 0) {
+                item.put(DynamoSessionRepository.EXPIRES_AT, new AttributeValue().withN(Long.toString(expiresAt)));
+            }
+            requests.add(new WriteRequest(new PutRequest(item)));
+        }
+        for (String attributeName : removed) {
+            requests.add(new WriteRequest(new DeleteRequest(key(sessionId, attributeName))));
+        }
+        batchWrite(requests);
+    }
+
+    /**
+     * Moves the expiry of existing attribute items.
+     *
+     * @param expiresAt the new expiry in epoch seconds, negative for none
+     */
+    void extend(String sessionId, Collection<String> attributeNames, long expiresAt) {
+        Map<String, String> names = new HashMap<String, String>();
+        names.put("#sessionId", SESSION_ID);
+        names.put("#expiresAt", DynamoSessionRepository.EXPIRES_AT);
+
+        for (String attributeName : attributeNames) {
+            UpdateItemRequest update = new UpdateItemRequest()
+                    .withTableName(this.tableName)
+                    .withKey(key(sessionId, attributeName))
+                    .withConditionExpression("attribute_exists(#sessionId)")
+                    .withExpressionAttributeNames(names);
+            if (expiresAt >= 0) {
+                update.withUpdateExpression("SET #expiresAt = :expiresAt")
+                        .withExpressionAttributeValues(Collections.singletonMap(":expiresAt",
+                                new AttributeValue().withN(Long.toString(expiresAt))));
+            } else {
+                update.withUpdateExpression("REMOVE #expiresAt");
+            }
+            try {
+                this.dynamoDB.updateItem(update);
+            } catch (ConditionalCheckFailedException e) {
+                // removed concurrently, nothing to extend
+            }
+        }
+    }
+
+    void delete(String sessionId, Collection<String> attributeNames) {
+        write(sessionId, Collections.<String, AttributeValue>emptyMap(), attributeNames, -1);
+    }
+
+    private void batchWrite(List<WriteRequest> requests) {
+        for (int from = 0; from < requests.size(); from += MAX_BATCH_WRITE) {
+            List<WriteRequest> chunk = requests.subList(from, Math.min(from + MAX_BATCH_WRITE, requests.size()));
+            Map<String, List<WriteRequest>> pending = Collections.singletonMap(this.tableName, chunk);
+            for (int attempt = 0; !pending.isEmpty(); attempt++) {
+                Assert.state(attempt <= MAX_BATCH_RETRIES, "Session attributes could not be written, unprocessed items left");
+                if (attempt > 0) {
+                    backOff(attempt);
+                }
+                pending = this.dynamoDB.batchWriteItem(new BatchWriteItemRequest(pending)).getUnprocessedItems();
+                if (pending == null) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void backOff(int attempt) {
+        try {
+            Thread.sleep(Math.min(1000, 25L << attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing session attributes", e);
+        }
+    }
+
+    private static Map<String, AttributeValue> key(String sessionId, String attributeName) {
+        Map<String, AttributeValue> key = new HashMap<String, AttributeValue>();
+        key.put(SESSION_ID, new AttributeValue(sessionId));
+        key.put(ATTRIBUTE_NAME, new AttributeValue(attributeName));
+        return key;
+    }
+}
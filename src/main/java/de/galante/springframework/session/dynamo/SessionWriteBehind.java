@@ -0,0 +1,191 @@
+package de.galante.springframework.session.dynamo;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.CustomizableThreadCreator;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Queues the saves of sessions to write them in the background. Saves of a session still
+ * queued are coalesced into one write. The queue is flushed after a fixed delay, or as
+ * soon as it holds a batch of sessions, writing up to a batch of sessions in parallel.
+ *
+ * @author Victor Galante
+ */
+final class SessionWriteBehind {
+
+    private static final Log logger = LogFactory.getLog(SessionWriteBehind.class);
+    private static final long DRAIN_TIMEOUT_SECONDS = 30;
+
+    private final Consumer<DynamoSessionRepository.DynamoSession> writer;
+    private final int batchSize;
+    private final int maxPending;
+    private final ScheduledExecutorService flusher;
+    private final ExecutorService writers;
+
+    // guarded by this
+    private final Map<String, DynamoSessionRepository.DynamoSession> pending =
+            new LinkedHashMap<String, DynamoSessionRepository.DynamoSession>();
+    private final Map<String, CompletableFuture<Void>> writing = new HashMap<String, CompletableFuture<Void>>();
+    private boolean flushRequested;
+    private boolean closed;
+
+    /**
+     * @param writer      writes a session synchronously
+     * @param delayMillis the time after which queued sessions are written at the latest
+     * @param batchSize   the number of queued sessions that triggers a flush, and the
+     *                    number of sessions written in parallel
+     * @param maxPending  the number of queued sessions above which saves are not queued
+     */
+    SessionWriteBehind(Consumer<DynamoSessionRepository.DynamoSession> writer, long delayMillis,
+                       int batchSize, int maxPending) {
+        this.writer = writer;
+        this.batchSize = batchSize;
+        this.maxPending = maxPending;
+
+        CustomizableThreadCreator flusherThreads = new CustomizableThreadCreator("dynamo-session-flush-");
+        flusherThreads.setDaemon(true);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(flusherThreads::createThread);
+        CustomizableThreadCreator writerThreads = new CustomizableThreadCreator("dynamo-session-write-");
+        writerThreads.setDaemon(true);
+        this.writers = Executors.newFixedThreadPool(batchSize, writerThreads::createThread);
+
+        this.flusher.scheduleWithFixedDelay(this::flush, delayMillis, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a copy of the changes of a session, or adds them to those already queued for
+     * it. The changed attributes are encoded on the calling thread, as the session's own
+     * attribute objects may go on changing after the save.
+     *
+     * @return {@code false} if the session was not queued because the queue is full or
+     * closed, and has to be written by the caller
+     */
+    boolean enqueue(DynamoSessionRepository.DynamoSession session) {
+        DynamoSessionRepository.DynamoSession copy = session.copy();
+        synchronized (this) {
+            if (this.closed) {
+                return false;
+            }
+            DynamoSessionRepository.DynamoSession queued = this.pending.get(session.getId());
+            if (queued != null) {
+                queued.absorb(copy);
+            } else if (this.pending.size() < this.maxPending) {
+                this.pending.put(session.getId(), copy);
+            } else {
+                return false;
+            }
+            if (this.pending.size() >= this.batchSize && !this.flushRequested) {
+                this.flushRequested = true;
+                this.flusher.execute(this::flush);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the queued changes of a session on the calling thread, after waiting for a
+     * write of the session already in progress.
+     */
+    void flush(String id) {
+        DynamoSessionRepository.DynamoSession queued = take(id);
+        if (queued != null) {
+            this.writer.accept(queued);
+        }
+    }
+
+    /**
+     * Drops the queued changes of a session, after waiting for a write of the session
+     * already in progress.
+     */
+    void discard(String id) {
+        take(id);
+    }
+
+    /**
+     * Stops queueing sessions and writes those queued on the calling thread.
+     */
+    void close() {
+        synchronized (this) {
+            this.closed = true;
+        }
+        this.flusher.shutdown();
+        try {
+            this.flusher.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            flush();
+            this.writers.shutdown();
+            this.writers.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private DynamoSessionRepository.DynamoSession take(String id) {
+        DynamoSessionRepository.DynamoSession queued;
+        CompletableFuture<Void> inProgress;
+        synchronized (this) {
+            queued = this.pending.remove(id);
+            inProgress = this.writing.get(id);
+        }
+        if (inProgress != null) {
+            inProgress.exceptionally(failure -> null).join();
+        }
+        return queued;
+    }
+
+    private void flush() {
+        synchronized (this) {
+            this.flushRequested = false;
+        }
+        Map<DynamoSessionRepository.DynamoSession, CompletableFuture<Void>> batch;
+        while (!(batch = nextBatch()).isEmpty()) {
+            for (Map.Entry<DynamoSessionRepository.DynamoSession, CompletableFuture<Void>> entry : batch.entrySet()) {
+                DynamoSessionRepository.DynamoSession session = entry.getKey();
+                CompletableFuture<Void> written = entry.getValue();
+                try {
+                    this.writers.execute(() -> write(session, written));
+                } catch (RejectedExecutionException e) {
+                    write(session, written);
+                }
+            }
+            CompletableFuture.allOf(batch.values().toArray(new CompletableFuture<?>[0]))
+                    .exceptionally(failure -> null)
+                    .join();
+        }
+    }
+
+    /**
+     * Takes the next batch of queued sessions, marking them as being written so reads
+     * wait for them.
+     */
+    private synchronized Map<DynamoSessionRepository.DynamoSession, CompletableFuture<Void>> nextBatch() {
+        Map<DynamoSessionRepository.DynamoSession, CompletableFuture<Void>> batch =
+                new LinkedHashMap<DynamoSessionRepository.DynamoSession, CompletableFuture<Void>>();
+        for (Iterator<DynamoSessionRepository.DynamoSession> queued = this.pending.values().iterator();
+             queued.hasNext() && batch.size() < this.batchSize; ) {
+            DynamoSessionRepository.DynamoSession session = queued.next();
+            queued.remove();
+            CompletableFuture<Void> written = new CompletableFuture<Void>();
+            this.writing.put(session.getId(), written);
+            batch.put(session, written);
+        }
+        return batch;
+    }
+
+    private void write(DynamoSessionRepository.DynamoSession session, CompletableFuture<Void> written) {
+        try {
+            this.writer.accept(session);
+            written.complete(null);
+        } catch (RuntimeException e) {
+            logger.warn("Could not save session " + session.getId(), e);
+            written.completeExceptionally(e);
+        } finally {
+            synchronized (this) {
+                this.writing.remove(session.getId(), written);
+            }
+        }
+    }
+}
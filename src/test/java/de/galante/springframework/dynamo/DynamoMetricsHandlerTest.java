@@ -0,0 +1,58 @@
+package de.galante.springframework.dynamo;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * @author Victor Galante
+ */
+public class DynamoMetricsHandlerTest {
+
+    private final DynamoMetricsHandler handler = new DynamoMetricsHandler(mock(DynamoMetrics.class));
+
+    @Test
+    public void tracksNoTableByDefault() {
+        get("authentication_session", "id", "secret");
+
+        assertTrue(this.handler.getHotKeys("authentication_session", 10).isEmpty());
+    }
+
+    @Test
+    public void tracksKeysOfRegisteredTable() {
+        this.handler.trackHotKeys("users", "username", false);
+        get("users", "username", "alice");
+        get("users", "username", "alice");
+        get("users", "username", "bob");
+
+        Map<String, Long> hotKeys = this.handler.getHotKeys("users", 1);
+        assertEquals(Collections.singletonMap("alice", 2L), hotKeys);
+    }
+
+    @Test
+    public void tracksHashedKeysWithoutTheirValue() {
+        this.handler.trackHotKeys("sessions", "id", true);
+        get("sessions", "id", "secret");
+
+        Map<String, Long> hotKeys = this.handler.getHotKeys("sessions", 10);
+        assertEquals(1, hotKeys.size());
+        String key = hotKeys.keySet().iterator().next();
+        assertFalse(key.contains("secret"));
+        assertEquals(16, key.length());
+        // the same value always maps to the same key
+        get("sessions", "id", "secret");
+        assertEquals(Long.valueOf(2), this.handler.getHotKeys("sessions", 10).get(key));
+    }
+
+    private void get(String tableName, String keyAttributeName, String key) {
+        this.handler.beforeExecution(new GetItemRequest()
+                .withTableName(tableName)
+                .withKey(Collections.singletonMap(keyAttributeName, new AttributeValue(key))));
+    }
+}
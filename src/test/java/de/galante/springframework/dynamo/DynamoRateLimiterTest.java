@@ -0,0 +1,178 @@
+package de.galante.springframework.dynamo;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Victor Galante
+ */
+public class DynamoRateLimiterTest {
+
+    private static final String TABLE_NAME = "authentication_session";
+
+    private final DynamoRateLimiter limiter = new DynamoRateLimiter();
+    private final GetItemRequest get = new GetItemRequest().withTableName(TABLE_NAME);
+
+    @Before
+    public void setUp() {
+        this.limiter.setMinRate(5);
+        this.limiter.setMaxWaitMillis(0);
+        this.limiter.setFailureThreshold(3);
+        this.limiter.setOpenMillis(200);
+    }
+
+    @Test
+    public void sendsRequestsUnlimitedUntilThrottled() {
+        for (int i = 0; i < 100; i++) {
+            this.limiter.beforeExecution(this.get);
+        }
+
+        assertFalse(this.limiter.isDegraded(TABLE_NAME));
+    }
+
+    @Test
+    public void limitsThrottledTableToBucketRate() throws InterruptedException {
+        error(throttle());
+
+        assertTrue(this.limiter.isDegraded(TABLE_NAME));
+        assertRejected();
+
+        // a turn comes up every 200 milliseconds at 5 requests per second
+        Thread.sleep(250);
+        this.limiter.beforeExecution(this.get);
+        assertRejected();
+    }
+
+    @Test
+    public void waitsForTurnWithinMaxWait() {
+        this.limiter.setMaxWaitMillis(1000);
+        error(throttle());
+
+        long started = System.nanoTime();
+        this.limiter.beforeExecution(this.get);
+
+        assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(150));
+    }
+
+    @Test
+    public void limitsOnlyThrottledTable() {
+        error(throttle());
+
+        assertFalse(this.limiter.isDegraded("users"));
+        this.limiter.beforeExecution(new GetItemRequest().withTableName("users"));
+    }
+
+    @Test
+    public void givesUpRetryWithoutTurn() {
+        RetryPolicy.RetryCondition retryCondition =
+                this.limiter.retryPolicy(PredefinedRetryPolicies.DYNAMODB_DEFAULT).getRetryCondition();
+
+        assertTrue(retryCondition.shouldRetry(this.get, failure(), 0));
+        assertFalse(retryCondition.shouldRetry(this.get, throttle(), 0));
+        assertTrue(this.limiter.isDegraded(TABLE_NAME));
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        error(failure());
+        error(failure());
+        assertFalse(this.limiter.isDegraded(TABLE_NAME));
+
+        error(failure());
+
+        assertTrue(this.limiter.isDegraded(TABLE_NAME));
+        assertRejected();
+    }
+
+    @Test
+    public void answeredErrorResetsFailures() {
+        error(failure());
+        error(failure());
+        AmazonServiceException conditionFailed = new AmazonServiceException("The conditional request failed");
+        conditionFailed.setErrorCode("ConditionalCheckFailedException");
+        conditionFailed.setStatusCode(400);
+        error(conditionFailed);
+
+        error(failure());
+
+        assertFalse(this.limiter.isDegraded(TABLE_NAME));
+    }
+
+    @Test
+    public void probesOnceAfterOpenTimeAndClosesOnSuccess() throws InterruptedException {
+        open();
+        Thread.sleep(250);
+
+        this.limiter.beforeExecution(this.get);
+        // only the probe is let through
+        assertRejected();
+
+        this.limiter.afterResponse(request(), new Response<GetItemResult>(new GetItemResult(), null));
+
+        assertFalse(this.limiter.isDegraded(TABLE_NAME));
+        this.limiter.beforeExecution(this.get);
+        this.limiter.beforeExecution(this.get);
+    }
+
+    @Test
+    public void reopensWhenProbeFails() throws InterruptedException {
+        open();
+        Thread.sleep(250);
+        this.limiter.beforeExecution(this.get);
+
+        error(failure());
+
+        assertTrue(this.limiter.isDegraded(TABLE_NAME));
+        Thread.sleep(100);
+        assertRejected();
+    }
+
+    private void open() {
+        for (int i = 0; i < 3; i++) {
+            error(failure());
+        }
+        assertRejected();
+    }
+
+    private void assertRejected() {
+        try {
+            this.limiter.beforeExecution(this.get);
+            fail("Request was not rejected");
+        } catch (DynamoRequestRejectedException expected) {
+        }
+    }
+
+    private void error(Exception e) {
+        this.limiter.afterError(request(), null, e);
+    }
+
+    private Request<GetItemRequest> request() {
+        return new DefaultRequest<GetItemRequest>(this.get, "AmazonDynamoDBv2");
+    }
+
+    private static AmazonServiceException throttle() {
+        AmazonServiceException e = new AmazonServiceException("The level of configured provisioned throughput was exceeded");
+        e.setErrorCode("ProvisionedThroughputExceededException");
+        e.setStatusCode(400);
+        return e;
+    }
+
+    private static AmazonServiceException failure() {
+        AmazonServiceException e = new AmazonServiceException("Internal server error");
+        e.setErrorCode("InternalServerError");
+        e.setStatusCode(500);
+        return e;
+    }
+}
@@ -0,0 +1,46 @@
+package de.galante.springframework.security.core;
+
+import org.junit.Test;
+import org.springframework.security.core.GrantedAuthority;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Victor Galante
+ */
+public class GrantedAuthorityConverterTest {
+
+    private final GrantedAuthorityConverter converter = new GrantedAuthorityConverter();
+
+    @Test
+    public void roundTripsEscapedAuthorities() {
+        Collection<GrantedAuthority> authorities = Arrays.<GrantedAuthority>asList(
+                new DynamoAuthority("ROLE_USER"), new DynamoAuthority("a;b"), new DynamoAuthority("c\\d"));
+
+        assertEquals(new HashSet<GrantedAuthority>(authorities),
+                new HashSet<GrantedAuthority>(this.converter.unconvert(this.converter.convert(authorities))));
+    }
+
+    @Test
+    public void sharesLoadedAuthorities() {
+        Collection<GrantedAuthority> first = this.converter.unconvert("ROLE_USER;ROLE_ADMIN");
+        Collection<GrantedAuthority> second = this.converter.unconvert("ROLE_USER;ROLE_ADMIN");
+
+        assertSame(first, second);
+        assertSame(first.iterator().next(), this.converter.unconvert("ROLE_USER").iterator().next());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void refusesToModifyLoadedAuthoritySet() {
+        this.converter.unconvert("ROLE_USER").add(new DynamoAuthority("ROLE_ADMIN"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void refusesToModifyLoadedAuthority() {
+        ((DynamoAuthority) this.converter.unconvert("ROLE_USER").iterator().next()).setAuthority("ROLE_ADMIN");
+    }
+}
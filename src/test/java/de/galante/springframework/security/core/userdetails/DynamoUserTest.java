@@ -0,0 +1,67 @@
+package de.galante.springframework.security.core.userdetails;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import de.galante.springframework.security.core.DynamoAuthority;
+import de.galante.springframework.session.dynamo.LocalDynamoDB;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.User;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips users through the mapper.
+ *
+ * @author Victor Galante
+ */
+public class DynamoUserTest {
+
+    private LocalDynamoDB local;
+    private DynamoDBMapper mapper;
+
+    @Before
+    public void setUp() {
+        this.local = new LocalDynamoDB();
+        this.mapper = new DynamoDBMapper(this.local.client());
+        this.local.client().createTable(this.mapper.generateCreateTableRequest(DynamoUser.class)
+                .withProvisionedThroughput(LocalDynamoDB.THROUGHPUT));
+    }
+
+    @After
+    public void tearDown() {
+        this.local.shutdown();
+    }
+
+    @Test
+    public void loadsUserSavedWithoutAuthoritiesWithEmptyAuthorities() {
+        DynamoUser user = new DynamoUser();
+        user.setUsername("alice");
+        user.setPassword("secret");
+        user.setAuthorities(Collections.<GrantedAuthority>emptySet());
+        this.mapper.save(user);
+
+        DynamoUser loaded = this.mapper.load(DynamoUser.class, "alice");
+
+        assertNotNull(loaded.getAuthorities());
+        assertTrue(loaded.getAuthorities().isEmpty());
+        // User rejects null authorities
+        new User(loaded.getUsername(), loaded.getPassword(), loaded.getAuthorities());
+    }
+
+    @Test
+    public void loadsUserAuthorities() {
+        DynamoUser user = new DynamoUser();
+        user.setUsername("alice");
+        user.setPassword("secret");
+        user.setAuthorities(Collections.singleton(new DynamoAuthority("ROLE_USER")));
+        this.mapper.save(user);
+
+        DynamoUser loaded = this.mapper.load(DynamoUser.class, "alice");
+
+        assertEquals(Collections.singleton(new DynamoAuthority("ROLE_USER")), loaded.getAuthorities());
+    }
+}
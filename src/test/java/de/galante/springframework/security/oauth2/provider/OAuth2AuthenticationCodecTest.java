@@ -0,0 +1,74 @@
+package de.galante.springframework.security.oauth2.provider;
+
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.common.util.SerializationUtils;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Victor Galante
+ */
+public class OAuth2AuthenticationCodecTest {
+
+    private final OAuth2AuthenticationCodec codec = new OAuth2AuthenticationCodec();
+
+    @Test
+    public void roundTripsAuthentication() {
+        OAuth2Authentication decoded = this.codec.decode(this.codec.encode(authentication("state")));
+
+        OAuth2Request request = decoded.getOAuth2Request();
+        assertEquals("client", request.getClientId());
+        assertEquals("state", request.getRequestParameters().get("state"));
+        assertEquals(new HashSet<String>(Arrays.asList("read", "write")), request.getScope());
+        assertEquals("http://localhost/callback", request.getRedirectUri());
+        assertTrue(request.isApproved());
+        assertEquals("user", decoded.getName());
+        assertEquals(Collections.singleton("ROLE_USER"),
+                AuthorityUtils.authorityListToSet(decoded.getUserAuthentication().getAuthorities()));
+    }
+
+    @Test
+    public void roundTripsStringsBeyond65535Bytes() {
+        StringBuilder value = new StringBuilder();
+        while (value.length() < 30000) {
+            // three bytes each in UTF-8
+            value.append('\u20ac');
+        }
+        String state = value.toString();
+
+        OAuth2Authentication decoded = this.codec.decode(this.codec.encode(authentication(state)));
+
+        assertEquals(state, decoded.getOAuth2Request().getRequestParameters().get("state"));
+    }
+
+    @Test
+    public void decodesJavaSerializedAuthentication() {
+        byte[] serialized = SerializationUtils.serialize(authentication("state"));
+
+        OAuth2Authentication decoded = this.codec.decode(serialized);
+
+        assertEquals("client", decoded.getOAuth2Request().getClientId());
+        assertEquals("user", decoded.getName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownEncoding() {
+        this.codec.decode(new byte[]{9});
+    }
+
+    private static OAuth2Authentication authentication(String state) {
+        OAuth2Request request = new OAuth2Request(Collections.singletonMap("state", state), "client",
+                AuthorityUtils.createAuthorityList("ROLE_CLIENT"), true,
+                new HashSet<String>(Arrays.asList("read", "write")), Collections.singleton("resource"),
+                "http://localhost/callback", Collections.singleton("code"), null);
+        UsernamePasswordAuthenticationToken user = new UsernamePasswordAuthenticationToken("user", "N/A",
+                AuthorityUtils.createAuthorityList("ROLE_USER"));
+        return new OAuth2Authentication(request, user);
+    }
+}
@@ -0,0 +1,141 @@
+package de.galante.springframework.security.oauth2.provider.approval;
+
+import com.amazonaws.services.dynamodbv2.model.*;
+import de.galante.springframework.session.dynamo.LocalDynamoDB;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.oauth2.provider.approval.Approval;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Victor Galante
+ */
+public class DynamoApprovalStoreTest {
+
+    private LocalDynamoDB local;
+    private DynamoApprovalStore approvalStore;
+
+    @Before
+    public void setUp() {
+        this.local = new LocalDynamoDB();
+        this.local.client().createTable(new CreateTableRequest()
+                .withTableName(DynamoApprovalStore.DEFAULT_TABLE_NAME)
+                .withKeySchema(
+                        new KeySchemaElement(DynamoApprovalStore.USER_ID, KeyType.HASH),
+                        new KeySchemaElement(DynamoApprovalStore.CLIENT_ID, KeyType.RANGE))
+                .withAttributeDefinitions(
+                        new AttributeDefinition(DynamoApprovalStore.USER_ID, ScalarAttributeType.S),
+                        new AttributeDefinition(DynamoApprovalStore.CLIENT_ID, ScalarAttributeType.S))
+                .withProvisionedThroughput(LocalDynamoDB.THROUGHPUT));
+        this.approvalStore = new DynamoApprovalStore(this.local.client());
+    }
+
+    @After
+    public void tearDown() {
+        this.local.shutdown();
+    }
+
+    @Test
+    public void addsGetsAndRevokesScopesOfOneItem() {
+        Date expiresAt = expiresIn(TimeUnit.HOURS.toMillis(1));
+        this.approvalStore.addApprovals(Arrays.asList(
+                approval("read", expiresAt, Approval.ApprovalStatus.APPROVED),
+                approval("write", expiresAt, Approval.ApprovalStatus.DENIED)));
+        this.approvalStore.addApprovals(Collections.singletonList(
+                approval("profile", expiresAt, Approval.ApprovalStatus.APPROVED)));
+
+        assertEquals(1, items().size());
+        Map<String, Approval> approvals = byScope(this.approvalStore.getApprovals("alice", "client"));
+        assertEquals(new HashSet<String>(Arrays.asList("read", "write", "profile")), approvals.keySet());
+        assertEquals(Approval.ApprovalStatus.DENIED, approvals.get("write").getStatus());
+        assertEquals(expiresAt, approvals.get("read").getExpiresAt());
+
+        this.approvalStore.revokeApprovals(Collections.singletonList(
+                approval("write", expiresAt, Approval.ApprovalStatus.DENIED)));
+
+        assertEquals(new HashSet<String>(Arrays.asList("read", "profile")),
+                byScope(this.approvalStore.getApprovals("alice", "client")).keySet());
+        assertTrue(this.approvalStore.getApprovals("alice", "other").isEmpty());
+    }
+
+    @Test
+    public void revokesNothingWithoutApprovals() {
+        assertTrue(this.approvalStore.revokeApprovals(Collections.singletonList(
+                approval("read", expiresIn(TimeUnit.HOURS.toMillis(1)), Approval.ApprovalStatus.APPROVED))));
+
+        assertTrue(items().isEmpty());
+    }
+
+    @Test
+    public void leavesOutExpiredScopesStillStored() {
+        this.approvalStore.addApprovals(Arrays.asList(
+                approval("read", expiresIn(-TimeUnit.MINUTES.toMillis(1)), Approval.ApprovalStatus.APPROVED),
+                approval("write", expiresIn(TimeUnit.HOURS.toMillis(1)), Approval.ApprovalStatus.APPROVED)));
+
+        assertEquals(Collections.singleton("write"), byScope(this.approvalStore.getApprovals("alice", "client")).keySet());
+        assertTrue(items().get(0).containsKey(DynamoApprovalStore.SCOPE_PREFIX + "read"));
+    }
+
+    @Test
+    public void movesItemExpiryOnlyLater() {
+        Date later = expiresIn(TimeUnit.HOURS.toMillis(2));
+        this.approvalStore.addApprovals(Collections.singletonList(
+                approval("read", later, Approval.ApprovalStatus.APPROVED)));
+        this.approvalStore.addApprovals(Collections.singletonList(
+                approval("write", expiresIn(TimeUnit.HOURS.toMillis(1)), Approval.ApprovalStatus.APPROVED)));
+
+        assertEquals(Long.toString(TimeUnit.MILLISECONDS.toSeconds(later.getTime())),
+                items().get(0).get(DynamoApprovalStore.EXPIRES_AT).getN());
+        assertEquals(2, this.approvalStore.getApprovals("alice", "client").size());
+    }
+
+    @Test
+    public void neverExpiringApprovalRemovesItemExpiry() {
+        this.approvalStore.addApprovals(Collections.singletonList(
+                approval("read", expiresIn(TimeUnit.HOURS.toMillis(1)), Approval.ApprovalStatus.APPROVED)));
+        assertTrue(items().get(0).containsKey(DynamoApprovalStore.EXPIRES_AT));
+
+        this.approvalStore.addApprovals(Collections.singletonList(neverExpiring("write")));
+
+        assertFalse(items().get(0).containsKey(DynamoApprovalStore.EXPIRES_AT));
+        assertEquals(new HashSet<String>(Arrays.asList("read", "write")),
+                byScope(this.approvalStore.getApprovals("alice", "client")).keySet());
+    }
+
+    private List<Map<String, AttributeValue>> items() {
+        return this.local.client().scan(new ScanRequest().withTableName(DynamoApprovalStore.DEFAULT_TABLE_NAME)).getItems();
+    }
+
+    private static Approval approval(String scope, Date expiresAt, Approval.ApprovalStatus status) {
+        return new Approval("alice", "client", scope, expiresAt, status);
+    }
+
+    /**
+     * An approval without expiry; {@link Approval} itself defaults a missing expiry.
+     */
+    private static Approval neverExpiring(String scope) {
+        return new Approval("alice", "client", scope, null, Approval.ApprovalStatus.APPROVED) {
+            @Override
+            public Date getExpiresAt() {
+                return null;
+            }
+        };
+    }
+
+    private static Date expiresIn(long millis) {
+        return new Date(System.currentTimeMillis() + millis);
+    }
+
+    private static Map<String, Approval> byScope(Collection<Approval> approvals) {
+        Map<String, Approval> byScope = new HashMap<String, Approval>();
+        for (Approval approval : approvals) {
+            byScope.put(approval.getScope(), approval);
+        }
+        return byScope;
+    }
+}
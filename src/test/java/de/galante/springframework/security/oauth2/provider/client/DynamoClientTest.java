@@ -0,0 +1,54 @@
+package de.galante.springframework.security.oauth2.provider.client;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Victor Galante
+ */
+public class DynamoClientTest {
+
+    private final DynamoClient client = new DynamoClient();
+
+    @Test
+    public void hasEmptyAuthoritiesWhenNoneAreStored() {
+        assertTrue(this.client.getAuthorities().isEmpty());
+    }
+
+    @Test
+    public void approvesNoScopeByDefault() {
+        assertFalse(this.client.isAutoApprove("read"));
+    }
+
+    @Test
+    public void approvesEveryScopeOfAutoApprovedClient() {
+        this.client.setAutoApprove(true);
+
+        assertTrue(this.client.isAutoApprove("read"));
+        assertTrue(this.client.isAutoApprove("write"));
+    }
+
+    @Test
+    public void approvesEveryScopeForTrue() {
+        this.client.setAutoApproveScopes(Collections.singleton("true"));
+
+        assertTrue(this.client.isAutoApprove("read"));
+        assertTrue(this.client.isAutoApprove("write"));
+    }
+
+    @Test
+    public void approvesScopesMatchingRegularExpression() {
+        this.client.setAutoApproveScopes(new HashSet<String>(Arrays.asList("read", "profile\\..*")));
+
+        assertTrue(this.client.isAutoApprove("read"));
+        assertTrue(this.client.isAutoApprove("profile.email"));
+        assertFalse(this.client.isAutoApprove("write"));
+        assertFalse(this.client.isAutoApprove("reader"));
+        assertFalse(this.client.isAutoApprove("profile"));
+    }
+}
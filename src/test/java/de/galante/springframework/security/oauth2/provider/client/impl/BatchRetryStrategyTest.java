@@ -0,0 +1,168 @@
+package de.galante.springframework.security.oauth2.provider.client.impl;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemRequest;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import de.galante.springframework.security.core.userdetails.DynamoUser;
+import de.galante.springframework.session.dynamo.LocalDynamoDB;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Mockito.*;
+
+/**
+ * Batch reads and writes of {@link DynamoUserDetailsServiceImpl} against a DynamoDB Local
+ * that leaves items unprocessed, as a throttled table does.
+ *
+ * @author Victor Galante
+ */
+public class BatchRetryStrategyTest {
+
+    private static final List<String> USERNAMES = Arrays.asList("alice", "bob", "carol");
+
+    private LocalDynamoDB local;
+    private AmazonDynamoDB dynamoDB;
+    private DynamoUserDetailsServiceImpl service;
+
+    @Before
+    public void setUp() {
+        this.local = new LocalDynamoDB();
+        this.dynamoDB = mock(AmazonDynamoDB.class, delegatesTo(this.local.client()));
+        DynamoDBMapper mapper = new DynamoDBMapper(this.dynamoDB);
+        this.local.client().createTable(mapper.generateCreateTableRequest(DynamoUser.class)
+                .withProvisionedThroughput(LocalDynamoDB.THROUGHPUT));
+        this.service = new DynamoUserDetailsServiceImpl(mapper);
+    }
+
+    @After
+    public void tearDown() {
+        this.local.shutdown();
+    }
+
+    @Test
+    public void resubmitsUnprocessedItemsOfSaveAll() {
+        doAnswer(invocation -> writeFirstItemOnly((BatchWriteItemRequest) invocation.getArguments()[0]))
+                .when(this.dynamoDB).batchWriteItem(any(BatchWriteItemRequest.class));
+
+        this.service.saveAll(users());
+
+        // one item is written per attempt
+        verify(this.dynamoDB, times(USERNAMES.size())).batchWriteItem(any(BatchWriteItemRequest.class));
+        for (String username : USERNAMES) {
+            assertEquals(username, this.service.load(username).getUsername());
+        }
+    }
+
+    @Test
+    public void resubmitsUnprocessedItemsOfDeleteAll() {
+        this.service.saveAll(users());
+        doAnswer(invocation -> writeFirstItemOnly((BatchWriteItemRequest) invocation.getArguments()[0]))
+                .when(this.dynamoDB).batchWriteItem(any(BatchWriteItemRequest.class));
+
+        this.service.deleteAll(USERNAMES);
+
+        verify(this.dynamoDB, times(1 + USERNAMES.size())).batchWriteItem(any(BatchWriteItemRequest.class));
+        assertTrue(this.service.loadAll(USERNAMES).isEmpty());
+    }
+
+    @Test
+    public void resubmitsUnprocessedKeysOfLoadAll() {
+        this.service.saveAll(users());
+        doAnswer(invocation -> readFirstKeyOnly((BatchGetItemRequest) invocation.getArguments()[0]))
+                .when(this.dynamoDB).batchGetItem(any(BatchGetItemRequest.class));
+
+        Map<String, UserDetails> loaded = this.service.loadAll(USERNAMES);
+
+        verify(this.dynamoDB, times(USERNAMES.size())).batchGetItem(any(BatchGetItemRequest.class));
+        assertEquals(new HashSet<String>(USERNAMES), loaded.keySet());
+    }
+
+    @Test
+    public void failsSaveAllWhenRetriesAreExhausted() {
+        doAnswer(invocation -> new BatchWriteItemResult()
+                .withUnprocessedItems(((BatchWriteItemRequest) invocation.getArguments()[0]).getRequestItems()))
+                .when(this.dynamoDB).batchWriteItem(any(BatchWriteItemRequest.class));
+
+        try {
+            this.service.saveAll(users());
+            fail("Unprocessed items were not reported");
+        } catch (IllegalStateException e) {
+            assertEquals("1 batches could not be written", e.getMessage());
+        }
+        // the first attempt and every retry
+        verify(this.dynamoDB, times(9)).batchWriteItem(any(BatchWriteItemRequest.class));
+    }
+
+    @Test(expected = AmazonClientException.class)
+    public void failsLoadAllWhenRetriesAreExhausted() {
+        this.service.saveAll(users());
+        doAnswer(invocation -> new BatchGetItemResult()
+                .withResponses(Collections.<String, List<Map<String, AttributeValue>>>emptyMap())
+                .withUnprocessedKeys(((BatchGetItemRequest) invocation.getArguments()[0]).getRequestItems()))
+                .when(this.dynamoDB).batchGetItem(any(BatchGetItemRequest.class));
+
+        this.service.loadAll(USERNAMES);
+    }
+
+    /**
+     * Writes the first item of a batch and leaves the others unprocessed.
+     */
+    private BatchWriteItemResult writeFirstItemOnly(BatchWriteItemRequest request) {
+        String tableName = request.getRequestItems().keySet().iterator().next();
+        List<WriteRequest> writes = request.getRequestItems().get(tableName);
+        this.local.client().batchWriteItem(new BatchWriteItemRequest()
+                .withRequestItems(Collections.singletonMap(tableName, writes.subList(0, 1))));
+        return new BatchWriteItemResult().withUnprocessedItems(writes.size() > 1
+                ? Collections.singletonMap(tableName, new ArrayList<WriteRequest>(writes.subList(1, writes.size())))
+                : Collections.<String, List<WriteRequest>>emptyMap());
+    }
+
+    /**
+     * Reads the first key of a batch and leaves the others unprocessed.
+     */
+    private BatchGetItemResult readFirstKeyOnly(BatchGetItemRequest request) {
+        String tableName = request.getRequestItems().keySet().iterator().next();
+        KeysAndAttributes keys = request.getRequestItems().get(tableName);
+        BatchGetItemResult result = this.local.client().batchGetItem(new BatchGetItemRequest()
+                .withRequestItems(Collections.singletonMap(tableName, new KeysAndAttributes()
+                        .withKeys(keys.getKeys().subList(0, 1))
+                        .withConsistentRead(keys.getConsistentRead()))));
+        return result.withUnprocessedKeys(keys.getKeys().size() > 1
+                ? Collections.singletonMap(tableName, new KeysAndAttributes()
+                        .withKeys(new ArrayList<Map<String, AttributeValue>>(
+                                keys.getKeys().subList(1, keys.getKeys().size())))
+                        .withConsistentRead(keys.getConsistentRead()))
+                : Collections.<String, KeysAndAttributes>emptyMap());
+    }
+
+    private static List<DynamoUser> users() {
+        List<DynamoUser> users = new ArrayList<DynamoUser>();
+        for (String username : USERNAMES) {
+            DynamoUser user = new DynamoUser();
+            user.setUsername(username);
+            user.setPassword("secret");
+            user.setAuthorities(Collections.<GrantedAuthority>emptySet());
+            users.add(user);
+        }
+        return users;
+    }
+}
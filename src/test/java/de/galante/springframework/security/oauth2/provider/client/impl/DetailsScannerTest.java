@@ -0,0 +1,163 @@
+package de.galante.springframework.security.oauth2.provider.client.impl;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.model.ScanRequest;
+import de.galante.springframework.security.core.userdetails.DynamoUser;
+import de.galante.springframework.session.dynamo.LocalDynamoDB;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Mockito.*;
+
+/**
+ * Scans users of a DynamoDB Local in pages of {@value #PAGE_SIZE}.
+ *
+ * @author Victor Galante
+ */
+public class DetailsScannerTest {
+
+    private static final int USERS = 25;
+    private static final int PAGE_SIZE = 4;
+    private static final int PAGES = (USERS + PAGE_SIZE - 1) / PAGE_SIZE;
+
+    private LocalDynamoDB local;
+    private AmazonDynamoDB dynamoDB;
+    private DynamoUserDetailsServiceImpl service;
+    private Set<String> usernames = new HashSet<String>();
+
+    @Before
+    public void setUp() {
+        this.local = new LocalDynamoDB();
+        this.dynamoDB = mock(AmazonDynamoDB.class, delegatesTo(this.local.client()));
+        DynamoDBMapper mapper = new DynamoDBMapper(this.dynamoDB);
+        this.local.client().createTable(mapper.generateCreateTableRequest(DynamoUser.class)
+                .withProvisionedThroughput(LocalDynamoDB.THROUGHPUT));
+        this.service = new DynamoUserDetailsServiceImpl(mapper);
+        List<DynamoUser> users = new ArrayList<DynamoUser>();
+        for (int i = 0; i < USERS; i++) {
+            DynamoUser user = new DynamoUser();
+            user.setUsername("user" + i);
+            user.setPassword("secret");
+            user.setAuthorities(Collections.<GrantedAuthority>emptySet());
+            users.add(user);
+            this.usernames.add(user.getUsername());
+        }
+        this.service.saveAll(users);
+        // small pages instead of enough users to fill 1 MB ones
+        doAnswer(invocation -> this.local.client().scan(((ScanRequest) invocation.getArguments()[0]).withLimit(PAGE_SIZE)))
+                .when(this.dynamoDB).scan(any(ScanRequest.class));
+    }
+
+    @After
+    public void tearDown() {
+        this.local.shutdown();
+    }
+
+    @Test
+    public void passesEveryPageOfEverySegmentToCallback() {
+        List<List<UserDetails>> pages = Collections.synchronizedList(new ArrayList<List<UserDetails>>());
+
+        this.service.scan(3, pages::add);
+
+        Set<String> scanned = new HashSet<String>();
+        for (List<UserDetails> page : pages) {
+            assertTrue(page.size() <= PAGE_SIZE);
+            for (UserDetails user : page) {
+                assertTrue("Scanned twice: " + user.getUsername(), scanned.add(user.getUsername()));
+                assertEquals("secret", user.getPassword());
+            }
+        }
+        assertEquals(this.usernames, scanned);
+        assertTrue(pages.size() >= PAGES);
+
+        ArgumentCaptor<ScanRequest> requests = ArgumentCaptor.forClass(ScanRequest.class);
+        verify(this.dynamoDB, times(pages.size())).scan(requests.capture());
+        Set<Integer> segments = new HashSet<Integer>();
+        for (ScanRequest request : requests.getAllValues()) {
+            assertEquals(Integer.valueOf(3), request.getTotalSegments());
+            segments.add(request.getSegment());
+        }
+        assertEquals(new HashSet<Integer>(Arrays.asList(0, 1, 2)), segments);
+    }
+
+    @Test
+    public void projectsScannedAttributes() {
+        List<UserDetails> scanned = Collections.synchronizedList(new ArrayList<UserDetails>());
+
+        this.service.scan(2, scanned::addAll, "username");
+
+        assertEquals(USERS, scanned.size());
+        for (UserDetails user : scanned) {
+            assertNotNull(user.getUsername());
+            assertNull(user.getPassword());
+        }
+    }
+
+    @Test
+    public void rethrowsCallbackFailure() {
+        IllegalStateException failure = new IllegalStateException("Callback failed");
+        try {
+            this.service.scan(2, page -> {
+                throw failure;
+            });
+            fail("Callback failure was not thrown");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void streamsAllPages() {
+        Set<String> streamed = this.service.stream()
+                .map(UserDetails::getUsername)
+                .collect(Collectors.toSet());
+
+        assertEquals(this.usernames, streamed);
+        // the last page is followed by an empty one only if it was full
+        verify(this.dynamoDB, atLeast(PAGES)).scan(any(ScanRequest.class));
+        verify(this.dynamoDB, atMost(PAGES + 1)).scan(any(ScanRequest.class));
+    }
+
+    @Test
+    public void streamLoadsPagesWhenConsumed() {
+        Stream<UserDetails> stream = this.service.stream();
+        verify(this.dynamoDB, never()).scan(any(ScanRequest.class));
+
+        List<UserDetails> first = stream.limit(PAGE_SIZE + 1).collect(Collectors.toList());
+
+        assertEquals(PAGE_SIZE + 1, first.size());
+        verify(this.dynamoDB, times(2)).scan(any(ScanRequest.class));
+    }
+
+    @Test
+    public void streamProjectsAttributes() {
+        List<UserDetails> streamed = this.service.stream("username").collect(Collectors.toList());
+
+        assertEquals(USERS, streamed.size());
+        for (UserDetails user : streamed) {
+            assertTrue(this.usernames.contains(user.getUsername()));
+            assertNull(user.getPassword());
+        }
+        ArgumentCaptor<ScanRequest> requests = ArgumentCaptor.forClass(ScanRequest.class);
+        verify(this.dynamoDB, atLeastOnce()).scan(requests.capture());
+        ScanRequest request = requests.getAllValues().get(0);
+        assertEquals("#a0", request.getProjectionExpression());
+        assertEquals(Collections.singletonMap("#a0", "username"), request.getExpressionAttributeNames());
+    }
+}
@@ -0,0 +1,177 @@
+package de.galante.springframework.security.oauth2.provider.client.impl;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.model.CreateTableRequest;
+import de.galante.springframework.security.oauth2.provider.client.DynamoClient;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Queue;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * The client cache of {@link DynamoClientDetailsServiceImpl} in front of a mocked mapper.
+ *
+ * @author Victor Galante
+ */
+public class DynamoClientDetailsServiceImplCacheTest {
+
+    private DynamoDBMapper mapper;
+    private Queue<Runnable> refreshes;
+    private DynamoClientDetailsServiceImpl service;
+
+    @Before
+    public void setUp() {
+        this.mapper = mock(DynamoDBMapper.class);
+        when(this.mapper.generateCreateTableRequest(DynamoClient.class))
+                .thenReturn(new CreateTableRequest().withTableName(DynamoClient.TABLE_NAME));
+        this.refreshes = new ArrayDeque<Runnable>();
+        this.service = new DynamoClientDetailsServiceImpl(this.mapper);
+        // refreshes run when the test lets them
+        this.service.setCacheRefreshExecutor(this.refreshes::add);
+    }
+
+    @Test
+    public void loadsCachedClientOnce() {
+        DynamoClient client = client("first");
+        when(this.mapper.load(DynamoClient.class, "client")).thenReturn(client);
+
+        assertSame(client, this.service.loadClientByClientId("client"));
+        assertSame(client, this.service.loadClientByClientId("client"));
+
+        verify(this.mapper, times(1)).load(DynamoClient.class, "client");
+    }
+
+    @Test
+    public void servesCachedClientWhileRefreshing() throws InterruptedException {
+        this.service.setCacheRefreshAfterSeconds(1);
+        DynamoClient first = client("first");
+        DynamoClient second = client("second");
+        when(this.mapper.load(DynamoClient.class, "client")).thenReturn(first, second);
+        this.service.loadClientByClientId("client");
+        Thread.sleep(1100);
+
+        assertSame(first, this.service.loadClientByClientId("client"));
+        assertSame(first, this.service.loadClientByClientId("client"));
+        // a single reload for both reads, which has not run yet
+        assertEquals(1, this.refreshes.size());
+        verify(this.mapper, times(1)).load(DynamoClient.class, "client");
+
+        this.refreshes.poll().run();
+
+        assertSame(second, this.service.loadClientByClientId("client"));
+        verify(this.mapper, times(2)).load(DynamoClient.class, "client");
+    }
+
+    @Test
+    public void keepsCachedClientWhenRefreshFails() throws InterruptedException {
+        this.service.setCacheRefreshAfterSeconds(1);
+        DynamoClient client = client("first");
+        when(this.mapper.load(DynamoClient.class, "client"))
+                .thenReturn(client)
+                .thenThrow(new IllegalStateException("Throttled"));
+        this.service.loadClientByClientId("client");
+        Thread.sleep(1100);
+
+        this.service.loadClientByClientId("client");
+        this.refreshes.poll().run();
+
+        assertSame(client, this.service.loadClientByClientId("client"));
+    }
+
+    @Test
+    public void remembersUnknownClientForNegativeTimeToLive() throws InterruptedException {
+        assertEquals(10, DynamoClientDetailsServiceImpl.DEFAULT_CACHE_NEGATIVE_TIME_TO_LIVE_SECONDS);
+        this.service.setCacheNegativeTimeToLiveSeconds(1);
+        DynamoClient client = client("created");
+        when(this.mapper.load(DynamoClient.class, "client")).thenReturn(null, client);
+
+        assertNull(this.service.loadClientByClientId("client"));
+        assertNull(this.service.loadClientByClientId("client"));
+        verify(this.mapper, times(1)).load(DynamoClient.class, "client");
+        // unknown clients are not refreshed in the background
+        assertTrue(this.refreshes.isEmpty());
+
+        Thread.sleep(1100);
+
+        assertSame(client, this.service.loadClientByClientId("client"));
+        verify(this.mapper, times(2)).load(DynamoClient.class, "client");
+    }
+
+    @Test
+    public void saveEvictsCachedClient() {
+        DynamoClient cached = client("first");
+        DynamoClient saved = client("second");
+        when(this.mapper.load(DynamoClient.class, "client")).thenReturn(cached);
+        when(this.mapper.load(eq(DynamoClient.class), eq("client"), any(DynamoDBMapperConfig.class))).thenReturn(saved);
+        this.service.loadClientByClientId("client");
+
+        this.service.save(saved);
+
+        // read strongly consistent right after the write
+        assertSame(saved, this.service.loadClientByClientId("client"));
+        verify(this.mapper).save(saved);
+    }
+
+    @Test
+    public void deleteEvictsCachedClient() {
+        when(this.mapper.load(DynamoClient.class, "client")).thenReturn(client("first"));
+        this.service.loadClientByClientId("client");
+
+        this.service.delete("client");
+
+        assertNull(this.service.loadClientByClientId("client"));
+        verify(this.mapper).load(eq(DynamoClient.class), eq("client"), any(DynamoDBMapperConfig.class));
+    }
+
+    @Test
+    public void writeEvictsLoadInFlight() {
+        DynamoClient stale = client("first");
+        DynamoClient saved = client("second");
+        // the client is saved while its old version is read
+        when(this.mapper.load(DynamoClient.class, "client")).thenAnswer(invocation -> {
+            this.service.save(saved);
+            return stale;
+        });
+        when(this.mapper.load(eq(DynamoClient.class), eq("client"), any(DynamoDBMapperConfig.class))).thenReturn(saved);
+
+        assertSame(stale, this.service.loadClientByClientId("client"));
+
+        assertSame(saved, this.service.loadClientByClientId("client"));
+    }
+
+    @Test
+    public void disabledCacheLoadsEveryTime() {
+        this.service.setCacheMaximumSize(0);
+        when(this.mapper.load(DynamoClient.class, "client")).thenReturn(client("first"));
+
+        this.service.loadClientByClientId("client");
+        this.service.loadClientByClientId("client");
+
+        verify(this.mapper, times(2)).load(DynamoClient.class, "client");
+    }
+
+    @Test
+    public void saveAllEvictsCachedClients() {
+        DynamoClient saved = client("second");
+        when(this.mapper.load(DynamoClient.class, "client")).thenReturn(client("first"));
+        when(this.mapper.load(eq(DynamoClient.class), eq("client"), any(DynamoDBMapperConfig.class))).thenReturn(saved);
+        this.service.loadClientByClientId("client");
+
+        this.service.saveAll(Collections.singletonList(saved));
+
+        assertSame(saved, this.service.loadClientByClientId("client"));
+    }
+
+    private static DynamoClient client(String secret) {
+        DynamoClient client = new DynamoClient();
+        client.setClientId("client");
+        client.setClientSecret(secret);
+        return client;
+    }
+}
@@ -0,0 +1,115 @@
+package de.galante.springframework.security.oauth2.provider.client.impl;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.local.embedded.DynamoDBEmbedded;
+import com.amazonaws.services.dynamodbv2.local.shared.access.AmazonDynamoDBLocal;
+import com.amazonaws.services.dynamodbv2.model.*;
+import de.galante.springframework.security.core.userdetails.DynamoUser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Mockito.*;
+
+/**
+ * Runs the user cache against the stream of an embedded DynamoDB Local. The native SQLite
+ * libraries are copied to {@code target/native-libs} before the tests run.
+ *
+ * @author Victor Galante
+ */
+public class DynamoUserCacheTest {
+
+    private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private AmazonDynamoDBLocal local;
+    private AmazonDynamoDB dynamoDB;
+    private DynamoUserCache cache;
+    private DynamoUserDetailsServiceImpl service;
+
+    /**
+     * Writes users as another node would, without going through the cached service.
+     */
+    private DynamoDBMapper otherNode;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        if (System.getProperty("sqlite4java.library.path") == null) {
+            System.setProperty("sqlite4java.library.path", "target/native-libs");
+        }
+        this.local = DynamoDBEmbedded.create();
+        this.dynamoDB = mock(AmazonDynamoDB.class, delegatesTo(this.local.amazonDynamoDB()));
+        this.dynamoDB.createTable(new CreateTableRequest()
+                .withTableName(DynamoUser.TABLE_NAME)
+                .withKeySchema(new KeySchemaElement("username", KeyType.HASH))
+                .withAttributeDefinitions(new AttributeDefinition("username", ScalarAttributeType.S))
+                .withStreamSpecification(new StreamSpecification()
+                        .withStreamEnabled(true)
+                        .withStreamViewType(StreamViewType.KEYS_ONLY))
+                .withProvisionedThroughput(new ProvisionedThroughput(100L, 100L)));
+
+        this.otherNode = new DynamoDBMapper(this.local.amazonDynamoDB());
+        // saved before the stream is consumed, so its stream record is never read
+        this.otherNode.save(user("alice", "first"));
+
+        this.cache = new DynamoUserCache(this.dynamoDB, this.local.amazonDynamoDBStreams());
+        this.cache.setPollIntervalMillis(50);
+        this.cache.start();
+        this.service = new DynamoUserDetailsServiceImpl(new DynamoDBMapper(this.dynamoDB));
+        this.service.setUserCache(this.cache);
+
+        // the stream is read from its latest record, wait until the consumer is there
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!this.cache.isChanged("probe")) {
+            assertTrue("Stream was not consumed", System.currentTimeMillis() < deadline);
+            this.otherNode.save(user("probe", "probe"));
+            Thread.sleep(50);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        this.cache.stop();
+        this.local.shutdown();
+    }
+
+    @Test
+    public void servesCachedUser() {
+        assertEquals("first", this.service.loadUserByUsername("alice").getPassword());
+        assertEquals("first", this.service.loadUserByUsername("alice").getPassword());
+        verify(this.dynamoDB, times(1)).getItem(any(GetItemRequest.class));
+    }
+
+    @Test
+    public void reloadsUserChangedOnOtherNodeConsistently() throws InterruptedException {
+        assertEquals("first", this.service.loadUserByUsername("alice").getPassword());
+
+        this.otherNode.save(user("alice", "second"));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!this.cache.isChanged("alice")) {
+            assertTrue("Change was not read from the stream", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+
+        assertEquals("second", this.service.loadUserByUsername("alice").getPassword());
+        ArgumentCaptor<GetItemRequest> reads = ArgumentCaptor.forClass(GetItemRequest.class);
+        verify(this.dynamoDB, atLeastOnce()).getItem(reads.capture());
+        List<GetItemRequest> requests = reads.getAllValues();
+        assertFalse(Boolean.TRUE.equals(requests.get(0).getConsistentRead()));
+        assertEquals(Boolean.TRUE, requests.get(requests.size() - 1).getConsistentRead());
+    }
+
+    private static DynamoUser user(String username, String password) {
+        DynamoUser user = new DynamoUser();
+        user.setUsername(username);
+        user.setPassword(password);
+        user.setEnabled(true);
+        return user;
+    }
+}
@@ -0,0 +1,245 @@
+package de.galante.springframework.security.oauth2.provider.token;
+
+import com.amazonaws.services.dynamodbv2.model.*;
+import de.galante.springframework.session.dynamo.LocalDynamoDB;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.oauth2.common.*;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.token.DefaultAuthenticationKeyGenerator;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Victor Galante
+ */
+public class DynamoTokenStoreTest {
+
+    private LocalDynamoDB local;
+    private DynamoTokenStore tokenStore;
+
+    @Before
+    public void setUp() {
+        this.local = new LocalDynamoDB();
+        this.local.client().createTable(new CreateTableRequest()
+                .withTableName(DynamoTokenStore.DEFAULT_ACCESS_TOKEN_TABLE_NAME)
+                .withKeySchema(new KeySchemaElement(DynamoTokenStore.TOKEN_ID, KeyType.HASH))
+                .withAttributeDefinitions(
+                        new AttributeDefinition(DynamoTokenStore.TOKEN_ID, ScalarAttributeType.S),
+                        new AttributeDefinition(DynamoTokenStore.AUTHENTICATION_ID, ScalarAttributeType.S),
+                        new AttributeDefinition(DynamoTokenStore.CLIENT_ID, ScalarAttributeType.S),
+                        new AttributeDefinition(DynamoTokenStore.USER_NAME, ScalarAttributeType.S),
+                        new AttributeDefinition(DynamoTokenStore.REFRESH_TOKEN_ID, ScalarAttributeType.S))
+                .withGlobalSecondaryIndexes(
+                        index(DynamoTokenStore.AUTHENTICATION_ID_INDEX, ProjectionType.ALL,
+                                new KeySchemaElement(DynamoTokenStore.AUTHENTICATION_ID, KeyType.HASH)),
+                        index(DynamoTokenStore.CLIENT_ID_INDEX, ProjectionType.ALL,
+                                new KeySchemaElement(DynamoTokenStore.CLIENT_ID, KeyType.HASH)),
+                        index(DynamoTokenStore.USER_NAME_INDEX, ProjectionType.ALL,
+                                new KeySchemaElement(DynamoTokenStore.USER_NAME, KeyType.HASH),
+                                new KeySchemaElement(DynamoTokenStore.CLIENT_ID, KeyType.RANGE)),
+                        index(DynamoTokenStore.REFRESH_TOKEN_INDEX, ProjectionType.KEYS_ONLY,
+                                new KeySchemaElement(DynamoTokenStore.REFRESH_TOKEN_ID, KeyType.HASH)))
+                .withProvisionedThroughput(LocalDynamoDB.THROUGHPUT));
+        this.local.client().createTable(new CreateTableRequest()
+                .withTableName(DynamoTokenStore.DEFAULT_REFRESH_TOKEN_TABLE_NAME)
+                .withKeySchema(new KeySchemaElement(DynamoTokenStore.TOKEN_ID, KeyType.HASH))
+                .withAttributeDefinitions(new AttributeDefinition(DynamoTokenStore.TOKEN_ID, ScalarAttributeType.S))
+                .withProvisionedThroughput(LocalDynamoDB.THROUGHPUT));
+        this.tokenStore = new DynamoTokenStore(this.local.client());
+    }
+
+    @After
+    public void tearDown() {
+        this.local.shutdown();
+    }
+
+    @Test
+    public void storesReadsAndRemovesAccessToken() {
+        Date expiration = expiresIn(TimeUnit.HOURS.toMillis(1));
+        DefaultOAuth2AccessToken token = accessToken("access", expiration);
+        token.setScope(new LinkedHashSet<String>(Arrays.asList("read", "write")));
+        token.setAdditionalInformation(Collections.<String, Object>singletonMap("tenant", "acme"));
+        token.setRefreshToken(new DefaultExpiringOAuth2RefreshToken("refresh", expiresIn(TimeUnit.DAYS.toMillis(1))));
+        this.tokenStore.storeAccessToken(token, authentication("client", "alice"));
+
+        OAuth2AccessToken read = this.tokenStore.readAccessToken("access");
+        assertEquals("access", read.getValue());
+        assertEquals(token.getTokenType(), read.getTokenType());
+        assertEquals(expiration, read.getExpiration());
+        assertEquals(token.getScope(), read.getScope());
+        assertEquals("acme", read.getAdditionalInformation().get("tenant"));
+        assertEquals("refresh", read.getRefreshToken().getValue());
+        assertEquals(((ExpiringOAuth2RefreshToken) token.getRefreshToken()).getExpiration(),
+                ((ExpiringOAuth2RefreshToken) read.getRefreshToken()).getExpiration());
+        OAuth2Authentication authentication = this.tokenStore.readAuthentication("access");
+        assertEquals("alice", authentication.getName());
+        assertEquals("client", authentication.getOAuth2Request().getClientId());
+
+        this.tokenStore.removeAccessToken(token);
+
+        assertNull(this.tokenStore.readAccessToken("access"));
+        assertNull(this.tokenStore.readAuthentication("access"));
+    }
+
+    @Test
+    public void storesReadsAndRemovesRefreshToken() {
+        DefaultExpiringOAuth2RefreshToken refreshToken =
+                new DefaultExpiringOAuth2RefreshToken("refresh", expiresIn(TimeUnit.DAYS.toMillis(1)));
+        this.tokenStore.storeRefreshToken(refreshToken, authentication("client", "alice"));
+
+        OAuth2RefreshToken read = this.tokenStore.readRefreshToken("refresh");
+        assertEquals("refresh", read.getValue());
+        assertEquals(refreshToken.getExpiration(), ((ExpiringOAuth2RefreshToken) read).getExpiration());
+        assertEquals("alice", this.tokenStore.readAuthenticationForRefreshToken(refreshToken).getName());
+
+        this.tokenStore.removeRefreshToken(refreshToken);
+
+        assertNull(this.tokenStore.readRefreshToken("refresh"));
+        assertNull(this.tokenStore.readAuthenticationForRefreshToken(refreshToken));
+    }
+
+    @Test
+    public void removesAccessTokenUsingRefreshToken() {
+        DefaultOAuth2AccessToken token = accessToken("access", expiresIn(TimeUnit.HOURS.toMillis(1)));
+        DefaultOAuth2RefreshToken refreshToken = new DefaultOAuth2RefreshToken("refresh");
+        token.setRefreshToken(refreshToken);
+        this.tokenStore.storeAccessToken(token, authentication("client", "alice"));
+        this.tokenStore.storeAccessToken(accessToken("other", null), authentication("client", "bob"));
+
+        this.tokenStore.removeAccessTokenUsingRefreshToken(refreshToken);
+
+        assertNull(this.tokenStore.readAccessToken("access"));
+        assertNotNull(this.tokenStore.readAccessToken("other"));
+    }
+
+    @Test
+    public void findsTokensByClientIdAndUserName() {
+        this.tokenStore.storeAccessToken(accessToken("alice-1", null), authentication("client", "alice"));
+        this.tokenStore.storeAccessToken(accessToken("alice-2", null), authentication("other", "alice"));
+        this.tokenStore.storeAccessToken(accessToken("bob", null), authentication("client", "bob"));
+
+        assertEquals(Collections.singleton("alice-1"),
+                values(this.tokenStore.findTokensByClientIdAndUserName("client", "alice")));
+        assertEquals(new HashSet<String>(Arrays.asList("alice-1", "bob")),
+                values(this.tokenStore.findTokensByClientId("client")));
+    }
+
+    @Test
+    public void storesClientOnlyTokenWithoutUserName() {
+        OAuth2Authentication authentication = new OAuth2Authentication(request("client"), null);
+        this.tokenStore.storeAccessToken(accessToken("access", null), authentication);
+
+        assertFalse(accessTokenItem("access").containsKey(DynamoTokenStore.USER_NAME));
+        assertEquals(Collections.singleton("access"), values(this.tokenStore.findTokensByClientId("client")));
+        assertTrue(this.tokenStore.readAuthentication("access").isClientOnly());
+        assertEquals("access", this.tokenStore.getAccessToken(authentication).getValue());
+    }
+
+    @Test
+    public void storesExpiryInEpochSecondsForTimeToLive() {
+        Date expiration = expiresIn(TimeUnit.HOURS.toMillis(1));
+        this.tokenStore.storeAccessToken(accessToken("expiring", expiration), authentication("client", "alice"));
+        this.tokenStore.storeAccessToken(accessToken("lasting", null), authentication("client", "bob"));
+        this.tokenStore.storeRefreshToken(new DefaultExpiringOAuth2RefreshToken("refresh", expiration),
+                authentication("client", "alice"));
+
+        assertEquals(Long.toString(TimeUnit.MILLISECONDS.toSeconds(expiration.getTime())),
+                accessTokenItem("expiring").get(DynamoTokenStore.EXPIRES_AT).getN());
+        assertFalse(accessTokenItem("lasting").containsKey(DynamoTokenStore.EXPIRES_AT));
+        Map<String, AttributeValue> refreshTokenItem = this.local.client().getItem(new GetItemRequest()
+                .withTableName(DynamoTokenStore.DEFAULT_REFRESH_TOKEN_TABLE_NAME)
+                .withKey(key("refresh"))).getItem();
+        assertEquals(Long.toString(TimeUnit.MILLISECONDS.toSeconds(expiration.getTime())),
+                refreshTokenItem.get(DynamoTokenStore.EXPIRES_AT).getN());
+    }
+
+    @Test
+    public void prefersUnexpiredTokenOfAuthentication() {
+        OAuth2Authentication authentication = authentication("client", "alice");
+        this.tokenStore.storeAccessToken(accessToken("expired", expiresIn(-TimeUnit.HOURS.toMillis(1))), authentication);
+        this.tokenStore.storeAccessToken(accessToken("valid", expiresIn(TimeUnit.HOURS.toMillis(1))), authentication);
+        this.tokenStore.storeAccessToken(accessToken("expired-too", expiresIn(-TimeUnit.MINUTES.toMillis(1))), authentication);
+
+        assertEquals("valid", this.tokenStore.getAccessToken(authentication).getValue());
+    }
+
+    @Test
+    public void storesTokenAgainWhenItsAuthenticationHasAnotherKey() {
+        this.tokenStore.storeAccessToken(accessToken("access", null), authentication("client", "alice"));
+        OAuth2Authentication bob = authentication("client", "bob");
+        // indexed under the key of bob's authentication, but stored with alice's
+        this.local.client().updateItem(new UpdateItemRequest()
+                .withTableName(DynamoTokenStore.DEFAULT_ACCESS_TOKEN_TABLE_NAME)
+                .withKey(key("access"))
+                .withUpdateExpression("SET " + DynamoTokenStore.AUTHENTICATION_ID + " = :authenticationId")
+                .withExpressionAttributeValues(Collections.singletonMap(":authenticationId",
+                        new AttributeValue(new DefaultAuthenticationKeyGenerator().extractKey(bob)))));
+
+        assertEquals("access", this.tokenStore.getAccessToken(bob).getValue());
+
+        assertEquals("bob", this.tokenStore.readAuthentication("access").getName());
+    }
+
+    @Test
+    public void findsNoTokenForUnknownAuthentication() {
+        assertNull(this.tokenStore.getAccessToken(authentication("client", "alice")));
+    }
+
+    private Map<String, AttributeValue> accessTokenItem(String tokenValue) {
+        return this.local.client().getItem(new GetItemRequest()
+                .withTableName(DynamoTokenStore.DEFAULT_ACCESS_TOKEN_TABLE_NAME)
+                .withKey(key(tokenValue))).getItem();
+    }
+
+    private static Map<String, AttributeValue> key(String tokenValue) {
+        return Collections.singletonMap(DynamoTokenStore.TOKEN_ID,
+                new AttributeValue(DigestUtils.md5DigestAsHex(tokenValue.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    private static GlobalSecondaryIndex index(String indexName, ProjectionType projectionType, KeySchemaElement... keys) {
+        return new GlobalSecondaryIndex()
+                .withIndexName(indexName)
+                .withKeySchema(keys)
+                .withProjection(new Projection().withProjectionType(projectionType))
+                .withProvisionedThroughput(LocalDynamoDB.THROUGHPUT);
+    }
+
+    private static DefaultOAuth2AccessToken accessToken(String value, Date expiration) {
+        DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken(value);
+        token.setExpiration(expiration);
+        return token;
+    }
+
+    private static OAuth2Authentication authentication(String clientId, String userName) {
+        return new OAuth2Authentication(request(clientId), new UsernamePasswordAuthenticationToken(userName, "N/A",
+                AuthorityUtils.createAuthorityList("ROLE_USER")));
+    }
+
+    private static OAuth2Request request(String clientId) {
+        return new OAuth2Request(Collections.<String, String>emptyMap(), clientId,
+                AuthorityUtils.createAuthorityList("ROLE_CLIENT"), true, Collections.singleton("read"),
+                null, null, null, null);
+    }
+
+    private static Date expiresIn(long millis) {
+        return new Date(System.currentTimeMillis() + millis);
+    }
+
+    private static Set<String> values(Collection<OAuth2AccessToken> tokens) {
+        Set<String> values = new HashSet<String>();
+        for (OAuth2AccessToken token : tokens) {
+            values.add(token.getValue());
+        }
+        return values;
+    }
+}
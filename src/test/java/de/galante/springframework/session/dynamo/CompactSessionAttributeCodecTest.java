@@ -0,0 +1,144 @@
+package de.galante.springframework.session.dynamo;
+
+import org.junit.Test;
+import org.springframework.core.serializer.support.SerializationFailedException;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Victor Galante
+ */
+public class CompactSessionAttributeCodecTest {
+
+    private static final byte PLAIN = 1;
+    private static final byte DEFLATED = 2;
+
+    private final CompactSessionAttributeCodec codec = new CompactSessionAttributeCodec();
+
+    @Test
+    public void roundTripsStrings() {
+        assertRoundTrip("", 1);
+        assertRoundTrip("value", 1);
+        assertRoundTrip("gr\u00fc\u00dfe \u20ac", 1);
+    }
+
+    @Test
+    public void roundTripsIntegers() {
+        assertRoundTrip(0, 2);
+        assertRoundTrip(-1, 2);
+        assertRoundTrip(Integer.MIN_VALUE, 2);
+        assertRoundTrip(Integer.MAX_VALUE, 2);
+    }
+
+    @Test
+    public void roundTripsLongs() {
+        assertRoundTrip(0L, 3);
+        assertRoundTrip(-1L, 3);
+        assertRoundTrip(Long.MIN_VALUE, 3);
+        assertRoundTrip(Long.MAX_VALUE, 3);
+        assertRoundTrip(0x00000001FFFFFFFFL, 3);
+    }
+
+    @Test
+    public void roundTripsBooleans() {
+        assertRoundTrip(true, 4);
+        assertRoundTrip(false, 4);
+    }
+
+    @Test
+    public void roundTripsByteArrays() {
+        byte[] value = {0, 1, (byte) 0xAC, (byte) 0xFF};
+        byte[] encoded = this.codec.encode(value);
+
+        assertEquals(PLAIN, encoded[0]);
+        assertEquals(5, encoded[1]);
+        assertArrayEquals(value, (byte[]) this.codec.decode(encoded));
+        assertArrayEquals(new byte[0], (byte[]) this.codec.decode(this.codec.encode(new byte[0])));
+    }
+
+    @Test
+    public void serializesOtherValues() {
+        assertRoundTrip(new ArrayList<String>(Arrays.asList("a", "b")), 6);
+        assertRoundTrip(new Date(0), 6);
+        assertRoundTrip(Collections.singletonMap("key", 1L), 6);
+    }
+
+    @Test
+    public void compressesValuesAboveThreshold() {
+        String value = repeat("session ", 1000);
+
+        byte[] encoded = this.codec.encode(value);
+
+        assertEquals(DEFLATED, encoded[0]);
+        assertTrue(encoded.length < value.length() / 10);
+        assertEquals(value, this.codec.decode(encoded));
+    }
+
+    @Test
+    public void keepsValuesAtThresholdUncompressed() {
+        this.codec.setCompressionThreshold(100);
+        // the type byte counts towards the threshold
+        String atThreshold = repeat("a", 99);
+
+        assertEquals(PLAIN, this.codec.encode(atThreshold)[0]);
+        assertEquals(DEFLATED, this.codec.encode(atThreshold + "a")[0]);
+    }
+
+    @Test
+    public void keepsIncompressibleValuesUncompressed() {
+        byte[] value = new byte[4096];
+        new Random(42).nextBytes(value);
+
+        byte[] encoded = this.codec.encode(value);
+
+        assertEquals(PLAIN, encoded[0]);
+        assertArrayEquals(value, (byte[]) this.codec.decode(encoded));
+    }
+
+    @Test
+    public void compressesNothingWithNegativeThreshold() {
+        this.codec.setCompressionThreshold(-1);
+
+        assertEquals(PLAIN, this.codec.encode(repeat("session ", 1000))[0]);
+    }
+
+    @Test
+    public void decodesJavaSerializedValues() {
+        List<String> value = new ArrayList<String>(Arrays.asList("a", "b"));
+        byte[] serialized = new SerializingSessionAttributeCodec().encode(value);
+        assertEquals((byte) 0xAC, serialized[0]);
+
+        assertEquals(value, this.codec.decode(serialized));
+        assertEquals("value", this.codec.decode(new SerializingSessionAttributeCodec().encode("value")));
+    }
+
+    @Test(expected = SerializationFailedException.class)
+    public void rejectsUnknownEncoding() {
+        this.codec.decode(new byte[]{9, 1});
+    }
+
+    @Test(expected = SerializationFailedException.class)
+    public void rejectsTruncatedCompressedValue() {
+        byte[] encoded = this.codec.encode(repeat("session ", 1000));
+
+        this.codec.decode(Arrays.copyOf(encoded, encoded.length / 2));
+    }
+
+    private void assertRoundTrip(Object value, int type) {
+        byte[] encoded = this.codec.encode(value);
+
+        assertEquals(PLAIN, encoded[0]);
+        assertEquals(type, encoded[1]);
+        assertEquals(value, this.codec.decode(encoded));
+    }
+
+    private static String repeat(String value, int times) {
+        StringBuilder repeated = new StringBuilder(value.length() * times);
+        for (int i = 0; i < times; i++) {
+            repeated.append(value);
+        }
+        return repeated.toString();
+    }
+}
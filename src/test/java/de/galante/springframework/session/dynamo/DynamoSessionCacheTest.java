@@ -0,0 +1,217 @@
+package de.galante.springframework.session.dynamo;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Mockito.*;
+
+/**
+ * The session cache on its own, and in front of the {@code GetItem} requests of
+ * {@link DynamoSessionRepository}.
+ *
+ * @author Victor Galante
+ */
+public class DynamoSessionCacheTest {
+
+    private LocalDynamoDB local;
+    private AmazonDynamoDB dynamoDB;
+    private DynamoSessionRepository repository;
+    private DynamoSessionRepository otherNode;
+
+    @Before
+    public void setUp() {
+        this.local = new LocalDynamoDB();
+        this.local.createSessionTables();
+        this.dynamoDB = mock(AmazonDynamoDB.class, delegatesTo(this.local.client()));
+        this.repository = new DynamoSessionRepository(this.dynamoDB);
+        this.repository.setSessionCache(new DynamoSessionCache(100, 60, 60));
+        this.otherNode = new DynamoSessionRepository(this.local.client());
+    }
+
+    @After
+    public void tearDown() {
+        this.local.shutdown();
+    }
+
+    @Test
+    public void concurrentMissesShareOneGetItem() throws Exception {
+        String id = saved("a", "value");
+        AtomicInteger getItems = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            getItems.incrementAndGet();
+            loading.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return this.local.client().getItem((GetItemRequest) invocation.getArguments()[0]);
+        }).when(this.dynamoDB).getItem(any(GetItemRequest.class));
+
+        List<CompletableFuture<DynamoSessionRepository.DynamoSession>> reads =
+                new ArrayList<CompletableFuture<DynamoSessionRepository.DynamoSession>>();
+        reads.add(CompletableFuture.supplyAsync(() -> this.repository.getSession(id)));
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 7; i++) {
+            reads.add(CompletableFuture.supplyAsync(() -> this.repository.getSession(id)));
+        }
+        // let the other reads reach the load in flight
+        Thread.sleep(200);
+        release.countDown();
+
+        for (CompletableFuture<DynamoSessionRepository.DynamoSession> read : reads) {
+            assertEquals("value", read.get(5, TimeUnit.SECONDS).getAttribute("a"));
+        }
+        assertEquals(1, getItems.get());
+    }
+
+    @Test
+    public void servesCachedItemUntilWrittenThroughRepository() {
+        String id = saved("a", "value");
+        DynamoSessionRepository.DynamoSession cached = this.repository.getSession(id);
+
+        DynamoSessionRepository.DynamoSession changed = this.otherNode.getSession(id);
+        changed.setAttribute("b", "other node");
+        this.otherNode.save(changed);
+        // the change of the other node is not seen before the maximum staleness
+        assertNull(this.repository.getSession(id).getAttribute("b"));
+
+        // the conditional write finds a newer version and invalidates the cached item
+        cached.setAttribute("c", "this node");
+        this.repository.save(cached);
+
+        DynamoSessionRepository.DynamoSession stored = this.repository.getSession(id);
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b", "c")), stored.getAttributeNames());
+        assertEquals("other node", stored.getAttribute("b"));
+    }
+
+    @Test
+    public void deleteEvictsCachedItem() {
+        String id = saved("a", "value");
+        assertNotNull(this.repository.getSession(id));
+
+        this.repository.delete(id);
+
+        assertNull(this.repository.getSession(id));
+    }
+
+    @Test
+    public void doesNotCacheLoadCompletedAfterInvalidation() {
+        DynamoSessionCache cache = new DynamoSessionCache(10, 60, 60);
+        AtomicInteger loads = new AtomicInteger();
+
+        Map<String, AttributeValue> loaded = cache.get("id", id -> {
+            loads.incrementAndGet();
+            // a write of this node invalidates the session while its old version is read
+            cache.invalidate(id);
+            return item(1);
+        });
+        assertEquals(item(1), loaded);
+
+        assertEquals(item(2), cache.get("id", id -> {
+            loads.incrementAndGet();
+            return item(2);
+        }));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void doesNotCacheAsyncLoadCompletedAfterInvalidation() throws Exception {
+        DynamoSessionCache cache = new DynamoSessionCache(10, 60, 60);
+        CompletableFuture<Map<String, AttributeValue>> load = new CompletableFuture<Map<String, AttributeValue>>();
+        CompletableFuture<Map<String, AttributeValue>> read = cache.getAsync("id", id -> load);
+
+        cache.invalidate("id");
+        load.complete(item(1));
+
+        assertEquals(item(1), read.get());
+        assertEquals(item(2), cache.get("id", id -> item(2)));
+    }
+
+    @Test
+    public void doesNotCacheMissingSession() {
+        DynamoSessionCache cache = new DynamoSessionCache(10, 60, 60);
+        AtomicInteger loads = new AtomicInteger();
+
+        assertNull(cache.get("id", id -> {
+            loads.incrementAndGet();
+            return null;
+        }));
+        assertNull(cache.get("id", id -> {
+            loads.incrementAndGet();
+            return null;
+        }));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void evictsIdleItem() throws InterruptedException {
+        DynamoSessionCache cache = new DynamoSessionCache(10, 2, 60);
+        AtomicInteger loads = new AtomicInteger();
+
+        // reads within the maximum idle time keep the item
+        for (int i = 0; i < 3; i++) {
+            cache.get("id", id -> item(loads.incrementAndGet()));
+            Thread.sleep(1000);
+        }
+        assertEquals(1, loads.get());
+
+        Thread.sleep(1500);
+        assertEquals(item(2), cache.get("id", id -> item(loads.incrementAndGet())));
+    }
+
+    @Test
+    public void reloadsStaleItemAlthoughRead() throws InterruptedException {
+        DynamoSessionCache cache = new DynamoSessionCache(10, 60, 1);
+        AtomicInteger loads = new AtomicInteger();
+
+        cache.get("id", id -> item(loads.incrementAndGet()));
+        Thread.sleep(500);
+        assertEquals(item(1), cache.get("id", id -> item(loads.incrementAndGet())));
+        Thread.sleep(700);
+
+        assertEquals(item(2), cache.get("id", id -> item(loads.incrementAndGet())));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedItem() {
+        DynamoSessionCache cache = new DynamoSessionCache(2, 60, 60);
+        cache.get("a", id -> item(1));
+        cache.get("b", id -> item(1));
+        cache.get("a", id -> item(2));
+
+        cache.get("c", id -> item(1));
+
+        assertEquals(item(1), cache.get("a", id -> item(3)));
+        assertEquals(item(3), cache.get("b", id -> item(3)));
+    }
+
+    private String saved(String attributeName, Object value) {
+        DynamoSessionRepository.DynamoSession session = this.repository.createSession();
+        session.setAttribute(attributeName, value);
+        this.repository.save(session);
+        return session.getId();
+    }
+
+    private static Map<String, AttributeValue> item(long version) {
+        Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+        item.put(DynamoSessionRepository.ID, new AttributeValue("id"));
+        item.put("version", new AttributeValue().withN(Long.toString(version)));
+        return item;
+    }
+}
@@ -0,0 +1,124 @@
+package de.galante.springframework.session.dynamo;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Mockito.*;
+
+/**
+ * Saves of the same session by concurrent requests, each working on its own loaded copy.
+ *
+ * @author Victor Galante
+ */
+public class DynamoSessionRepositoryConcurrentSaveTest {
+
+    private LocalDynamoDB local;
+    private AmazonDynamoDB dynamoDB;
+    private DynamoSessionRepository repository;
+
+    @Before
+    public void setUp() {
+        this.local = new LocalDynamoDB();
+        this.local.createSessionTables();
+        this.dynamoDB = mock(AmazonDynamoDB.class, delegatesTo(this.local.client()));
+        this.repository = new DynamoSessionRepository(this.dynamoDB);
+    }
+
+    @After
+    public void tearDown() {
+        this.local.shutdown();
+    }
+
+    @Test
+    public void mergesDisjointAttributes() {
+        String id = saved("shared", "value");
+        DynamoSessionRepository.DynamoSession first = this.repository.getSession(id);
+        DynamoSessionRepository.DynamoSession second = this.repository.getSession(id);
+
+        first.setAttribute("a", "first");
+        this.repository.save(first);
+        second.setAttribute("b", "second");
+        this.repository.save(second);
+
+        DynamoSessionRepository.DynamoSession stored = this.repository.getSession(id);
+        assertEquals(new HashSet<String>(Arrays.asList("shared", "a", "b")), stored.getAttributeNames());
+        assertEquals("first", stored.getAttribute("a"));
+        assertEquals("second", stored.getAttribute("b"));
+        assertEquals(stored.getAttributeNames(), second.getAttributeNames());
+    }
+
+    @Test
+    public void keepsRemovalByOtherRequest() {
+        String id = saved("shared", "value");
+        DynamoSessionRepository.DynamoSession first = this.repository.getSession(id);
+        DynamoSessionRepository.DynamoSession second = this.repository.getSession(id);
+
+        first.removeAttribute("shared");
+        this.repository.save(first);
+        second.setAttribute("b", "second");
+        this.repository.save(second);
+
+        DynamoSessionRepository.DynamoSession stored = this.repository.getSession(id);
+        assertEquals(new HashSet<String>(Arrays.asList("b")), stored.getAttributeNames());
+        assertNull(stored.getAttribute("shared"));
+    }
+
+    @Test
+    public void removalSavedLastWinsOverSet() {
+        String id = saved("shared", "value");
+        DynamoSessionRepository.DynamoSession first = this.repository.getSession(id);
+        DynamoSessionRepository.DynamoSession second = this.repository.getSession(id);
+
+        first.setAttribute("shared", "changed");
+        this.repository.save(first);
+        second.removeAttribute("shared");
+        this.repository.save(second);
+
+        assertNull(this.repository.getSession(id).getAttribute("shared"));
+    }
+
+    @Test
+    public void writesUnconditionallyAfterMaxSaveAttempts() {
+        String id = saved("shared", "value");
+        DynamoSessionRepository.DynamoSession session = this.repository.getSession(id);
+        // every conditional update conflicts, as if other requests kept saving the session
+        doAnswer(invocation -> {
+            UpdateItemRequest request = (UpdateItemRequest) invocation.getArguments()[0];
+            if (request.getConditionExpression().contains("#version")) {
+                throw new ConditionalCheckFailedException("The conditional request failed");
+            }
+            return this.local.client().updateItem(request);
+        }).when(this.dynamoDB).updateItem(any(UpdateItemRequest.class));
+
+        session.setAttribute("a", "value");
+        this.repository.save(session);
+
+        ArgumentCaptor<UpdateItemRequest> updates = ArgumentCaptor.forClass(UpdateItemRequest.class);
+        verify(this.dynamoDB, times(DynamoSessionRepository.MAX_SAVE_ATTEMPTS)).updateItem(updates.capture());
+        List<UpdateItemRequest> requests = updates.getAllValues();
+        assertEquals("#version = :version", requests.get(0).getConditionExpression());
+        // still not resurrecting a deleted session
+        assertEquals("attribute_exists(#id)", requests.get(requests.size() - 1).getConditionExpression());
+        DynamoSessionRepository.DynamoSession stored = this.repository.getSession(id);
+        assertEquals("value", stored.getAttribute("a"));
+        assertEquals("value", stored.getAttribute("shared"));
+    }
+
+    private String saved(String attributeName, Object value) {
+        DynamoSessionRepository.DynamoSession session = this.repository.createSession();
+        session.setAttribute(attributeName, value);
+        this.repository.save(session);
+        return session.getId();
+    }
+}
@@ -0,0 +1,142 @@
+package de.galante.springframework.session.dynamo;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.session.FindByIndexNameSessionRepository;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Victor Galante
+ */
+public class DynamoSessionRepositoryFindByPrincipalNameTest {
+
+    private static final String INDEX_NAME = FindByIndexNameSessionRepository.PRINCIPAL_NAME_INDEX_NAME;
+
+    private LocalDynamoDB local;
+    private DynamoSessionRepository repository;
+
+    @Before
+    public void setUp() {
+        this.local = new LocalDynamoDB();
+        this.local.createSessionTables();
+        this.repository = new DynamoSessionRepository(this.local.client());
+    }
+
+    @After
+    public void tearDown() {
+        this.local.shutdown();
+    }
+
+    @Test
+    public void findsSessionsOfPrincipal() {
+        DynamoSessionRepository.DynamoSession first = save("user");
+        DynamoSessionRepository.DynamoSession second = save("user");
+        save("other");
+
+        Map<String, DynamoSessionRepository.DynamoSession> sessions =
+                this.repository.findByIndexNameAndIndexValue(INDEX_NAME, "user");
+
+        assertEquals(new HashSet<String>(Arrays.asList(first.getId(), second.getId())), sessions.keySet());
+        assertEquals("user", sessions.get(first.getId()).getAttribute(INDEX_NAME));
+    }
+
+    @Test
+    public void findsSessionsAcrossPrincipalNameShards() {
+        this.repository.setPrincipalNameShards(4);
+        for (int i = 0; i < 20; i++) {
+            save("user");
+        }
+
+        assertEquals(20, this.repository.findByIndexNameAndIndexValue(INDEX_NAME, "user").size());
+    }
+
+    @Test
+    public void findsSessionsSavedBeforeShardsWereAdded() {
+        Set<String> ids = new HashSet<String>();
+        for (int i = 0; i < 10; i++) {
+            ids.add(save("user").getId());
+        }
+        this.repository.setPrincipalNameShards(2);
+        for (int i = 0; i < 10; i++) {
+            ids.add(save("user").getId());
+        }
+        this.repository.setPrincipalNameShards(5);
+        for (int i = 0; i < 10; i++) {
+            ids.add(save("user").getId());
+        }
+
+        assertEquals(ids, this.repository.findByIndexNameAndIndexValue(INDEX_NAME, "user").keySet());
+    }
+
+    @Test
+    public void findsSessionSavedAgainAfterShardsWereAdded() {
+        this.repository.setPrincipalNameShards(2);
+        Set<String> ids = new HashSet<String>();
+        for (int i = 0; i < 10; i++) {
+            ids.add(save("user").getId());
+        }
+        this.repository.setPrincipalNameShards(8);
+        // without a principal change the sessions keep the shards derived with the old count
+        for (String id : ids) {
+            DynamoSessionRepository.DynamoSession session = this.repository.getSession(id);
+            session.setAttribute("changed", true);
+            this.repository.save(session);
+        }
+
+        Map<String, DynamoSessionRepository.DynamoSession> sessions =
+                this.repository.findByIndexNameAndIndexValue(INDEX_NAME, "user");
+
+        assertEquals(ids, sessions.keySet());
+        for (DynamoSessionRepository.DynamoSession session : sessions.values()) {
+            assertEquals(Boolean.TRUE, session.getAttribute("changed"));
+        }
+    }
+
+    @Test
+    public void leavesOutSessionsExpiredSinceIndexed() {
+        DynamoSessionRepository.DynamoSession live = save("user");
+        DynamoSessionRepository.DynamoSession expired = save("user");
+        // the index still lists the session as unexpired, its last access says otherwise
+        this.local.client().updateItem(new UpdateItemRequest()
+                .withTableName(DynamoSessionRepository.DEFAULT_TABLE_NAME)
+                .withKey(Collections.singletonMap("id", new AttributeValue(expired.getId())))
+                .withUpdateExpression("SET lastAccessedTime = :lastAccessedTime")
+                .withExpressionAttributeValues(Collections.singletonMap(":lastAccessedTime",
+                        new AttributeValue().withN(Long.toString(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2))))));
+
+        Map<String, DynamoSessionRepository.DynamoSession> sessions =
+                this.repository.findByIndexNameAndIndexValue(INDEX_NAME, "user");
+
+        assertEquals(Collections.singleton(live.getId()), sessions.keySet());
+        assertEquals(1, sessions.size());
+        assertFalse(sessions.containsKey(expired.getId()));
+        for (Map.Entry<String, DynamoSessionRepository.DynamoSession> session : sessions.entrySet()) {
+            assertNotNull(session.getValue());
+        }
+    }
+
+    @Test
+    public void findsNothingForUnknownPrincipal() {
+        save("user");
+
+        assertTrue(this.repository.findByIndexNameAndIndexValue(INDEX_NAME, "unknown").isEmpty());
+    }
+
+    private DynamoSessionRepository.DynamoSession save(String principalName) {
+        DynamoSessionRepository.DynamoSession session = this.repository.createSession();
+        session.setAttribute(INDEX_NAME, principalName);
+        this.repository.save(session);
+        return session;
+    }
+}
@@ -0,0 +1,83 @@
+package de.galante.springframework.session.dynamo;
+
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.DeleteItemRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Victor Galante
+ */
+public class DynamoSessionRepositoryLazyAttributesTest {
+
+    private LocalDynamoDB local;
+    private DynamoSessionRepository repository;
+
+    @Before
+    public void setUp() {
+        this.local = new LocalDynamoDB();
+        this.local.createSessionTables();
+        this.repository = new DynamoSessionRepository(this.local.client());
+        this.repository.setLazyAttributeLoading(true);
+    }
+
+    @After
+    public void tearDown() {
+        this.local.shutdown();
+    }
+
+    @Test
+    public void loadsAttributesOnFirstAccess() {
+        DynamoSessionRepository.DynamoSession session = this.repository.createSession();
+        session.setAttribute("a", "first");
+        session.setAttribute("b", 2);
+        this.repository.save(session);
+
+        DynamoSessionRepository.DynamoSession loaded = this.repository.getSession(session.getId());
+
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), loaded.getAttributeNames());
+        assertEquals("first", loaded.getAttribute("a"));
+        assertEquals(Integer.valueOf(2), loaded.getAttribute("b"));
+    }
+
+    @Test
+    public void iteratesNamesWhileAttributesTurnOutGone() {
+        DynamoSessionRepository.DynamoSession session = this.repository.createSession();
+        session.setAttribute("a", "first");
+        session.setAttribute("b", "second");
+        session.setAttribute("c", "third");
+        this.repository.save(session);
+        deleteAttributeItem(session.getId(), "a");
+        deleteAttributeItem(session.getId(), "b");
+
+        DynamoSessionRepository.DynamoSession loaded = this.repository.getSession(session.getId());
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        for (String name : loaded.getAttributeNames()) {
+            Object value = loaded.getAttribute(name);
+            if (value != null) {
+                attributes.put(name, value);
+            }
+        }
+
+        assertEquals(Collections.<String, Object>singletonMap("c", "third"), attributes);
+        assertEquals(Collections.singleton("c"), loaded.getAttributeNames());
+    }
+
+    private void deleteAttributeItem(String sessionId, String attributeName) {
+        Map<String, AttributeValue> key = new HashMap<String, AttributeValue>();
+        key.put(SessionAttributeTable.SESSION_ID, new AttributeValue(sessionId));
+        key.put(SessionAttributeTable.ATTRIBUTE_NAME, new AttributeValue(attributeName));
+        this.local.client().deleteItem(new DeleteItemRequest()
+                .withTableName(DynamoSessionRepository.DEFAULT_ATTRIBUTE_TABLE_NAME)
+                .withKey(key));
+    }
+}
@@ -0,0 +1,72 @@
+package de.galante.springframework.session.dynamo;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author Victor Galante
+ */
+public class DynamoSessionRepositoryTouchThresholdTest {
+
+    private final AmazonDynamoDB dynamoDB = mock(AmazonDynamoDB.class);
+    private final DynamoSessionRepository repository = new DynamoSessionRepository(this.dynamoDB);
+
+    @Test
+    public void defersTouchWithinThreshold() {
+        this.repository.setTouchThresholdSeconds(60);
+        DynamoSessionRepository.DynamoSession session = loaded(1800);
+
+        touch(session, 30);
+
+        verify(this.dynamoDB, never()).updateItem(any(UpdateItemRequest.class));
+    }
+
+    @Test
+    public void writesTouchPastThreshold() {
+        this.repository.setTouchThresholdSeconds(60);
+        DynamoSessionRepository.DynamoSession session = loaded(1800);
+
+        touch(session, 90);
+
+        verify(this.dynamoDB).updateItem(any(UpdateItemRequest.class));
+    }
+
+    @Test
+    public void capsThresholdAtHalfTheMaxInactiveInterval() {
+        this.repository.setTouchThresholdSeconds(600);
+        DynamoSessionRepository.DynamoSession session = loaded(60);
+
+        touch(session, 20);
+        verify(this.dynamoDB, never()).updateItem(any(UpdateItemRequest.class));
+
+        touch(session, 20);
+        verify(this.dynamoDB).updateItem(any(UpdateItemRequest.class));
+    }
+
+    @Test
+    public void capsRatioThresholdAtHalfTheMaxInactiveInterval() {
+        this.repository.setTouchThresholdRatio(0.9);
+        DynamoSessionRepository.DynamoSession session = loaded(100);
+
+        touch(session, 60);
+
+        verify(this.dynamoDB).updateItem(any(UpdateItemRequest.class));
+    }
+
+    private DynamoSessionRepository.DynamoSession loaded(int maxInactiveIntervalSeconds) {
+        DynamoSessionRepository.DynamoSession session = this.repository.new DynamoSession("1");
+        session.setMaxInactiveIntervalInSeconds(maxInactiveIntervalSeconds);
+        session.clearChangeFlags();
+        return session;
+    }
+
+    private void touch(DynamoSessionRepository.DynamoSession session, int seconds) {
+        session.setLastAccessedTime(session.getLastAccessedTime() + TimeUnit.SECONDS.toMillis(seconds));
+        this.repository.save(session);
+    }
+}
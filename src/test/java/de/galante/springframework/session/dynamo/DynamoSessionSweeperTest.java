@@ -0,0 +1,206 @@
+package de.galante.springframework.session.dynamo;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.model.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Mockito.*;
+
+/**
+ * Two sweepers, as on two nodes, competing for the segment leases of one session table.
+ *
+ * @author Victor Galante
+ */
+public class DynamoSessionSweeperTest {
+
+    private static final int TOTAL_SEGMENTS = 4;
+
+    private LocalDynamoDB local;
+    private AmazonDynamoDB firstNode;
+    private AmazonDynamoDB secondNode;
+
+    @Before
+    public void setUp() {
+        this.local = new LocalDynamoDB();
+        this.local.createSessionTables();
+        this.local.createSweepLeaseTable();
+        this.firstNode = mock(AmazonDynamoDB.class, delegatesTo(this.local.client()));
+        this.secondNode = mock(AmazonDynamoDB.class, delegatesTo(this.local.client()));
+    }
+
+    @After
+    public void tearDown() {
+        this.local.shutdown();
+    }
+
+    @Test
+    public void deletesOnlyExpiredSessions() {
+        putSessions("expired", 20, TimeUnit.HOURS.toSeconds(-1));
+        putSessions("live", 20, TimeUnit.HOURS.toSeconds(1));
+        // expired too recently, a request may still be saving it
+        putSessions("recent", 1, -10);
+
+        sweeper(this.firstNode, TimeUnit.HOURS.toMillis(1)).sweep();
+
+        Set<String> ids = sessionIds();
+        assertEquals(21, ids.size());
+        assertTrue(ids.contains("recent-0"));
+        for (String id : ids) {
+            assertFalse(id.startsWith("expired"));
+        }
+    }
+
+    @Test
+    public void skipsSegmentsLeasedByOtherNode() {
+        DynamoSessionSweeper first = sweeper(this.firstNode, TimeUnit.HOURS.toMillis(1));
+        DynamoSessionSweeper second = sweeper(this.secondNode, TimeUnit.HOURS.toMillis(1));
+        first.sweep();
+        Map<Integer, String> leases = leaseOwners();
+        putSessions("expired", 20, TimeUnit.HOURS.toSeconds(-1));
+
+        second.sweep();
+
+        verify(this.secondNode, never()).scan(any(ScanRequest.class));
+        assertEquals(leases, leaseOwners());
+        assertEquals(20, sessionIds().size());
+    }
+
+    @Test
+    public void takesOverExpiredLeases() throws InterruptedException {
+        DynamoSessionSweeper first = sweeper(this.firstNode, 200);
+        DynamoSessionSweeper second = sweeper(this.secondNode, 200);
+        first.sweep();
+        Map<Integer, String> leases = leaseOwners();
+        putSessions("expired", 20, TimeUnit.HOURS.toSeconds(-1));
+        Thread.sleep(300);
+
+        second.sweep();
+
+        Map<Integer, String> takenOver = leaseOwners();
+        assertEquals(TOTAL_SEGMENTS, takenOver.size());
+        for (Map.Entry<Integer, String> lease : takenOver.entrySet()) {
+            assertNotEquals(leases.get(lease.getKey()), lease.getValue());
+        }
+        assertTrue(sessionIds().isEmpty());
+    }
+
+    @Test
+    public void sweepsEverySegmentOnceWhenNodesRace() throws InterruptedException {
+        putSessions("expired", 50, TimeUnit.HOURS.toSeconds(-1));
+        DynamoSessionSweeper first = sweeper(this.firstNode, TimeUnit.HOURS.toMillis(1));
+        DynamoSessionSweeper second = sweeper(this.secondNode, TimeUnit.HOURS.toMillis(1));
+        CountDownLatch start = new CountDownLatch(1);
+        Thread firstThread = new Thread(() -> sweepAfter(start, first));
+        Thread secondThread = new Thread(() -> sweepAfter(start, second));
+        firstThread.start();
+        secondThread.start();
+
+        start.countDown();
+        firstThread.join(10000);
+        secondThread.join(10000);
+
+        List<Integer> swept = new ArrayList<Integer>();
+        swept.addAll(sweptSegments(this.firstNode));
+        swept.addAll(sweptSegments(this.secondNode));
+        Collections.sort(swept);
+        assertEquals(Arrays.asList(0, 1, 2, 3), swept);
+        assertEquals(TOTAL_SEGMENTS, leaseOwners().size());
+        assertTrue(sessionIds().isEmpty());
+    }
+
+    @Test
+    public void scansParallelSegmentsAtTheSameTime() {
+        putSessions("expired", 50, TimeUnit.HOURS.toSeconds(-1));
+        AtomicInteger scanning = new AtomicInteger();
+        AtomicInteger maxScanning = new AtomicInteger();
+        doAnswer(invocation -> {
+            maxScanning.accumulateAndGet(scanning.incrementAndGet(), Math::max);
+            try {
+                // long enough for the other thread to start its scan
+                Thread.sleep(100);
+                return this.local.client().scan((ScanRequest) invocation.getArguments()[0]);
+            } finally {
+                scanning.decrementAndGet();
+            }
+        }).when(this.firstNode).scan(any(ScanRequest.class));
+        DynamoSessionSweeper sweeper = sweeper(this.firstNode, TimeUnit.HOURS.toMillis(1));
+        sweeper.setParallelSegments(2);
+
+        sweeper.sweep();
+
+        assertEquals(2, maxScanning.get());
+        assertEquals(TOTAL_SEGMENTS, sweptSegments(this.firstNode).size());
+        assertTrue(sessionIds().isEmpty());
+    }
+
+    private DynamoSessionSweeper sweeper(AmazonDynamoDB dynamoDB, long sweepIntervalMillis) {
+        DynamoSessionSweeper sweeper = new DynamoSessionSweeper(dynamoDB);
+        sweeper.setTotalSegments(TOTAL_SEGMENTS);
+        sweeper.setSweepIntervalMillis(sweepIntervalMillis);
+        sweeper.setCapacityUnitsPerSecond(10000);
+        return sweeper;
+    }
+
+    private static void sweepAfter(CountDownLatch start, DynamoSessionSweeper sweeper) {
+        try {
+            start.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        sweeper.sweep();
+    }
+
+    /**
+     * Returns the segments a node scanned, each segment fits into one page.
+     */
+    private static List<Integer> sweptSegments(AmazonDynamoDB node) {
+        ArgumentCaptor<ScanRequest> scans = ArgumentCaptor.forClass(ScanRequest.class);
+        verify(node, atLeast(0)).scan(scans.capture());
+        List<Integer> segments = new ArrayList<Integer>();
+        for (ScanRequest scan : scans.getAllValues()) {
+            segments.add(scan.getSegment());
+        }
+        return segments;
+    }
+
+    private void putSessions(String prefix, int count, long expiresInSeconds) {
+        long expiresAt = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + expiresInSeconds;
+        for (int i = 0; i < count; i++) {
+            Map<String, AttributeValue> item = new HashMap<String, AttributeValue>();
+            item.put(DynamoSessionRepository.ID, new AttributeValue(prefix + "-" + i));
+            item.put(DynamoSessionRepository.EXPIRES_AT, new AttributeValue().withN(Long.toString(expiresAt)));
+            this.local.client().putItem(new PutItemRequest()
+                    .withTableName(DynamoSessionRepository.DEFAULT_TABLE_NAME)
+                    .withItem(item));
+        }
+    }
+
+    private Set<String> sessionIds() {
+        Set<String> ids = new HashSet<String>();
+        for (Map<String, AttributeValue> item : this.local.client().scan(new ScanRequest()
+                .withTableName(DynamoSessionRepository.DEFAULT_TABLE_NAME)).getItems()) {
+            ids.add(item.get(DynamoSessionRepository.ID).getS());
+        }
+        return ids;
+    }
+
+    private Map<Integer, String> leaseOwners() {
+        Map<Integer, String> owners = new HashMap<Integer, String>();
+        for (Map<String, AttributeValue> item : this.local.client().scan(new ScanRequest()
+                .withTableName(DynamoSessionSweeper.DEFAULT_LEASE_TABLE_NAME)).getItems()) {
+            owners.put(Integer.valueOf(item.get(DynamoSessionSweeper.SEGMENT).getN()), item.get("owner").getS());
+        }
+        return owners;
+    }
+}
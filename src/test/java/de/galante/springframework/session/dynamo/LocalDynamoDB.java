@@ -0,0 +1,73 @@
+package de.galante.springframework.session.dynamo;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.local.embedded.DynamoDBEmbedded;
+import com.amazonaws.services.dynamodbv2.local.shared.access.AmazonDynamoDBLocal;
+import com.amazonaws.services.dynamodbv2.model.*;
+
+/**
+ * An in-process DynamoDB Local for the tests and the benchmarks, creating the session
+ * tables on demand. The benchmarks get it from the test jar.
+ * <p>
+ * The native SQLite libraries are copied to {@code target/native-libs} before the
+ * tests run and when the benchmarks are packaged; set {@code sqlite4java.library.path}
+ * when running them from elsewhere.
+ *
+ * @author Victor Galante
+ */
+public final class LocalDynamoDB {
+
+    public static final ProvisionedThroughput THROUGHPUT = new ProvisionedThroughput(1000L, 1000L);
+
+    private final AmazonDynamoDBLocal local;
+
+    public LocalDynamoDB() {
+        if (System.getProperty("sqlite4java.library.path") == null) {
+            System.setProperty("sqlite4java.library.path", "target/native-libs");
+        }
+        this.local = DynamoDBEmbedded.create();
+    }
+
+    public AmazonDynamoDB client() {
+        return this.local.amazonDynamoDB();
+    }
+
+    public void createSessionTables() {
+        AmazonDynamoDB dynamoDB = client();
+        dynamoDB.createTable(new CreateTableRequest()
+                .withTableName(DynamoSessionRepository.DEFAULT_TABLE_NAME)
+                .withKeySchema(new KeySchemaElement("id", KeyType.HASH))
+                .withAttributeDefinitions(
+                        new AttributeDefinition("id", ScalarAttributeType.S),
+                        new AttributeDefinition(DynamoSessionRepository.PRINCIPAL_NAME, ScalarAttributeType.S))
+                .withGlobalSecondaryIndexes(new GlobalSecondaryIndex()
+                        .withIndexName(DynamoSessionRepository.DEFAULT_PRINCIPAL_NAME_INDEX)
+                        .withKeySchema(new KeySchemaElement(DynamoSessionRepository.PRINCIPAL_NAME, KeyType.HASH))
+                        .withProjection(new Projection()
+                                .withProjectionType(ProjectionType.INCLUDE)
+                                .withNonKeyAttributes(DynamoSessionRepository.EXPIRES_AT))
+                        .withProvisionedThroughput(THROUGHPUT))
+                .withProvisionedThroughput(THROUGHPUT));
+        dynamoDB.createTable(new CreateTableRequest()
+                .withTableName(DynamoSessionRepository.DEFAULT_ATTRIBUTE_TABLE_NAME)
+                .withKeySchema(
+                        new KeySchemaElement(SessionAttributeTable.SESSION_ID, KeyType.HASH),
+                        new KeySchemaElement(SessionAttributeTable.ATTRIBUTE_NAME, KeyType.RANGE))
+                .withAttributeDefinitions(
+                        new AttributeDefinition(SessionAttributeTable.SESSION_ID, ScalarAttributeType.S),
+                        new AttributeDefinition(SessionAttributeTable.ATTRIBUTE_NAME, ScalarAttributeType.S))
+                .withProvisionedThroughput(THROUGHPUT));
+    }
+
+    public void createSweepLeaseTable() {
+        client().createTable(new CreateTableRequest()
+                .withTableName(DynamoSessionSweeper.DEFAULT_LEASE_TABLE_NAME)
+                .withKeySchema(new KeySchemaElement(DynamoSessionSweeper.SEGMENT, KeyType.HASH))
+                .withAttributeDefinitions(new AttributeDefinition(DynamoSessionSweeper.SEGMENT, ScalarAttributeType.N))
+                .withProvisionedThroughput(THROUGHPUT));
+    }
+
+    public void shutdown() {
+        this.local.shutdown();
+    }
+}
@@ -0,0 +1,187 @@
+package de.galante.springframework.session.dynamo;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * @author Victor Galante
+ */
+public class SessionWriteBehindTest {
+
+    private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+    private final DynamoSessionRepository repository = new DynamoSessionRepository(mock(AmazonDynamoDB.class));
+    private final List<DynamoSessionRepository.DynamoSession> written =
+            new CopyOnWriteArrayList<DynamoSessionRepository.DynamoSession>();
+    private final List<Thread> writingThreads = new CopyOnWriteArrayList<Thread>();
+    private SessionWriteBehind writeBehind;
+
+    @Before
+    public void setUp() {
+        this.writeBehind = writeBehind(NEVER, 100, 1000, session -> {
+        });
+    }
+
+    @After
+    public void tearDown() {
+        this.writeBehind.close();
+    }
+
+    @Test
+    public void coalescesSavesOfQueuedSession() {
+        DynamoSessionRepository.DynamoSession session = loaded("1");
+        session.setAttribute("a", "first");
+        assertTrue(this.writeBehind.enqueue(session));
+        session.clearChangeFlags();
+        session.setAttribute("a", "second");
+        session.setAttribute("b", "other");
+        assertTrue(this.writeBehind.enqueue(session));
+        session.clearChangeFlags();
+        session.removeAttribute("b");
+        assertTrue(this.writeBehind.enqueue(session));
+
+        this.writeBehind.close();
+
+        assertEquals(1, this.written.size());
+        DynamoSessionRepository.DynamoSession queued = this.written.get(0);
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), queued.getDelta().keySet());
+        assertEquals("second", queued.getAttribute("a"));
+        assertNull(queued.getDelta().get("b"));
+    }
+
+    @Test
+    public void encodesChangesOnSavingThread() {
+        DynamoSessionRepository.DynamoSession session = loaded("1");
+        List<String> cart = new ArrayList<String>(Collections.singletonList("book"));
+        session.setAttribute("cart", cart);
+        this.writeBehind.enqueue(session);
+
+        // the request goes on changing the attribute after saving
+        cart.add("pen");
+        this.writeBehind.close();
+
+        assertEquals(Collections.singletonList("book"), this.written.get(0).getAttribute("cart"));
+    }
+
+    @Test
+    public void flushWritesQueuedSessionOnCallingThread() {
+        DynamoSessionRepository.DynamoSession session = loaded("1");
+        session.setAttribute("a", "value");
+        this.writeBehind.enqueue(session);
+
+        this.writeBehind.flush("1");
+
+        assertEquals(1, this.written.size());
+        assertSame(Thread.currentThread(), this.writingThreads.get(0));
+        this.writeBehind.close();
+        assertEquals(1, this.written.size());
+    }
+
+    @Test
+    public void discardDropsQueuedSession() {
+        DynamoSessionRepository.DynamoSession session = loaded("1");
+        session.setAttribute("a", "value");
+        this.writeBehind.enqueue(session);
+
+        this.writeBehind.discard("1");
+        this.writeBehind.close();
+
+        assertTrue(this.written.isEmpty());
+    }
+
+    @Test
+    public void flushWaitsForWriteInProgress() throws InterruptedException {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        this.writeBehind.close();
+        this.writeBehind = writeBehind(NEVER, 1, 1000, session -> {
+            if (writing.getCount() > 0) {
+                writing.countDown();
+                await(release);
+            }
+        });
+
+        DynamoSessionRepository.DynamoSession session = loaded("1");
+        session.setAttribute("a", "first");
+        this.writeBehind.enqueue(session);
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        session.clearChangeFlags();
+        session.setAttribute("a", "second");
+        this.writeBehind.enqueue(session);
+
+        Thread flushing = new Thread(() -> this.writeBehind.flush("1"));
+        flushing.start();
+        flushing.join(200);
+        assertTrue("Flush did not wait for the write in progress", flushing.isAlive());
+
+        release.countDown();
+        flushing.join(5000);
+        assertFalse(flushing.isAlive());
+        assertEquals(2, this.written.size());
+        assertEquals("first", this.written.get(0).getAttribute("a"));
+        assertEquals("second", this.written.get(1).getAttribute("a"));
+    }
+
+    @Test
+    public void closeDrainsQueue() {
+        for (int i = 0; i < 10; i++) {
+            DynamoSessionRepository.DynamoSession session = loaded(Integer.toString(i));
+            session.setAttribute("a", i);
+            assertTrue(this.writeBehind.enqueue(session));
+        }
+
+        this.writeBehind.close();
+
+        assertEquals(10, this.written.size());
+        assertFalse(this.writeBehind.enqueue(loaded("late")));
+    }
+
+    @Test
+    public void refusesSessionsBeyondMaxPending() {
+        this.writeBehind.close();
+        this.writeBehind = writeBehind(NEVER, 100, 2, session -> {
+        });
+
+        assertTrue(this.writeBehind.enqueue(loaded("1")));
+        assertTrue(this.writeBehind.enqueue(loaded("2")));
+        assertFalse(this.writeBehind.enqueue(loaded("3")));
+        // saves of a queued session are still coalesced
+        assertTrue(this.writeBehind.enqueue(loaded("1")));
+    }
+
+    private SessionWriteBehind writeBehind(long delayMillis, int batchSize, int maxPending,
+                                           Consumer<DynamoSessionRepository.DynamoSession> writer) {
+        this.written.clear();
+        this.writingThreads.clear();
+        return new SessionWriteBehind(session -> {
+            writer.accept(session);
+            this.writingThreads.add(Thread.currentThread());
+            this.written.add(session);
+        }, delayMillis, batchSize, maxPending);
+    }
+
+    private DynamoSessionRepository.DynamoSession loaded(String id) {
+        DynamoSessionRepository.DynamoSession session = this.repository.new DynamoSession(id);
+        session.clearChangeFlags();
+        return session;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}